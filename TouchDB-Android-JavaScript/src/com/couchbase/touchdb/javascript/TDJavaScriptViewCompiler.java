@@ -67,19 +67,19 @@ class CustomWrapFactory extends WrapFactory {
 class TDViewMapBlockRhino implements TDViewMapBlock {
 
     private static WrapFactory wrapFactory = new CustomWrapFactory();
-    private Scriptable globalScope;
     private String src;
 
+    // map() keeps its results in a global, so each thread gets its own scope; the view indexer
+    // may call it from several threads at once.
+    private ThreadLocal<Scriptable> threadScope = new ThreadLocal<Scriptable>() {
+        @Override
+        protected Scriptable initialValue() {
+            return Context.getCurrentContext().initStandardObjects(null, true);
+        }
+    };
+
     public TDViewMapBlockRhino(String src) {
         this.src = src;
-        Context ctx = Context.enter();
-        try {
-            ctx.setOptimizationLevel(-1);
-            ctx.setWrapFactory(wrapFactory);
-            globalScope = ctx.initStandardObjects(null, true);
-        } finally {
-            Context.exit();
-        }
     }
 
 	@Override
@@ -88,6 +88,7 @@ class TDViewMapBlockRhino implements TDViewMapBlock {
         try {
             ctx.setOptimizationLevel(-1);
             ctx.setWrapFactory(wrapFactory);
+            Scriptable globalScope = threadScope.get();
 
             //create a place to hold results
             String placeHolder = "var map_results = [];";
@@ -32,6 +32,7 @@ import org.apache.commons.io.IOUtils;
 import com.couchbase.touchdb.TDAttachment;
 import com.couchbase.touchdb.TDBlobKey;
 import com.couchbase.touchdb.TDBlobStore;
+import com.couchbase.touchdb.TDCompactor;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDRevision;
 import com.couchbase.touchdb.TDStatus;
@@ -146,6 +147,71 @@ public class Attachments extends TouchDBTestCase {
         Set<TDBlobKey> expected2 = new HashSet<TDBlobKey>();
         expected2.add(TDBlobStore.keyForBlob(attach2));
         Assert.assertEquals(expected2, attachments.allKeys());
+
+        // A file no attachment row ever referred to is only found by a full sweep:
+        Assert.assertTrue(attachments.storeBlob("stray".getBytes(), new TDBlobKey()));
+        Assert.assertEquals(0, database.garbageCollectDeletedAttachments());
+        Assert.assertEquals(1, database.garbageCollectAllAttachments());
+        Assert.assertEquals(expected2, attachments.allKeys());
+
+        // Replacing the revision with one that has no attachments releases attach2:
+        Map<String,Object> rev4Properties = new HashMap<String,Object>();
+        rev4Properties.put("_id", rev3.getDocId());
+        rev4Properties.put("foo", 4);
+        database.putRevision(new TDRevision(rev4Properties), rev3.getRevId(), false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        Assert.assertEquals(0, database.garbageCollectDeletedAttachments());  // rev3 still has its attachment
+        status = database.compact();
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(0, attachments.count());
+    }
+
+    public void testIncrementalCompaction() throws Exception {
+        TDBlobStore attachments = database.getAttachments();
+
+        TDStatus status = new TDStatus();
+        Map<String,Object> rev1Properties = new HashMap<String,Object>();
+        rev1Properties.put("foo", 1);
+        TDRevision rev1 = database.putRevision(new TDRevision(rev1Properties), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        byte[] attach1 = "This is the body of attach1".getBytes();
+        status = database.insertAttachmentForSequenceWithNameAndType(new ByteArrayInputStream(attach1), rev1.getSequence(), "attach", "text/plain", rev1.getGeneration());
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // Two more revisions without the attachment:
+        TDRevision rev = rev1;
+        for(int i = 2; i <= 3; i++) {
+            Map<String,Object> properties = new HashMap<String,Object>();
+            properties.put("_id", rev1.getDocId());
+            properties.put("foo", i);
+            rev = database.putRevision(new TDRevision(properties), rev.getRevId(), false, status);
+            Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        }
+        Assert.assertEquals(1, attachments.count());
+
+        // With no time budget, each step does a single batch:
+        TDCompactor compactor = new TDCompactor(database);
+        int steps = 0;
+        while(!compactor.step(0)) {
+            Assert.assertTrue(compactor.getProgress() < 100);
+            ++steps;
+        }
+        Assert.assertTrue(steps >= 3);
+        Assert.assertFalse(compactor.isFailed());
+        Assert.assertEquals(100, compactor.getProgress());
+        Assert.assertEquals(2, compactor.getBodiesCleared());
+        Assert.assertEquals(1, compactor.getAttachmentsDeleted());
+        Assert.assertEquals(0, attachments.count());
+
+        TDRevision current = database.getDocumentWithIDAndRev(rev1.getDocId(), null, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+        Assert.assertEquals(rev.getRevId(), current.getRevId());
+        Assert.assertEquals(3, current.getProperties().get("foo"));
+
+        // Running it again finds nothing left to do:
+        compactor = new TDCompactor(database);
+        Assert.assertTrue(compactor.step(60000));
+        Assert.assertEquals(0, compactor.getBodiesCleared());
+        Assert.assertEquals(0, compactor.getAttachmentsDeleted());
     }
 
     @SuppressWarnings("unchecked")
@@ -17,6 +17,9 @@
 
 package com.couchbase.touchdb.testapp.tests;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -28,8 +31,11 @@ import junit.framework.Assert;
 import android.util.Log;
 
 import com.couchbase.touchdb.TDBody;
+import com.couchbase.touchdb.TDChangesIterator;
+import com.couchbase.touchdb.TDChangesOptions;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDFilterBlock;
+import com.couchbase.touchdb.TDQueryOptions;
 import com.couchbase.touchdb.TDRevision;
 import com.couchbase.touchdb.TDRevisionList;
 import com.couchbase.touchdb.TDStatus;
@@ -148,6 +154,400 @@ public class CRUDOperations extends TouchDBTestCase implements Observer {
         Assert.assertEquals(rev1, history.get(2));
     }
 
+    public void testRevisionCache() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "config");
+        properties.put("setting", "a");
+        TDStatus status = new TDStatus();
+        TDRevision rev1 = database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        EnumSet<TDDatabase.TDContentOptions> options = EnumSet.noneOf(TDDatabase.TDContentOptions.class);
+        TDRevision read = database.getDocumentWithIDAndRev("config", null, options);
+        Assert.assertEquals(rev1.getRevId(), read.getRevId());
+        long hits = database.getRevisionCacheHits();
+        read = database.getDocumentWithIDAndRev("config", null, options);
+        Assert.assertEquals(hits + 1, database.getRevisionCacheHits());
+        Assert.assertEquals("a", read.getProperties().get("setting"));
+
+        // Modifying what was returned mustn't affect the cache:
+        read.getProperties().put("setting", "modified");
+        read = database.getDocumentWithIDAndRev("config", null, options);
+        Assert.assertEquals("a", read.getProperties().get("setting"));
+
+        // Updating the document invalidates it:
+        properties.put("_rev", rev1.getRevId());
+        properties.put("setting", "b");
+        TDRevision rev2 = database.putRevision(new TDRevision(new TDBody(properties)), rev1.getRevId(), false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        read = database.getDocumentWithIDAndRev("config", null, options);
+        Assert.assertEquals(rev2.getRevId(), read.getRevId());
+        Assert.assertEquals("b", read.getProperties().get("setting"));
+    }
+
+    public void testStatementCache() {
+        TDStatus status = new TDStatus();
+        for(int batch = 0; batch < 2; batch++) {
+            if(batch == 1) {
+                // Closing discards the cached statements; they're compiled again after reopening:
+                database.close();
+                Assert.assertTrue(database.open());
+            }
+            long hits = database.getStatementCacheHits();
+            long misses = database.getStatementCacheMisses();
+            Assert.assertTrue(database.beginTransaction());
+            for(int i = 0; i < 20; i++) {
+                Map<String, Object> properties = new HashMap<String, Object>();
+                properties.put("_id", "batch" + batch + "-" + i);
+                database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+                Assert.assertEquals(TDStatus.CREATED, status.getCode());
+            }
+            Assert.assertTrue(database.endTransaction(true));
+
+            // Each statement is compiled once for the batch, then reused by the later puts:
+            long batchMisses = database.getStatementCacheMisses() - misses;
+            Assert.assertTrue(batchMisses > 0);
+            Assert.assertTrue(batchMisses < 20);
+            Assert.assertTrue(database.getStatementCacheHits() - hits >= 19);
+        }
+    }
+
+    public void testDocIDCache() throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "purgeMe");
+        TDStatus status = new TDStatus();
+        database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        long docNumericID = database.getDocNumericID("purgeMe");
+        Assert.assertTrue(docNumericID > 0);
+        long hits = database.getDocIDCacheHits();
+        Assert.assertEquals(docNumericID, database.getDocNumericID("purgeMe"));
+        Assert.assertEquals(hits + 1, database.getDocIDCacheHits());
+
+        // Purging the document forgets its mapping, so re-creating it gets a new row:
+        final Map<String,List<String>> toPurge = new HashMap<String,List<String>>();
+        toPurge.put("purgeMe", Arrays.asList("*"));
+        Assert.assertNotNull(database.purgeRevisions(toPurge));
+        Assert.assertEquals(0, database.getDocNumericID("purgeMe"));
+        database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        Assert.assertTrue(database.getDocNumericID("purgeMe") > 0);
+
+        database.close();
+        database.setWriteAheadLoggingEnabled(true);
+        Assert.assertTrue(database.open());
+        if(!database.isWriteAheadLoggingEnabled()) {
+            Log.w(TAG, "Write-ahead logging not supported on this device; skipping rest of test");
+            return;
+        }
+
+        // A snapshot that began before a purge still sees the purged row, but mustn't cache it:
+        database.beginReadSnapshot();
+        try {
+            Thread purger = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    database.purgeRevisions(toPurge);
+                }
+            });
+            purger.start();
+            purger.join(5000);
+            Assert.assertFalse("Purge was blocked by the snapshot", purger.isAlive());
+            Assert.assertTrue(database.getDocNumericID("purgeMe") > 0);
+        } finally {
+            database.endReadSnapshot();
+        }
+        Assert.assertEquals(0, database.getDocNumericID("purgeMe"));
+        database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+    }
+
+    public void testGroupCommit() throws Exception {
+        database.setGroupCommitEnabled(true);
+        database.setGroupCommitMaxBatchSize(10);
+        database.setGroupCommitMaxWait(20);
+
+        // Create a document that one of the writers will conflict with:
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "existing");
+        TDStatus status = new TDStatus();
+        database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        final int numThreads = 4;
+        final int docsPerThread = 25;
+        final List<TDRevision> created = Collections.synchronizedList(new ArrayList<TDRevision>());
+        final List<Integer> conflictStatus = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < numThreads; t++) {
+            final int threadNum = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < docsPerThread; i++) {
+                        Map<String, Object> props = new HashMap<String, Object>();
+                        props.put("thread", threadNum);
+                        props.put("i", i);
+                        TDStatus putStatus = new TDStatus();
+                        TDRevision rev = database.putRevision(new TDRevision(new TDBody(props)), null, false, putStatus);
+                        if(rev != null && putStatus.getCode() == TDStatus.CREATED) {
+                            created.add(rev);
+                        }
+                    }
+                    if(threadNum == 0) {
+                        // This one fails, but mustn't take the rest of its batch down with it:
+                        Map<String, Object> props = new HashMap<String, Object>();
+                        props.put("_id", "existing");
+                        TDStatus putStatus = new TDStatus();
+                        database.putRevision(new TDRevision(new TDBody(props)), null, false, putStatus);
+                        conflictStatus.add(putStatus.getCode());
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(numThreads * docsPerThread, created.size());
+        Assert.assertEquals(TDStatus.CONFLICT, conflictStatus.get(0).intValue());
+        Assert.assertEquals(numThreads * docsPerThread + 1, database.getDocumentCount());
+        for(TDRevision rev : created) {
+            TDRevision readRev = database.getDocumentWithIDAndRev(rev.getDocId(), rev.getRevId(), EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+            Assert.assertNotNull(readRev);
+        }
+    }
+
+    public void testNestedTransactionRollback() {
+        EnumSet<TDDatabase.TDContentOptions> noOptions = EnumSet.noneOf(TDDatabase.TDContentOptions.class);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "outer");
+        TDStatus status = new TDStatus();
+
+        Assert.assertTrue(database.beginTransaction());
+        database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        Assert.assertTrue(database.beginTransaction());
+        properties.put("_id", "inner");
+        database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        Assert.assertTrue(database.endTransaction(false));
+
+        // The outer transaction only survives where Android lets a savepoint be rolled back:
+        boolean supported = TDDatabase.isNestedRollbackSupported();
+        Log.i(TAG, "Nested rollback supported: " + supported);
+        Assert.assertEquals(supported, database.endTransaction(true));
+
+        Assert.assertNull(database.getDocumentWithIDAndRev("inner", null, noOptions));
+        Assert.assertEquals(supported, database.getDocumentWithIDAndRev("outer", null, noOptions) != null);
+    }
+
+    public void testChangesIterator() {
+        List<TDRevision> revs = new ArrayList<TDRevision>();
+        TDStatus status = new TDStatus();
+        for(int i = 0; i < 5; i++) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("i", i);
+            revs.add(database.putRevision(new TDRevision(new TDBody(properties)), null, false, status));
+        }
+        // Update the first doc, so it moves to the end of the feed:
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", revs.get(0).getDocId());
+        properties.put("i", 5);
+        TDRevision updated = database.putRevision(new TDRevision(new TDBody(properties)), revs.get(0).getRevId(), false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        TDChangesOptions options = new TDChangesOptions();
+        options.setIncludeDocs(true);
+        TDChangesIterator changes = database.changesIterator(0, options, null);
+        List<TDRevision> all = new ArrayList<TDRevision>();
+        while(changes.hasNext()) {
+            all.add(changes.next());
+        }
+        Assert.assertEquals(5, all.size());
+        long lastSequence = 0;
+        for(TDRevision rev : all) {
+            Assert.assertTrue(rev.getSequence() > lastSequence);
+            lastSequence = rev.getSequence();
+        }
+        Assert.assertEquals(updated, all.get(4));
+        Assert.assertEquals(5, all.get(4).getProperties().get("i"));
+
+        options.setLimit(2);
+        changes = database.changesIterator(revs.get(1).getSequence(), options, null);
+        Assert.assertEquals(revs.get(2), changes.next());
+        Assert.assertEquals(revs.get(3), changes.next());
+        Assert.assertFalse(changes.hasNext());
+        changes.close();
+    }
+
+    public void testWriteAheadLogging() throws Exception {
+        database.close();
+        database.setWriteAheadLoggingEnabled(true);
+        Assert.assertTrue(database.open());
+        if(!database.isWriteAheadLoggingEnabled()) {
+            Log.w(TAG, "Write-ahead logging not supported on this device; skipping test");
+            return;
+        }
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "walDoc");
+        properties.put("version", 1);
+        TDStatus status = new TDStatus();
+        final TDRevision rev1 = database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // Update the document in a transaction that's left open while another thread reads it:
+        Assert.assertTrue(database.beginTransaction());
+        properties.put("_rev", rev1.getRevId());
+        properties.put("version", 2);
+        TDRevision rev2 = database.putRevision(new TDRevision(new TDBody(properties)), rev1.getRevId(), false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        final List<TDRevision> readRevs = Collections.synchronizedList(new ArrayList<TDRevision>());
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readRevs.add(database.getDocumentWithIDAndRev("walDoc", null, EnumSet.noneOf(TDDatabase.TDContentOptions.class)));
+            }
+        });
+        reader.start();
+        reader.join(5000);
+        Assert.assertFalse("Reader was blocked by the writer", reader.isAlive());
+        Assert.assertEquals(rev1.getRevId(), readRevs.get(0).getRevId());
+        Assert.assertEquals(1, readRevs.get(0).getProperties().get("version"));
+
+        Assert.assertTrue(database.endTransaction(true));
+        TDRevision readRev = database.getDocumentWithIDAndRev("walDoc", null, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+        Assert.assertEquals(rev2.getRevId(), readRev.getRevId());
+    }
+
+    public void testReadSnapshot() throws Exception {
+        // Without write-ahead logging, a snapshot holds the main connection; it still has to nest:
+        database.beginReadSnapshot();
+        database.beginReadSnapshot();
+        Assert.assertEquals(0, database.getLastSequence());
+        database.endReadSnapshot();
+        database.endReadSnapshot();
+
+        database.close();
+        database.setWriteAheadLoggingEnabled(true);
+        Assert.assertTrue(database.open());
+        if(!database.isWriteAheadLoggingEnabled()) {
+            Log.w(TAG, "Write-ahead logging not supported on this device; skipping test");
+            return;
+        }
+
+        TDStatus status = new TDStatus();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "doc1");
+        database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        long lastSequence = database.getLastSequence();
+
+        database.beginReadSnapshot();
+        try {
+            Assert.assertEquals(lastSequence, database.getLastSequence());
+
+            // Another thread adds a document while the snapshot is open:
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, Object> properties = new HashMap<String, Object>();
+                    properties.put("_id", "doc2");
+                    database.putRevision(new TDRevision(new TDBody(properties)), null, false, new TDStatus());
+                }
+            });
+            writer.start();
+            writer.join(5000);
+            Assert.assertFalse("Writer was blocked by the snapshot", writer.isAlive());
+
+            // None of the reads in the snapshot see it:
+            Assert.assertEquals(lastSequence, database.getLastSequence());
+            Assert.assertEquals(1, database.getDocumentCount());
+            TDQueryOptions options = new TDQueryOptions();
+            options.setUpdateSeq(true);
+            Map<String,Object> allDocs = database.getAllDocs(options);
+            Assert.assertEquals(1, ((List<?>)allDocs.get("rows")).size());
+            Assert.assertEquals(lastSequence, ((Number)allDocs.get("update_seq")).longValue());
+            Assert.assertEquals(0, database.changesSince((int)lastSequence, null, null).size());
+        } finally {
+            database.endReadSnapshot();
+        }
+
+        Assert.assertEquals(lastSequence + 1, database.getLastSequence());
+        Assert.assertEquals(2, database.getDocumentCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testDocumentExpiration() throws Exception {
+        // Without the server's executor, nothing is purged in the background:
+        database.close();
+        database.setExpirationExecutor(null);
+        Assert.assertTrue(database.open());
+
+        TDStatus status = new TDStatus();
+        TDRevision revA = null;
+        for (String docId : Arrays.asList("a", "b", "c")) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("_id", docId);
+            TDRevision rev = database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+            Assert.assertEquals(TDStatus.CREATED, status.getCode());
+            if(revA == null) {
+                revA = rev;
+            }
+        }
+        long now = System.currentTimeMillis();
+        Assert.assertTrue(database.setDocumentExpiration("a", now - 1000));
+        Assert.assertTrue(database.setDocumentExpiration("b", now + 3600000));
+        Assert.assertFalse(database.setDocumentExpiration("nosuchdoc", now));
+        Assert.assertEquals(now - 1000, database.getDocumentExpiration("a"));
+        Assert.assertEquals(0, database.getDocumentExpiration("c"));
+        Assert.assertEquals(now - 1000, database.getNextExpiration());
+        Map<String,Long> next = database.getNextExpirations(10);
+        Assert.assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(next.keySet()));
+
+        final List<Map<String,Object>> notifications = new ArrayList<Map<String,Object>>();
+        Observer observer = new Observer() {
+            @Override
+            public void update(Observable observable, Object data) {
+                notifications.add((Map<String,Object>)data);
+            }
+        };
+        database.addObserver(observer);
+        Assert.assertEquals(1, database.purgeExpiredDocuments(10));
+        database.deleteObserver(observer);
+
+        Assert.assertNull(database.getDocumentWithIDAndRev("a", null, EnumSet.noneOf(TDDatabase.TDContentOptions.class)));
+        Assert.assertEquals(2, database.getDocumentCount());
+        Assert.assertEquals(1, notifications.size());
+        Assert.assertEquals(Boolean.TRUE, notifications.get(0).get("purged"));
+        TDRevision purgedRev = (TDRevision)notifications.get(0).get("rev");
+        Assert.assertEquals(revA, purgedRev);
+        Assert.assertFalse(purgedRev.isDeleted());
+        Assert.assertEquals(revA.getSequence(), purgedRev.getSequence());
+        Assert.assertEquals(revA.getSequence(), notifications.get(0).get("seq"));
+        Assert.assertEquals(Arrays.asList("b"), new ArrayList<String>(database.getNextExpirations(10).keySet()));
+        Assert.assertEquals(0, database.purgeExpiredDocuments(10));
+
+        Assert.assertTrue(database.setDocumentExpiration("b", 0));
+        Assert.assertEquals(0, database.getNextExpiration());
+
+        // With an executor, documents are purged in the background once they expire:
+        database.close();
+        database.setExpirationExecutor(server.getWorkExecutor());
+        Assert.assertTrue(database.open());
+        Assert.assertTrue(database.setDocumentExpiration("c", System.currentTimeMillis() + 200));
+        for(int i = 0; i < 50 && database.getDocumentExpiration("c") != 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertNull(database.getDocumentWithIDAndRev("c", null, EnumSet.noneOf(TDDatabase.TDContentOptions.class)));
+    }
+
     @Override
     public void update(Observable observable, Object changeObject) {
         if(observable instanceof TDDatabase) {
@@ -162,4 +562,139 @@ public class CRUDOperations extends TouchDBTestCase implements Observer {
             Assert.assertEquals(rev.getRevId(), rev.getProperties().get("_rev"));
         }
     }
+
+    public void testBinaryBodies() {
+        // A document stored as JSON before binary bodies are turned on:
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "textDoc");
+        properties.put("tag", "text");
+        TDStatus status = new TDStatus();
+        TDRevision textRev = database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        database.setBinaryBodiesEnabled(true);
+        List<Object> list = new ArrayList<Object>();
+        list.add(1);
+        list.add(3000000000L);
+        list.add(2.5);
+        list.add(null);
+        list.add("\u00e9t\u00e9");
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("tag", true);
+        list.add(nested);
+        properties = new HashMap<String, Object>();
+        properties.put("_id", "binaryDoc");
+        properties.put("tag", "binary");
+        properties.put("list", list);
+        TDRevision binaryRev = database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // Both read back the same way, from the database and then from the revision cache:
+        for(int i = 0; i < 2; i++) {
+            TDRevision readRev = database.getDocumentWithIDAndRev("binaryDoc", null, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+            Assert.assertEquals(binaryRev.getRevId(), readRev.getProperties().get("_rev"));
+            Assert.assertEquals(list, readRev.getProperties().get("list"));
+            Assert.assertTrue(new String(readRev.getBody().getJson()).contains("\"tag\":\"binary\""));
+
+            readRev = database.getDocumentWithIDAndRev("textDoc", null, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+            Assert.assertEquals(textRev.getRevId(), readRev.getProperties().get("_rev"));
+            Assert.assertEquals("text", readRev.getProperties().get("tag"));
+        }
+
+        TDChangesOptions options = new TDChangesOptions();
+        options.setIncludeDocs(true);
+        TDRevisionList changes = database.changesSince(0, options, null);
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals("binary", changes.get(1).getProperties().get("tag"));
+    }
+
+    public void testBodyCompression() {
+        database.setBodyCompressionThreshold(1000);
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 500; i++) {
+            text.append("all work and no play ");
+        }
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "bigDoc");
+        properties.put("text", text.toString());
+        TDStatus status = new TDStatus();
+        TDRevision bigRev = database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        // Small bodies aren't compressed:
+        properties = new HashMap<String, Object>();
+        properties.put("_id", "smallDoc");
+        properties.put("text", "hi");
+        database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+
+        Assert.assertEquals(1, database.getCompressedBodyCount());
+        Assert.assertTrue(database.getBodyCompressionRatio() < 0.1);
+
+        TDRevision readRev = database.getDocumentWithIDAndRev("bigDoc", null, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+        Assert.assertEquals(bigRev.getRevId(), readRev.getProperties().get("_rev"));
+        Assert.assertEquals(text.toString(), readRev.getProperties().get("text"));
+
+        TDChangesOptions options = new TDChangesOptions();
+        options.setIncludeDocs(true);
+        TDRevisionList changes = database.changesSince(0, options, null);
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals(text.toString(), changes.get(0).getProperties().get("text"));
+        Assert.assertEquals("hi", changes.get(1).getProperties().get("text"));
+    }
+
+    public void testDocumentCountAndLastSequence() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("_id", "doc1");
+        TDStatus status = new TDStatus();
+        TDRevision rev1 = database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(TDStatus.CREATED, status.getCode());
+        Assert.assertEquals(1, database.getDocumentCount());
+        Assert.assertEquals(rev1.getSequence(), database.getLastSequence());
+
+        Assert.assertTrue(database.beginTransaction());
+        properties.put("_id", "doc2");
+        TDRevision rev2 = database.putRevision(new TDRevision(new TDBody(properties)), null, false, status);
+        Assert.assertEquals(2, database.getDocumentCount());
+        Assert.assertEquals(rev2.getSequence(), database.getLastSequence());
+
+        // Delete doc1 in a nested transaction, then roll just that back:
+        Assert.assertTrue(database.beginTransaction());
+        TDRevision del = new TDRevision("doc1", null, true);
+        del = database.putRevision(del, rev1.getRevId(), false, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(1, database.getDocumentCount());
+        Assert.assertEquals(del.getSequence(), database.getLastSequence());
+        Assert.assertTrue(database.endTransaction(false));
+        Assert.assertEquals(2, database.getDocumentCount());
+        Assert.assertEquals(rev2.getSequence(), database.getLastSequence());
+
+        // Roll back the outer transaction too:
+        Assert.assertTrue(database.endTransaction(false));
+        Assert.assertEquals(1, database.getDocumentCount());
+        Assert.assertEquals(rev1.getSequence(), database.getLastSequence());
+
+        // Deleting one of two conflicting revisions leaves the document alive:
+        List<String> history = new ArrayList<String>();
+        history.add("2-zzz");
+        history.add("1-zzz");
+        properties.put("_id", "doc1");
+        properties.put("_rev", "2-zzz");
+        TDRevision conflict = new TDRevision("doc1", "2-zzz", false);
+        conflict.setProperties(properties);
+        Assert.assertEquals(TDStatus.CREATED, database.forceInsert(conflict, history, null).getCode());
+        database.putRevision(new TDRevision("doc1", null, true), "2-zzz", false, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(1, database.getDocumentCount());
+        database.putRevision(new TDRevision("doc1", null, true), rev1.getRevId(), false, status);
+        Assert.assertEquals(TDStatus.OK, status.getCode());
+        Assert.assertEquals(0, database.getDocumentCount());
+
+        // The values read back from the database agree:
+        long lastSequence = database.getLastSequence();
+        database.close();
+        Assert.assertTrue(database.open());
+        Assert.assertEquals(0, database.getDocumentCount());
+        Assert.assertEquals(lastSequence, database.getLastSequence());
+    }
 }
@@ -18,6 +18,7 @@
 package com.couchbase.touchdb.testapp.tests;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -115,6 +116,138 @@ public class RevTree extends TouchDBTestCase {
         Assert.assertEquals(changes, expectedChanges);
     }
 
+    public void testRevTreeCache() {
+        TDRevision rev = new TDRevision("doc", "3-three", false);
+        Map<String, Object> revProperties = new HashMap<String, Object>();
+        revProperties.put("_id", rev.getDocId());
+        revProperties.put("_rev", rev.getRevId());
+        rev.setProperties(revProperties);
+        List<String> revHistory = new ArrayList<String>();
+        revHistory.add("3-three");
+        revHistory.add("2-two");
+        revHistory.add("1-one");
+        Assert.assertEquals(201, database.forceInsert(rev, revHistory, null).getCode());
+        verifyHistory(database, rev, revHistory);
+
+        // The second lookup comes from the cache:
+        long hits = database.getRevTreeCacheHits();
+        verifyHistory(database, rev, revHistory);
+        Assert.assertEquals(hits + 1, database.getRevTreeCacheHits());
+
+        // Add a conflicting branch; the cached tree is updated, not discarded:
+        TDRevision conflict = new TDRevision("doc", "3-zzz", false);
+        Map<String, Object> conflictProperties = new HashMap<String, Object>();
+        conflictProperties.put("_id", conflict.getDocId());
+        conflictProperties.put("_rev", conflict.getRevId());
+        conflict.setProperties(conflictProperties);
+        List<String> conflictHistory = new ArrayList<String>();
+        conflictHistory.add("3-zzz");
+        conflictHistory.add("2-two");
+        conflictHistory.add("1-one");
+        Assert.assertEquals(201, database.forceInsert(conflict, conflictHistory, null).getCode());
+
+        hits = database.getRevTreeCacheHits();
+        verifyHistory(database, conflict, conflictHistory);
+        Assert.assertEquals(hits + 1, database.getRevTreeCacheHits());
+        List<String> conflicts = database.getConflictingRevisionIDsOfDocID("doc");
+        Assert.assertEquals(1, conflicts.size());
+        Assert.assertEquals("3-three", conflicts.get(0));
+
+        List<String> attsSince = new ArrayList<String>();
+        attsSince.add("1-one");
+        attsSince.add("2-two");
+        attsSince.add("4-nope");
+        Assert.assertEquals("2-two", database.findCommonAncestorOf(rev, attsSince));
+    }
+
+    public void testPruneConflictingBranch() {
+        Assert.assertTrue(database.setRevsLimit(3));
+
+        // A short conflicting branch, 3-b:
+        TDRevision conflict = new TDRevision("doc", "3-b", false);
+        Map<String, Object> conflictProperties = new HashMap<String, Object>();
+        conflictProperties.put("_id", conflict.getDocId());
+        conflictProperties.put("_rev", conflict.getRevId());
+        conflict.setProperties(conflictProperties);
+        Assert.assertEquals(201, database.forceInsert(conflict, Arrays.asList("3-b", "2-b", "1-a"), null).getCode());
+        // Caches the tree, which is then pruned along with the database:
+        Assert.assertEquals(3, database.getRevisionHistory(conflict).size());
+
+        // ...and a long one, up to 7-a:
+        TDRevision rev = null;
+        for(int generation = 2; generation <= 7; generation++) {
+            rev = new TDRevision("doc", generation + "-a", false);
+            Map<String, Object> revProperties = new HashMap<String, Object>();
+            revProperties.put("_id", rev.getDocId());
+            revProperties.put("_rev", rev.getRevId());
+            rev.setProperties(revProperties);
+            List<String> revHistory = new ArrayList<String>();
+            for(int i = generation; i >= 1; i--) {
+                revHistory.add(i + "-a");
+            }
+            Assert.assertEquals(201, database.forceInsert(rev, revHistory, null).getCode());
+        }
+
+        // Each branch keeps its own last three generations, in the cached tree and in the database:
+        for(int i = 0; i < 2; i++) {
+            if(i == 1) {
+                database.close();
+                Assert.assertTrue(database.open());
+            }
+            List<TDRevision> history = database.getRevisionHistory(rev);
+            Assert.assertEquals(3, history.size());
+            Assert.assertEquals("5-a", history.get(2).getRevId());
+
+            history = database.getRevisionHistory(conflict);
+            Assert.assertEquals(3, history.size());
+            Assert.assertEquals("3-b", history.get(0).getRevId());
+            Assert.assertEquals("2-b", history.get(1).getRevId());
+            Assert.assertEquals("1-a", history.get(2).getRevId());
+        }
+    }
+
+    public void testFindMissingRevisions() {
+        TDRevision rev = new TDRevision("doc1", "2-two", false);
+        Map<String, Object> revProperties = new HashMap<String, Object>();
+        revProperties.put("_id", rev.getDocId());
+        revProperties.put("_rev", rev.getRevId());
+        rev.setProperties(revProperties);
+        List<String> revHistory = new ArrayList<String>();
+        revHistory.add("2-two");
+        revHistory.add("1-one");
+        Assert.assertEquals(201, database.forceInsert(rev, revHistory, null).getCode());
+
+        TDRevisionList revs = new TDRevisionList();
+        revs.add(new TDRevision("doc1", "1-one", false));
+        revs.add(new TDRevision("doc1", "3-three", false));
+        // A revID that exists, but in a different document, is still missing:
+        revs.add(new TDRevision("doc2", "2-two", false));
+        Assert.assertTrue(database.findMissingRevisions(revs));
+        Assert.assertEquals(2, revs.size());
+        Assert.assertEquals(new TDRevision("doc1", "3-three", false), revs.get(0));
+        Assert.assertEquals(new TDRevision("doc2", "2-two", false), revs.get(1));
+
+        // Enough docIDs that they can't all be passed as SQL parameters:
+        List<String> docIDs = new ArrayList<String>();
+        for(int i = 0; i < 2000; i++) {
+            docIDs.add("nonexistent-" + i);
+        }
+        docIDs.add("doc1");
+        Map<String, Object> result = database.getDocsWithIDs(docIDs, null);
+        List<?> rows = (List<?>)result.get("rows");
+        Assert.assertEquals(1, rows.size());
+
+        // And enough revisions that they're looked up in several chunks:
+        revs = new TDRevisionList();
+        for(int i = 0; i < 1000; i++) {
+            revs.add(new TDRevision("nonexistent-" + i, "1-one", false));
+        }
+        revs.add(new TDRevision("doc1", "2-two", false));
+        Assert.assertTrue(database.findMissingRevisions(revs));
+        Assert.assertEquals(1000, revs.size());
+        Assert.assertFalse(revs.contains(new TDRevision("doc1", "2-two", false)));
+    }
+
     private static void verifyHistory(TDDatabase db, TDRevision rev, List<String> history) {
         TDRevision gotRev = db.getDocumentWithIDAndRev(rev.getDocId(), null, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
         Assert.assertEquals(rev, gotRev);
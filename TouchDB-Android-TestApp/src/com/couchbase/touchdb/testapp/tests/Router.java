@@ -1,6 +1,7 @@
 package com.couchbase.touchdb.testapp.tests;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -363,6 +364,101 @@ public class Router extends TouchDBTestCase {
         Assert.assertEquals(4, result.get("total_rows"));
     }
 
+    public void testStaleViews() throws Exception {
+        send(server, "PUT", "/db", TDStatus.CREATED, null);
+
+        Map<String,Object> doc1 = new HashMap<String,Object>();
+        doc1.put("message", "hello");
+        sendBody(server, "PUT", "/db/doc1", doc1, TDStatus.CREATED, null);
+
+        TDDatabase db = server.getDatabaseNamed("db");
+        TDView view = db.getViewNamed("design/view");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("message"), null);
+            }
+        }, null, "1");
+
+        TDURLConnection conn = sendRequest(server, "GET", "/db/_design/design/_view/view", null, null);
+        Map<String,Object> result = (Map<String,Object>)parseJSONResponse(conn);
+        Assert.assertEquals(1, result.get("total_rows"));
+
+        Map<String,Object> doc2 = new HashMap<String,Object>();
+        doc2.put("message", "guten tag");
+        sendBody(server, "PUT", "/db/doc2", doc2, TDStatus.CREATED, null);
+
+        // stale=ok doesn't update the index:
+        conn = sendRequest(server, "GET", "/db/_design/design/_view/view?stale=ok", null, null);
+        Assert.assertEquals(TDStatus.OK, conn.getResponseCode());
+        result = (Map<String,Object>)parseJSONResponse(conn);
+        Assert.assertEquals(1, result.get("total_rows"));
+        Assert.assertEquals(1, view.getLag());
+
+        // stale=update_after returns the old rows, then updates it in the background:
+        conn = sendRequest(server, "GET", "/db/_design/design/_view/view?stale=update_after", null, null);
+        result = (Map<String,Object>)parseJSONResponse(conn);
+        Assert.assertEquals(1, result.get("total_rows"));
+        long timeout = System.currentTimeMillis() + 10000;
+        while(view.getLag() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, view.getLag());
+        conn = sendRequest(server, "GET", "/db/_design/design/_view/view?stale=ok", null, null);
+        result = (Map<String,Object>)parseJSONResponse(conn);
+        Assert.assertEquals(2, result.get("total_rows"));
+
+        send(server, "GET", "/db/_design/design/_view/view?stale=sometimes", TDStatus.BAD_REQUEST, null);
+    }
+
+    public void testRevsLimit() {
+        send(server, "PUT", "/db", TDStatus.CREATED, null);
+        send(server, "GET", "/db/_revs_limit", TDStatus.OK, TDDatabase.DEFAULT_REVS_LIMIT);
+        sendBody(server, "PUT", "/db/_revs_limit", 3, TDStatus.OK, null);
+        send(server, "GET", "/db/_revs_limit", TDStatus.OK, 3);
+        sendBody(server, "PUT", "/db/_revs_limit", "lots", TDStatus.BAD_REQUEST, null);
+
+        Map<String,Object> doc = new HashMap<String,Object>();
+        doc.put("message", "hello");
+        String revID = null;
+        for(int i = 0; i < 5; i++) {
+            if(revID != null) {
+                doc.put("_rev", revID);
+            }
+            Map<String,Object> result = (Map<String,Object>)sendBody(server, "PUT", "/db/doc", doc, TDStatus.CREATED, null);
+            revID = (String)result.get("rev");
+        }
+        Assert.assertTrue(revID.startsWith("5-"));
+
+        // Only the last three generations are left:
+        Map<String,Object> result = (Map<String,Object>)send(server, "GET", "/db/doc?revs=true", TDStatus.OK, null);
+        Map<String,Object> revisions = (Map<String,Object>)result.get("_revisions");
+        Assert.assertEquals(5, revisions.get("start"));
+        Assert.assertEquals(3, ((List<Object>)revisions.get("ids")).size());
+    }
+
+    public void testPurge() {
+        send(server, "PUT", "/db", TDStatus.CREATED, null);
+        Map<String,Object> doc = new HashMap<String,Object>();
+        doc.put("message", "hello");
+        Map<String,Object> result = (Map<String,Object>)sendBody(server, "PUT", "/db/doc", doc, TDStatus.CREATED, null);
+        String revID = (String)result.get("rev");
+
+        Map<String,Object> request = new HashMap<String,Object>();
+        request.put("doc", Arrays.asList(revID));
+        Map<String,Object> purged = new HashMap<String,Object>();
+        purged.put("doc", Arrays.asList(revID));
+        Map<String,Object> expected = new HashMap<String,Object>();
+        expected.put("purge_seq", 1);
+        expected.put("purged", purged);
+        sendBody(server, "POST", "/db/_purge", request, TDStatus.OK, expected);
+        send(server, "GET", "/db/doc", TDStatus.NOT_FOUND, null);
+
+        request.put("doc", "*");
+        sendBody(server, "POST", "/db/_purge", request, TDStatus.BAD_REQUEST, null);
+    }
+
     public void testPostBulkDocs() {
         send(server, "PUT", "/db", TDStatus.CREATED, null);
 
@@ -391,6 +487,52 @@ public class Router extends TouchDBTestCase {
         Assert.assertNotNull(bulk_result.get(1).get("rev"));
     }
 
+    public void testPostBulkDocsUpdates() {
+        send(server, "PUT", "/db", TDStatus.CREATED, null);
+
+        Map<String,Object> doc1 = new HashMap<String,Object>();
+        doc1.put("_id", "bulk1");
+        Map<String,Object> doc2 = new HashMap<String,Object>();
+        doc2.put("_id", "bulk2");
+        List<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
+        list.add(doc1);
+        list.add(doc2);
+        Map<String,Object> bodyObj = new HashMap<String,Object>();
+        bodyObj.put("docs", list);
+        List<Map<String,Object>> bulk_result  =
+                (ArrayList<Map<String,Object>>)sendBody(server, "POST", "/db/_bulk_docs", bodyObj, TDStatus.CREATED, null);
+        String rev1 = (String)bulk_result.get(0).get("rev");
+
+        // Update the first doc, and try to recreate the second one without its revision:
+        doc1.put("_rev", rev1);
+        doc1.put("updated", true);
+        bulk_result = (ArrayList<Map<String,Object>>)sendBody(server, "POST", "/db/_bulk_docs?all_or_nothing=false", bodyObj, TDStatus.CREATED, null);
+        Assert.assertEquals(2, bulk_result.size());
+        Assert.assertEquals(true, bulk_result.get(0).get("ok"));
+        Assert.assertTrue(((String)bulk_result.get(0).get("rev")).startsWith("2-"));
+        Assert.assertEquals("conflict", bulk_result.get(1).get("error"));
+        Map<String,Object> readDoc1 = (Map<String,Object>)send(server, "GET", "/db/bulk1", TDStatus.OK, null);
+        Assert.assertEquals(true, readDoc1.get("updated"));
+
+        // Insert existing revisions with new_edits=false:
+        Map<String,Object> revisions = new HashMap<String,Object>();
+        revisions.put("start", 3);
+        revisions.put("ids", Arrays.asList("cafe", "babe", "f00d"));
+        Map<String,Object> doc3 = new HashMap<String,Object>();
+        doc3.put("_id", "bulk3");
+        doc3.put("_rev", "3-cafe");
+        doc3.put("_revisions", revisions);
+        list = new ArrayList<Map<String,Object>>();
+        list.add(doc3);
+        bodyObj = new HashMap<String,Object>();
+        bodyObj.put("docs", list);
+        bulk_result = (ArrayList<Map<String,Object>>)sendBody(server, "POST", "/db/_bulk_docs?new_edits=false", bodyObj, TDStatus.CREATED, null);
+        Assert.assertEquals(1, bulk_result.size());
+        Assert.assertEquals(true, bulk_result.get(0).get("ok"));
+        Map<String,Object> readDoc3 = (Map<String,Object>)send(server, "GET", "/db/bulk3", TDStatus.OK, null);
+        Assert.assertEquals("3-cafe", readDoc3.get("_rev"));
+    }
+
     public void testPostKeysView() {
     	send(server, "PUT", "/db", TDStatus.CREATED, null);
 
@@ -1,10 +1,18 @@
 package com.couchbase.touchdb.testapp.tests;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
 
 import junit.framework.Assert;
 
 import com.couchbase.touchdb.TDDatabase;
+import com.couchbase.touchdb.TDServer;
+import com.couchbase.touchdb.TDStatus;
+import com.couchbase.touchdb.TDView;
+import com.couchbase.touchdb.TDViewMapBlock;
+import com.couchbase.touchdb.TDViewMapEmitBlock;
 
 public class Server extends TouchDBTestCase {
 
@@ -39,4 +47,60 @@ public class Server extends TouchDBTestCase {
         server.deleteDatabaseNamed("foo");
     }
 
+    public void testIdleDatabases() throws Exception {
+        database.acquire();  // the test case's own database has to stay open
+        TDDatabase db = server.getDatabaseNamed("idle");
+        Assert.assertTrue(db.open());
+        TDView view = db.getViewNamed("aview");
+        TDViewMapBlock mapBlock = new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("_id"), null);
+            }
+        };
+        view.setMapReduceBlocks(mapBlock, null, "1");
+
+        // Not idle long enough yet:
+        server.setIdleDatabaseTimeout(60000);
+        Assert.assertEquals(0, server.closeIdleDatabases());
+        Assert.assertTrue(db.isOpen());
+
+        // Timeouts are never shorter than MIN_IDLE_TIME:
+        server.setIdleDatabaseTimeout(1);
+        Assert.assertEquals(TDServer.MIN_IDLE_TIME, server.getIdleDatabaseTimeout());
+
+        // A database that's acquired, or has an observer, is never closed:
+        Observer observer = new Observer() {
+            @Override
+            public void update(Observable observable, Object data) {
+            }
+        };
+        db.acquire();
+        db.addObserver(observer);
+        Thread.sleep(TDServer.MIN_IDLE_TIME + 100);
+        Assert.assertEquals(0, server.closeIdleDatabases());
+        Assert.assertTrue(db.isOpen());
+        db.release();
+        Assert.assertEquals(0, server.closeIdleDatabases());
+        Assert.assertTrue(db.isOpen());
+        db.deleteObserver(observer);
+
+        // (The server's own idle check may get to it first)
+        server.closeIdleDatabases();
+        Assert.assertFalse(db.isOpen());
+        Assert.assertFalse(server.allOpenDatabases().contains(db));
+
+        // Asking for it again reopens it, with its view still registered:
+        Assert.assertSame(db, server.getDatabaseNamed("idle"));
+        Assert.assertTrue(db.isOpen());
+        Assert.assertSame(view, db.getExistingViewNamed("aview"));
+        Assert.assertSame(mapBlock, view.getMapBlock());
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+
+        server.setIdleDatabaseTimeout(0);
+        server.deleteDatabaseNamed("idle");
+        database.release();
+    }
+
 }
@@ -18,17 +18,24 @@
 package com.couchbase.touchdb.testapp.tests;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import junit.framework.Assert;
 import android.util.Log;
 
+import com.couchbase.touchdb.TDBody;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDQueryOptions;
 import com.couchbase.touchdb.TDRevision;
 import com.couchbase.touchdb.TDStatus;
+import com.couchbase.touchdb.TDStoredDocument;
 import com.couchbase.touchdb.TDView;
 import com.couchbase.touchdb.TDView.TDViewCollation;
 import com.couchbase.touchdb.TDViewMapBlock;
@@ -236,6 +243,193 @@ public class Views extends TouchDBTestCase {
         view.removeIndex();
     }
 
+    public void testParallelViewIndex() {
+        for(int i = 0; i < 300; i++) {
+            Map<String,Object> doc = new HashMap<String,Object>();
+            doc.put("_id", String.format("doc-%03d", i));
+            doc.put("key", String.format("key-%03d", i));
+            doc.put("n", i);
+            putDoc(database, doc);
+        }
+
+        TDViewMapBlock mapBlock = new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                emitter.emit(document.get("key"), document.get("n"));
+                if(((Integer)document.get("n")) % 3 == 0) {
+                    emitter.emit(Arrays.asList(document.get("key"), document.get("_id")), null);
+                }
+            }
+        };
+        TDView serialView = database.getViewNamed("serial");
+        serialView.setMapReduceBlocks(mapBlock, null, "1");
+        TDView parallelView = database.getViewNamed("parallel");
+        parallelView.setMapReduceBlocks(mapBlock, null, "1");
+        parallelView.setIndexWorkers(4);
+
+        Assert.assertEquals(TDStatus.OK, serialView.updateIndex().getCode());
+        Assert.assertEquals(TDStatus.OK, parallelView.updateIndex().getCode());
+        List<Map<String,Object>> serialDump = serialView.dump();
+        Assert.assertEquals(400, serialDump.size());
+        Assert.assertEquals(serialDump, parallelView.dump());
+    }
+
+    public void testViewIndexManyEmits() {
+        putDocs(database);
+        TDView view = database.getViewNamed("tokens");
+        view.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                // More rows than fit in one insert batch:
+                for(int i = 0; i < 300; i++) {
+                    emitter.emit(Arrays.asList(document.get("key"), i), (i % 2 == 0) ? null : "odd");
+                }
+            }
+        }, null, "1");
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+
+        List<Map<String,Object>> dumpResult = view.dump();
+        Assert.assertEquals(5 * 300, dumpResult.size());
+        Assert.assertEquals("[\"five\",0]", dumpResult.get(0).get("key"));
+        Assert.assertEquals("null", dumpResult.get(0).get("value"));
+        Assert.assertEquals("[\"five\",1]", dumpResult.get(1).get("key"));
+        Assert.assertEquals("\"odd\"", dumpResult.get(1).get("value"));
+    }
+
+    public void testUpdateIndexes() {
+        putDocs(database);
+
+        final List<Map<String,Object>> docsMappedByA = new ArrayList<Map<String,Object>>();
+        final List<Map<String,Object>> docsMappedByB = new ArrayList<Map<String,Object>>();
+        TDView viewA = database.getViewNamed("design/a");
+        viewA.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                docsMappedByA.add(document);
+                emitter.emit(document.get("key"), null);
+            }
+        }, null, "1");
+        TDView viewB = database.getViewNamed("design/b");
+        viewB.setMapReduceBlocks(new TDViewMapBlock() {
+
+            @Override
+            public void map(Map<String, Object> document, TDViewMapEmitBlock emitter) {
+                docsMappedByB.add(document);
+                emitter.emit(Arrays.asList(document.get("key"), 1), null);
+            }
+        }, null, "1");
+        database.getViewNamed("other/c");
+        Assert.assertEquals(TDStatus.OK, viewA.updateIndex().getCode());
+        Assert.assertEquals(5, docsMappedByA.size());
+
+        Map<String,Object> dict6 = new HashMap<String,Object>();
+        dict6.put("_id", "66666");
+        dict6.put("key", "six");
+        putDoc(database, dict6);
+        Map<String,Object> dict7 = new HashMap<String,Object>();
+        dict7.put("_id", "77777");
+        dict7.put("key", "seven");
+        putDoc(database, dict7);
+
+        // One pass: A only gets the new docs, B gets them all, and both get the same parsed documents:
+        docsMappedByA.clear();
+        List<TDView> views = database.getViewsOfDesignDoc("design");
+        Assert.assertEquals(2, views.size());
+        Assert.assertEquals(TDStatus.OK, database.updateIndexes(views).getCode());
+        Assert.assertEquals(2, docsMappedByA.size());
+        Assert.assertEquals(7, docsMappedByB.size());
+        for (Map<String,Object> doc : docsMappedByA) {
+            boolean shared = false;
+            for (Map<String,Object> docB : docsMappedByB) {
+                shared |= (doc == docB);
+            }
+            Assert.assertTrue(shared);
+        }
+
+        Assert.assertEquals(7, viewA.dump().size());
+        Assert.assertEquals(7, viewB.dump().size());
+        Assert.assertEquals(database.getLastSequence(), viewA.getLastSequenceIndexed());
+        Assert.assertEquals(database.getLastSequence(), viewB.getLastSequenceIndexed());
+        Assert.assertEquals(TDStatus.NOT_MODIFIED, database.updateIndexes(views).getCode());
+    }
+
+    public void testBackgroundIndexing() throws Exception {
+        TDView view = createView(database);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            database.setAutoIndexExecutor(executor);
+
+            // More sequences than the background indexer does in one batch:
+            for(int i = 0; i < 600; i++) {
+                Map<String,Object> doc = new HashMap<String,Object>();
+                doc.put("key", String.format("key-%03d", i));
+                putDoc(database, doc);
+            }
+
+            long timeout = System.currentTimeMillis() + 30000;
+            while(view.getLag() > 0 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(0, view.getLag());
+            Assert.assertEquals(600, view.dump().size());
+            Assert.assertEquals(TDStatus.NOT_MODIFIED, view.updateIndex().getCode());
+        } finally {
+            database.setAutoIndexExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+    public void testViewIndexAfterPurge() {
+        putDocs(database);
+
+        // Add a conflicting branch that wins, so the original revision never gets indexed:
+        Map<String,Object> properties = new HashMap<String,Object>();
+        properties.put("_id", "11111");
+        properties.put("_rev", "2-zzz");
+        properties.put("key", "uno");
+        TDRevision conflict = new TDRevision("11111", "2-zzz", false);
+        conflict.setProperties(properties);
+        Assert.assertEquals(TDStatus.CREATED, database.forceInsert(conflict, Arrays.asList("2-zzz", "1-zzz"), null).getCode());
+
+        TDView view = createView(database);
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        List<Map<String,Object>> dumpResult = view.dump();
+        Assert.assertEquals(5, dumpResult.size());
+        Assert.assertEquals("\"uno\"", dumpResult.get(4).get("key"));
+
+        // Purging a whole document removes its rows:
+        Map<String,List<String>> toPurge = new HashMap<String,List<String>>();
+        toPurge.put("22222", Arrays.asList("*"));
+        toPurge.put("99999", Arrays.asList("*"));
+        Map<String,List<String>> purged = database.purgeRevisions(toPurge);
+        Assert.assertEquals(Arrays.asList("*"), purged.get("22222"));
+        Assert.assertNull(purged.get("99999"));
+        Assert.assertEquals(1, database.getPurgeSequence());
+        Assert.assertNull(database.getDocumentWithIDAndRev("22222", null, EnumSet.noneOf(TDDatabase.TDContentOptions.class)));
+        Assert.assertEquals(4, database.getDocumentCount());
+        Assert.assertTrue(view.isStale());
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        Assert.assertFalse(view.isStale());
+        Assert.assertEquals(4, view.dump().size());
+
+        // Purging the winning branch takes its ancestor along; the older revision wins again, so it
+        // has to be indexed even though its sequence is old:
+        toPurge.clear();
+        toPurge.put("11111", Arrays.asList("2-zzz"));
+        purged = database.purgeRevisions(toPurge);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("2-zzz", "1-zzz")), new HashSet<String>(purged.get("11111")));
+        Assert.assertEquals(2, database.getPurgeSequence());
+        Assert.assertEquals(4, database.getDocumentCount());
+        Assert.assertEquals(TDStatus.OK, view.updateIndex().getCode());
+        dumpResult = view.dump();
+        Log.v(TAG, "View dump: " + dumpResult);
+        Assert.assertEquals(4, dumpResult.size());
+        Assert.assertEquals("\"one\"", dumpResult.get(2).get("key"));
+    }
+
     public void testViewQuery() {
 
         putDocs(database);
@@ -421,6 +615,37 @@ public class Views extends TouchDBTestCase {
         Assert.assertEquals(expectedQueryResult, query);
     }
 
+    public void testAllDocsStreamDocs() {
+        Map<String,Object> textDoc = new HashMap<String,Object>();
+        textDoc.put("_id", "text");
+        textDoc.put("key", "one");
+        TDRevision textRev = putDoc(database, textDoc);
+        database.setBinaryBodiesEnabled(true);
+        Map<String,Object> binaryDoc = new HashMap<String,Object>();
+        binaryDoc.put("_id", "binary");
+        binaryDoc.put("key", "two");
+        TDRevision binaryRev = putDoc(database, binaryDoc);
+
+        TDQueryOptions options = new TDQueryOptions();
+        options.setIncludeDocs(true);
+        Map<String,Object> parsed = database.getAllDocs(options);
+        options.setStreamDocs(true);
+        Map<String,Object> streamed = database.getAllDocs(options);
+
+        // Streamed docs serialize to the same JSON the parsed ones do:
+        List<Map<String,Object>> rows = (List<Map<String,Object>>)streamed.get("rows");
+        Assert.assertTrue(rows.get(0).get("doc") instanceof TDStoredDocument);
+        Object reparsed = new TDBody(new TDBody(streamed).getJson()).getObject();
+        Assert.assertEquals(parsed, reparsed);
+
+        Map<String,Object> doc = ((TDStoredDocument)rows.get(0).get("doc")).getProperties();
+        Assert.assertEquals(binaryRev.getRevId(), doc.get("_rev"));
+        Assert.assertEquals("two", doc.get("key"));
+        doc = ((TDStoredDocument)rows.get(1).get("doc")).getProperties();
+        Assert.assertEquals(textRev.getRevId(), doc.get("_rev"));
+        Assert.assertEquals("one", doc.get("key"));
+    }
+
     private Map<String, Object> createExpectedQueryResult(List<Object> rows, int offset) {
         Map<String, Object> result = new HashMap<String, Object>();
         result.put("rows", rows);
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Keeps a database's registered views indexed in the background, so queries don't have to wait
+ * for the index to be updated.
+ *
+ * It watches the database's change notifications. Once changes stop coming for DEBOUNCE_DELAY
+ * (or MAX_DELAY after the first, if they keep coming), it updates every view that has a map
+ * block, at background thread priority. Each batch covers at most BATCH_SEQUENCES sequences, so
+ * the write transaction it holds never keeps writers waiting for long.
+ */
+class TDBackgroundIndexer implements Observer {
+
+    static final long DEBOUNCE_DELAY = 500;      // milliseconds
+    static final long MAX_DELAY = 5000;          // milliseconds
+    static final int BATCH_SEQUENCES = 500;
+    static final long BATCH_INTERVAL = 50;       // milliseconds
+
+    private final TDDatabase db;
+    private final ScheduledExecutorService workExecutor;
+    private ScheduledFuture<?> scheduled;
+    private long firstChangeTime;  // of the changes not indexed yet; 0 if there are none
+    private boolean stopped;
+
+    TDBackgroundIndexer(TDDatabase db, ScheduledExecutorService workExecutor) {
+        this.db = db;
+        this.workExecutor = workExecutor;
+    }
+
+    /** Starts watching the database, and indexes whatever's already waiting. */
+    void start() {
+        db.addObserver(this);
+        changed();
+    }
+
+    void stop() {
+        synchronized(this) {
+            stopped = true;
+            if(scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+        }
+        db.deleteObserver(this);
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        changed();
+    }
+
+    // Called on the writer's thread, so it only (re)schedules the work.
+    private synchronized void changed() {
+        if(stopped) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if(firstChangeTime == 0) {
+            firstChangeTime = now;
+        }
+        long delay = Math.min(DEBOUNCE_DELAY, firstChangeTime + MAX_DELAY - now);
+        schedule(Math.max(0, delay));
+    }
+
+    private synchronized void schedule(long delay) {
+        if(scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = workExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                indexBatch();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void indexBatch() {
+        boolean more = false;
+        synchronized(this) {
+            scheduled = null;
+            firstChangeTime = 0;
+            if(stopped) {
+                return;
+            }
+        }
+        if(!db.beginBackgroundWork()) {
+            return;
+        }
+        try {
+            List<TDView> views = db.getViewsWithMapBlocks();
+            if(views.isEmpty()) {
+                return;
+            }
+            int priority = Process.getThreadPriority(Process.myTid());
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                TDStatus status = TDView.updateIndexes(views, BATCH_SEQUENCES);
+                if(!status.isSuccessful()) {
+                    // The next change will try again
+                    Log.w(TDDatabase.TAG, "Background indexing of " + db.getName() + " failed: " + status.getCode());
+                    return;
+                }
+                for (TDView view : views) {
+                    more |= view.isStale();
+                }
+            } finally {
+                Process.setThreadPriority(priority);
+            }
+        } finally {
+            db.endBackgroundWork();
+        }
+        if(more) {
+            synchronized(this) {
+                if(!stopped && scheduled == null) {
+                    schedule(BATCH_INTERVAL);
+                }
+            }
+        }
+    }
+}
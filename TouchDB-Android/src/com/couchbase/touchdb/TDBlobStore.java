@@ -271,13 +271,18 @@ public class TDBlobStore {
     }
 
     public int deleteBlobsExceptWithKeys(List<TDBlobKey> keysToKeep) {
+        // A set, so checking each file isn't a linear search:
+        Set<TDBlobKey> keys = new HashSet<TDBlobKey>(keysToKeep);
         int numDeleted = 0;
         File file = new File(path);
         File[] contents = file.listFiles();
+        if(contents == null) {
+            return -1;
+        }
         for (File attachment : contents) {
             TDBlobKey attachmentKey = new TDBlobKey();
             getKeyForFilename(attachmentKey, attachment.getPath());
-            if(!keysToKeep.contains(attachmentKey)) {
+            if(!keys.contains(attachmentKey)) {
                 boolean result = attachment.delete();
                 if(result) {
                     ++numDeleted;
@@ -289,4 +294,12 @@ public class TDBlobStore {
         }
         return numDeleted;
     }
+
+    /**
+     * Deletes the blob with the given key, returning true if there was one to delete.
+     */
+    public boolean deleteBlobForKey(TDBlobKey key) {
+        File file = new File(pathForKey(key));
+        return file.delete();
+    }
 }
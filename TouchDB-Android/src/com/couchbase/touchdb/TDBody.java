@@ -45,6 +45,13 @@ public class TDBody {
         this.object = array;
     }
 
+    /**
+     * A body that's serialized straight from its stored form, and only parsed if its properties are needed.
+     */
+    public TDBody(TDStoredDocument document) {
+        this.object = document;
+    }
+
     public static TDBody bodyWithProperties(Map<String,Object> properties) {
         TDBody result = new TDBody(properties);
         return result;
@@ -97,6 +104,10 @@ public class TDBody {
     }
 
     public Object getObject() {
+        if(object instanceof TDStoredDocument) {
+            object = ((TDStoredDocument)object).getProperties();
+            error = (object == null);
+        }
         if(object == null && !error) {
             try {
                 if(json != null) {
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+/**
+ * Iterates over the changes since a sequence, reading them from a database cursor one at a time
+ * rather than loading them all into memory. Returned by TDDatabase.changesIterator().
+ *
+ * Revision bodies (for include_docs, or for the filter) are only loaded for rows that are
+ * actually considered. The iterator must be used, and closed, on the thread that created it.
+ */
+public class TDChangesIterator implements Iterator<TDRevision> {
+
+    private TDDatabase db;
+    private Cursor cursor;
+    private final TDChangesOptions options;
+    private final TDFilterBlock filter;
+    private final boolean includeDocs;
+    private final boolean skipConflicts;
+    private int remaining;
+    private long lastDocId = 0;
+    private TDRevision next;
+
+    /**
+     * @param cursor  Rows of (sequence, doc_id, docid, revid, deleted[, json])
+     * @param skipConflicts  If true, the cursor is ordered by doc_id and only the first row of each document is returned
+     */
+    TDChangesIterator(TDDatabase db, Cursor cursor, TDChangesOptions options, TDFilterBlock filter, boolean includeDocs, boolean skipConflicts) {
+        this.db = db;
+        this.cursor = cursor;
+        this.options = options;
+        this.filter = filter;
+        this.includeDocs = includeDocs;
+        this.skipConflicts = skipConflicts;
+        this.remaining = options.getLimit();
+        cursor.moveToFirst();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(next == null) {
+            next = readNext();
+        }
+        return next != null;
+    }
+
+    @Override
+    public TDRevision next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        TDRevision result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Closes the underlying cursor. Called automatically once the last change has been returned.
+     */
+    public void close() {
+        if(cursor != null) {
+            cursor.close();
+            cursor = null;
+            db.endRead();
+            db = null;
+        }
+    }
+
+    private TDRevision readNext() {
+        if(cursor == null) {
+            return null;
+        }
+        try {
+            while(remaining > 0 && !cursor.isAfterLast()) {
+                if(skipConflicts) {
+                    // Only count the first rev for a given doc (the rest will be losing conflicts):
+                    long docNumericId = cursor.getLong(1);
+                    if(docNumericId == lastDocId) {
+                        cursor.moveToNext();
+                        continue;
+                    }
+                    lastDocId = docNumericId;
+                }
+
+                TDRevision rev = new TDRevision(cursor.getString(2), cursor.getString(3), (cursor.getInt(4) > 0));
+                rev.setSequence(cursor.getLong(0));
+                if(includeDocs) {
+                    db.expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(5), rev, options.getContentOptions());
+                }
+                cursor.moveToNext();
+                if((filter == null) || (filter.filter(rev))) {
+                    --remaining;
+                    return rev;
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error looking for changes", e);
+        }
+        close();
+        return null;
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Compacts a database a little at a time, so it's never blocked for long.
+ *
+ * The work is done in small batches, each in its own transaction, and step() stops starting new
+ * batches once its time budget is used up. It picks up where it left off on the next call. The
+ * phases are the same as TDDatabase.compact(): prune old revisions, clear the bodies of obsolete
+ * ones, delete unreferenced attachment files. The last phase gives the freed pages back to the
+ * file system with incremental_vacuum instead of rewriting the whole file with VACUUM. That needs
+ * auto_vacuum=INCREMENTAL, which new databases have; older ones get it from a full compact().
+ */
+public class TDCompactor {
+
+    public static final long DEFAULT_STEP_BUDGET = 100;   // milliseconds
+    public static final long DEFAULT_STEP_INTERVAL = 100; // milliseconds
+
+    private static final int PRUNE_BATCH_SIZE = 100;      // documents
+    private static final int CLEAR_BATCH_SIZE = 500;      // sequences
+    private static final int COLLECT_BATCH_SIZE = 50;     // attachment keys
+    private static final int VACUUM_BATCH_SIZE = 128;     // pages
+
+    enum Phase {
+        PRUNING("Pruning old revisions"),
+        CLEARING("Deleting bodies of old revisions"),
+        COLLECTING("Deleting old attachments"),
+        VACUUMING("Freeing unused space"),
+        DONE("Completed");
+
+        final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+    }
+
+    private final TDDatabase db;
+    private Phase phase = Phase.PRUNING;
+    private long position;
+    private long end = -1;
+    private boolean failed;
+    private int docsPruned;
+    private int bodiesCleared;
+    private int attachmentsDeleted;
+    private long stepBudget = DEFAULT_STEP_BUDGET;
+    private long stepInterval = DEFAULT_STEP_INTERVAL;
+    private ScheduledFuture<?> scheduled;
+    private boolean stopped;
+
+    public TDCompactor(TDDatabase db) {
+        this.db = db;
+    }
+
+    public TDDatabase getDatabase() {
+        return db;
+    }
+
+    public long getStepBudget() {
+        return stepBudget;
+    }
+
+    /** How long (in milliseconds) each step started by start() may keep working. */
+    public void setStepBudget(long stepBudget) {
+        this.stepBudget = stepBudget;
+    }
+
+    public long getStepInterval() {
+        return stepInterval;
+    }
+
+    /** How long (in milliseconds) start() waits between steps, to let other work at the database. */
+    public void setStepInterval(long stepInterval) {
+        this.stepInterval = stepInterval;
+    }
+
+    /**
+     * Runs steps on the executor, with a pause between each, until the compaction is done.
+     */
+    public synchronized void start(final ScheduledExecutorService workExecutor) {
+        if(stopped || isFinished()) {
+            return;
+        }
+        scheduled = workExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(!step(stepBudget)) {
+                    synchronized(TDCompactor.this) {
+                        if(!stopped) {
+                            scheduled = workExecutor.schedule(this, stepInterval, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops running steps. The work done so far is kept; a new compactor will pick up the rest.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if(scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    /**
+     * Does as many batches of work as fit in the time budget (always at least one).
+     * @return  true if the compaction is finished (or failed), false if there's more to do.
+     */
+    public boolean step(long budgetMillis) {
+        long deadline = System.currentTimeMillis() + budgetMillis;
+        if(!db.beginBackgroundWork()) {
+            Log.w(TDDatabase.TAG, "Compaction of " + db.getName() + " failed: database is closed");
+            synchronized(this) {
+                failed = true;
+            }
+            return true;
+        }
+        try {
+            do {
+                synchronized(this) {
+                    if(stopped || isFinished()) {
+                        break;
+                    }
+                }
+                if(!doBatch()) {
+                    Log.w(TDDatabase.TAG, "Compaction of " + db.getName() + " failed in phase " + phase);
+                    synchronized(this) {
+                        failed = true;
+                    }
+                    break;
+                }
+            } while(System.currentTimeMillis() < deadline);
+        } finally {
+            db.endBackgroundWork();
+        }
+        return isFinished();
+    }
+
+    // Does one batch of the current phase, moving on to the next phase once it's done.
+    private boolean doBatch() {
+        switch(phase) {
+            case PRUNING: {
+                if(end < 0) {
+                    end = db.getMaxDocNumericID();
+                }
+                long last = Math.min(position + PRUNE_BATCH_SIZE, end);
+                int pruned = db.pruneRevisions(position, last);
+                if(pruned < 0) {
+                    return false;
+                }
+                advance(pruned, last);
+                break;
+            }
+            case CLEARING: {
+                if(end < 0) {
+                    end = db.getLastSequence();
+                }
+                long last = Math.min(position + CLEAR_BATCH_SIZE, end);
+                int cleared = db.clearObsoleteBodies(position, last);
+                if(cleared < 0) {
+                    return false;
+                }
+                advance(cleared, last);
+                break;
+            }
+            case COLLECTING: {
+                int deleted = db.garbageCollectDeletedAttachments(COLLECT_BATCH_SIZE);
+                if(deleted < 0) {
+                    return false;
+                }
+                synchronized(this) {
+                    attachmentsDeleted += deleted;
+                    if(!db.hasAttachmentGarbage()) {
+                        nextPhase();
+                    }
+                }
+                break;
+            }
+            case VACUUMING: {
+                if(!db.isIncrementalVacuumEnabled()) {
+                    Log.i(TDDatabase.TAG, "Database " + db.getName() + " needs a full compact() to enable incremental vacuuming");
+                    synchronized(this) {
+                        nextPhase();
+                    }
+                    break;
+                }
+                int freePages = db.incrementalVacuum(VACUUM_BATCH_SIZE);
+                if(freePages < 0) {
+                    return false;
+                }
+                synchronized(this) {
+                    if(end < 0) {
+                        end = freePages + VACUUM_BATCH_SIZE;
+                    }
+                    position = Math.max(0, end - freePages);
+                    if(freePages == 0) {
+                        nextPhase();
+                    }
+                }
+                break;
+            }
+            default:
+                break;
+        }
+        return true;
+    }
+
+    private synchronized void advance(int count, long last) {
+        if(phase == Phase.PRUNING) {
+            docsPruned += count;
+        }
+        else {
+            bodiesCleared += count;
+        }
+        position = last;
+        if(position >= end) {
+            nextPhase();
+        }
+    }
+
+    private void nextPhase() {
+        phase = Phase.values()[phase.ordinal() + 1];
+        position = 0;
+        end = -1;
+        if(phase == Phase.DONE) {
+            Log.v(TDDatabase.TAG, "Compacted " + db.getName() + ": pruned " + docsPruned + " documents, cleared "
+                    + bodiesCleared + " revisions, deleted " + attachmentsDeleted + " attachments");
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return phase == Phase.DONE || failed;
+    }
+
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+
+    public synchronized int getDocsPruned() {
+        return docsPruned;
+    }
+
+    public synchronized int getBodiesCleared() {
+        return bodiesCleared;
+    }
+
+    public synchronized int getAttachmentsDeleted() {
+        return attachmentsDeleted;
+    }
+
+    /**
+     * A rough percentage of the work done: each phase counts for a quarter.
+     */
+    public synchronized int getProgress() {
+        if(phase == Phase.DONE) {
+            return 100;
+        }
+        float fraction = (end > 0) ? Math.min(1f, position / (float)end) : 0f;
+        return Math.round(25 * (phase.ordinal() + fraction));
+    }
+
+    /**
+     * A description of what the compactor is doing, for _active_tasks.
+     */
+    public synchronized String getStatus() {
+        if(failed) {
+            return "Failed: " + phase.description;
+        }
+        return phase.description;
+    }
+}
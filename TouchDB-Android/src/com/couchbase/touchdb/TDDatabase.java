@@ -23,20 +23,31 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.couchbase.touchdb.TDDatabase.TDContentOptions;
@@ -46,6 +57,8 @@ import com.couchbase.touchdb.replicator.TDReplicator;
 import com.couchbase.touchdb.support.Base64;
 import com.couchbase.touchdb.support.FileDirUtils;
 import com.couchbase.touchdb.support.HttpClientFactory;
+import com.couchbase.touchdb.support.TDBinaryJSON;
+import com.couchbase.touchdb.support.TDCompression;
 
 /**
  * A TouchDB database.
@@ -57,14 +70,102 @@ public class TDDatabase extends Observable {
     private SQLiteDatabase database;
     private boolean open = false;
     private int transactionLevel = 0;
+    private boolean transactionDoomed = false;
     public static final String TAG = "TDDatabase";
 
-    private Map<String, TDView> views;
+    // See isNestedRollbackSupported()
+    private static final String ROLLBACK_TO_SAVEPOINT_SQL = "/* savepoint */ ROLLBACK TO SAVEPOINT ";
+    private static final boolean NESTED_ROLLBACK_SUPPORTED = Build.VERSION.SDK_INT < 16
+            || DatabaseUtils.getSqlStatementType(ROLLBACK_TO_SAVEPOINT_SQL + "tdb2") != DatabaseUtils.STATEMENT_ABORT;
+
+    // See acquireReadConnection()
+    private static final String BEGIN_READ_SQL = "/* snapshot */ BEGIN DEFERRED";
+    private static final String END_READ_SQL = "/* snapshot */ COMMIT";
+    private static final boolean READ_CONNECTIONS_SUPPORTED = Build.VERSION.SDK_INT < 16
+            || (DatabaseUtils.getSqlStatementType(BEGIN_READ_SQL) == DatabaseUtils.STATEMENT_OTHER
+                && DatabaseUtils.getSqlStatementType(END_READ_SQL) == DatabaseUtils.STATEMENT_OTHER);
+
+    // Read by the background indexer and the work executor while request threads register views:
+    private final ConcurrentMap<String, TDView> views = new ConcurrentHashMap<String, TDView>();
     private Map<String, TDFilterBlock> filters;
     private Map<String, TDValidationBlock> validations;
     private List<TDReplicator> activeReplicators;
+    private TDCompactor activeCompactor;
+    private ScheduledExecutorService expirationExecutor;
+    private TDExpirySweeper expirySweeper;
+    private ScheduledExecutorService autoIndexExecutor;
+    private TDBackgroundIndexer backgroundIndexer;
+    private final Set<String> pendingIndexUpdates = new HashSet<String>();  // names of views
+    private boolean indexUpdateScheduled = false;
+    private final Object backgroundWorkLock = new Object();
+    private int backgroundWorkCount = 0;
+    private int useCount = 0;  // also guarded by backgroundWorkLock
     private TDBlobStore attachments;
 
+    // Guards the statement caches and their counters, which any thread may touch. The statements
+    // cached for a connection are only used by the thread that has it: the one holding the current
+    // transaction on the main connection, or the one that checked out a read connection.
+    private final Object statementCacheLock = new Object();
+    private final Map<SQLiteDatabase, Map<String, SQLiteStatement>> statementCaches = new HashMap<SQLiteDatabase, Map<String, SQLiteStatement>>();
+    // Every cached statement, so releaseStatement() can tell them from the rest without a scan.
+    // SQLiteStatement doesn't override equals(), so this is an identity set.
+    private final Set<SQLiteStatement> cachedStatements = new HashSet<SQLiteStatement>();
+    private long statementCacheHits = 0;
+    private long statementCacheMisses = 0;
+
+    public static final int DEFAULT_DOC_ID_CACHE_SIZE = 1000;
+    private final TDDocIDCache docIDCache = new TDDocIDCache(DEFAULT_DOC_ID_CACHE_SIZE);
+    // Document IDs inserted by the current transaction; they only go into docIDCache once it commits.
+    private final Map<String, Long> pendingDocIDs = new HashMap<String, Long>();
+    private final List<String> pendingDocIDOrder = new ArrayList<String>();
+    private final List<Integer> pendingDocIDMarks = new ArrayList<Integer>();
+    // Documents whose rows the current transaction deleted; they're forgotten again when it ends.
+    private final Set<String> pendingForgottenDocIDs = new HashSet<String>();
+
+    public static final int DEFAULT_REVISION_CACHE_SIZE = 512 * 1024;
+    private final TDRevisionCache revisionCache = new TDRevisionCache(DEFAULT_REVISION_CACHE_SIZE);
+    // Documents changed by the current transaction, whose cached revisions must be dropped when it ends.
+    private final Set<String> pendingRevisionInvalidations = new HashSet<String>();
+
+    public static final int DEFAULT_REV_TREE_CACHE_SIZE = 10000;
+    private final TDRevTreeCache revTreeCache = new TDRevTreeCache(DEFAULT_REV_TREE_CACHE_SIZE);
+    // Changes to revision trees made by the current transaction, applied to revTreeCache once it commits.
+    private final List<TDRevTreeCache.Change> pendingRevTreeChanges = new ArrayList<TDRevTreeCache.Change>();
+    private final List<Integer> pendingRevTreeMarks = new ArrayList<Integer>();
+
+    private boolean groupCommitEnabled = false;
+    private int groupCommitMaxBatchSize = 50;
+    private long groupCommitMaxWait = 5;
+    private final Object groupCommitLock = new Object();
+    private final List<TDGroupCommitWrite> groupCommitQueue = new ArrayList<TDGroupCommitWrite>();
+    private boolean groupCommitLeaderActive = false;
+
+    private boolean binaryBodiesEnabled = false;
+    private int bodyCompressionThreshold = 0;  // 0 means never compress
+    private long compressedBodyCount = 0;
+    private long compressedBodyInputBytes = 0;
+    private long compressedBodyOutputBytes = 0;
+
+    // Committed document count and last sequence, kept up to date in memory; the current
+    // transaction's changes to them are pending until it commits.
+    private volatile int documentCount = 0;
+    private volatile long lastSequence = 0;
+    private int pendingDocumentCountDelta = 0;
+    private long pendingLastSequence = 0;
+    private final List<Integer> pendingDocumentCountMarks = new ArrayList<Integer>();
+    private final List<Long> pendingLastSequenceMarks = new ArrayList<Long>();
+
+    public static final int DEFAULT_REVS_LIMIT = 1000;
+    private int revsLimit = 0;  // 0 until read from the info table
+
+    public static final int DEFAULT_MAX_READ_CONNECTIONS = 2;
+    private boolean writeAheadLoggingRequested = false;
+    private boolean writeAheadLogging = false;
+    private int maxReadConnections = DEFAULT_MAX_READ_CONNECTIONS;
+    private int openReadConnections = 0;
+    private final List<SQLiteDatabase> idleReadConnections = new ArrayList<SQLiteDatabase>();
+    private final ThreadLocal<TDReadContext> readContext = new ThreadLocal<TDReadContext>();
+
     /**
      * Options for what metadata to include in document bodies
      */
@@ -178,6 +279,10 @@ public class TDDatabase extends Observable {
         return new File(path).exists();
     }
 
+    public boolean isOpen() {
+        return open;
+    }
+
     /**
      * Replaces the database with a copy of another database.
      *
@@ -247,7 +352,9 @@ public class TDDatabase extends Observable {
             // First-time initialization:
             // (Note: Declaring revs.sequence as AUTOINCREMENT means the values will always be
             // monotonically increasing, never reused. See <http://www.sqlite.org/autoinc.html>)
-            if(!initialize(SCHEMA)) {
+            // auto_vacuum can only be changed before the first table is created (or by a VACUUM);
+            // INCREMENTAL lets TDCompactor give free pages back a few at a time.
+            if(!initialize("PRAGMA auto_vacuum = INCREMENTAL; " + SCHEMA)) {
                 database.close();
                 return false;
             }
@@ -292,6 +399,52 @@ public class TDDatabase extends Observable {
             }
         }
 
+        if (dbVersion < 5) {
+            // Version 5: index attachments by key, and log the keys of deleted attachment rows, so
+            // garbage collection only has to look at those. Files orphaned before this are found by
+            // one last full sweep at the next compaction.
+            String upgradeSql = "CREATE INDEX attachments_by_key ON attachments(key); " +
+                    "CREATE TABLE attachments_gc (key BLOB PRIMARY KEY); " +
+                    "INSERT OR REPLACE INTO info (key, value) VALUES ('attachment_gc_full', '1')";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+            // (The trigger body has semicolons in it, so it can't go through initialize())
+            try {
+                database.execSQL("CREATE TRIGGER attachments_deleted AFTER DELETE ON attachments BEGIN " +
+                        "INSERT OR IGNORE INTO attachments_gc (key) VALUES (old.key); END");
+                database.execSQL("PRAGMA user_version = 5");
+            } catch (SQLException e) {
+                Log.e(TDDatabase.TAG, "Error upgrading database to version 5", e);
+                database.close();
+                return false;
+            }
+        }
+
+        if (dbVersion < 6) {
+            // Version 6: views remember the purge sequence they've caught up with
+            String upgradeSql = "ALTER TABLE views ADD COLUMN purge_seq INTEGER DEFAULT 0; " +
+                    "PRAGMA user_version = 6";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+        }
+
+        if (dbVersion < 7) {
+            // Version 7: document expiration times
+            String upgradeSql = "CREATE TABLE expiry ( " +
+                    "        doc_id INTEGER PRIMARY KEY REFERENCES docs(doc_id) ON DELETE CASCADE, " +
+                    "        expires INTEGER NOT NULL); " +
+                    "CREATE INDEX expiry_by_time ON expiry(expires); " +
+                    "PRAGMA user_version = 7";
+            if(!initialize(upgradeSql)) {
+                database.close();
+                return false;
+            }
+        }
+
         try {
             attachments = new TDBlobStore(getAttachmentStorePath());
         } catch (IllegalArgumentException e) {
@@ -300,7 +453,33 @@ public class TDDatabase extends Observable {
             return false;
         }
 
-        open = true;
+        documentCount = queryDocumentCount();
+        lastSequence = queryLastSequence();
+
+        if(writeAheadLoggingRequested) {
+            writeAheadLogging = enableWriteAheadLogging();
+        }
+
+        synchronized(backgroundWorkLock) {
+            open = true;
+        }
+
+        for (TDView view : views.values()) {
+            view.databaseOpened(this);
+        }
+
+        if(expirationExecutor != null) {
+            synchronized(this) {
+                expirySweeper = new TDExpirySweeper(this, expirationExecutor);
+                expirySweeper.schedule(getNextExpiration());
+            }
+        }
+        if(autoIndexExecutor != null) {
+            synchronized(this) {
+                backgroundIndexer = new TDBackgroundIndexer(this, autoIndexExecutor);
+                backgroundIndexer.start();
+            }
+        }
         return true;
     }
 
@@ -309,12 +488,11 @@ public class TDDatabase extends Observable {
             return false;
         }
 
-        if(views != null) {
-            for (TDView view : views.values()) {
-                view.databaseClosing();
-            }
+        // The views stay registered, like filters and validations, so their map/reduce blocks are
+        // still there if the database is reopened (e.g. after TDServer closed it for being idle.)
+        for (TDView view : views.values()) {
+            view.databaseClosing();
         }
-        views = null;
 
         if(activeReplicators != null) {
             for(TDReplicator replicator : activeReplicators) {
@@ -323,6 +501,39 @@ public class TDDatabase extends Observable {
             activeReplicators = null;
         }
 
+        synchronized(this) {
+            if(activeCompactor != null) {
+                activeCompactor.stop();
+                activeCompactor = null;
+            }
+            if(expirySweeper != null) {
+                expirySweeper.stop();
+                expirySweeper = null;
+            }
+            if(backgroundIndexer != null) {
+                backgroundIndexer.stop();
+                backgroundIndexer = null;
+            }
+        }
+        waitForBackgroundWork();
+
+        closeStatementCache(database);
+        docIDCache.invalidateAll();
+        clearPendingDocIDs();
+        pendingForgottenDocIDs.clear();
+        revisionCache.invalidateAll();
+        pendingRevisionInvalidations.clear();
+        revTreeCache.invalidateAll();
+        pendingRevTreeChanges.clear();
+        pendingRevTreeMarks.clear();
+        clearPendingTotals();
+        documentCount = 0;
+        lastSequence = 0;
+
+        writeAheadLogging = false;
+        closeReadConnections();
+        revsLimit = 0;
+
         if(database != null && database.isOpen()) {
             database.close();
         }
@@ -331,6 +542,80 @@ public class TDDatabase extends Observable {
         return true;
     }
 
+    /**
+     * Registers a piece of work a background thread is about to do on the database, such as a
+     * compaction step; must be balanced by endBackgroundWork(). close() waits for the work in
+     * progress to finish, and none can begin once it has started.
+     *
+     * Unlike the database's own monitor (which Observable also uses to notify observers, from inside
+     * write transactions) nothing is locked while the work runs, so it's free to begin transactions.
+     *
+     * @return  false if the database is closed or closing, in which case the work mustn't be done.
+     */
+    boolean beginBackgroundWork() {
+        synchronized(backgroundWorkLock) {
+            if(!open) {
+                return false;
+            }
+            ++backgroundWorkCount;
+            return true;
+        }
+    }
+
+    void endBackgroundWork() {
+        synchronized(backgroundWorkLock) {
+            assert(backgroundWorkCount > 0);
+            if(--backgroundWorkCount == 0) {
+                backgroundWorkLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Marks the database as being used, e.g. by a request that's in progress, so that TDServer won't
+     * close it for being idle; must be balanced by release(). Uses nest. (This doesn't stop close()
+     * being called directly.)
+     */
+    public void acquire() {
+        synchronized(backgroundWorkLock) {
+            ++useCount;
+        }
+    }
+
+    public void release() {
+        synchronized(backgroundWorkLock) {
+            assert(useCount > 0);
+            --useCount;
+        }
+    }
+
+    /**
+     * Whether the database has been acquired, or has background work in progress.
+     */
+    public boolean isInUse() {
+        synchronized(backgroundWorkLock) {
+            return useCount > 0 || backgroundWorkCount > 0;
+        }
+    }
+
+    // Stops new background work from beginning, and waits for the work in progress to end.
+    private void waitForBackgroundWork() {
+        boolean interrupted = false;
+        synchronized(backgroundWorkLock) {
+            open = false;
+            while(backgroundWorkCount > 0) {
+                try {
+                    backgroundWorkLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public boolean deleteDatabase() {
         if(open) {
             if(!close()) {
@@ -344,6 +629,9 @@ public class TDDatabase extends Observable {
         File attachmentsFile = new File(getAttachmentStorePath());
 
         boolean deleteStatus = file.delete();
+        // Left behind by write-ahead logging, if it was ever used:
+        new File(path + "-wal").delete();
+        new File(path + "-shm").delete();
         //recursively delete attachments path
         boolean deleteAttachmentStatus = FileDirUtils.deleteRecursive(attachmentsFile);
         return deleteStatus && deleteAttachmentStatus;
@@ -367,1817 +655,4204 @@ public class TDDatabase extends Observable {
         return database;
     }
 
-    public TDBlobStore getAttachments() {
-        return attachments;
+    /** WRITE-AHEAD LOGGING & READ CONNECTIONS: **/
+
+    /**
+     * Requests that the database be opened in write-ahead-log mode (requires Android 3.0 or later.)
+     * Must be called before open(). In WAL mode, document reads, _changes, _all_docs and view queries
+     * run on a small pool of read-only connections, so they aren't blocked by writers; each such
+     * operation sees a consistent snapshot of the database as of when it started.
+     */
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+        this.writeAheadLoggingRequested = enabled;
     }
 
-    public long totalDataSize() {
-        File f = new File(path);
-        long size = f.length() + attachments.totalDataSize();
-        return size;
+    /**
+     * Whether the open database is actually using write-ahead logging.
+     */
+    public boolean isWriteAheadLoggingEnabled() {
+        return writeAheadLogging;
     }
 
     /**
-     * Begins a database transaction. Transactions can nest.
-     * Every beginTransaction() must be balanced by a later endTransaction()
+     * Sets the maximum number of read-only connections used in write-ahead-log mode.
      */
-    public boolean beginTransaction() {
+    public void setMaxReadConnections(int maxReadConnections) {
+        synchronized(idleReadConnections) {
+            this.maxReadConnections = Math.max(1, maxReadConnections);
+            idleReadConnections.notifyAll();
+        }
+    }
+
+    public int getMaxReadConnections() {
+        return maxReadConnections;
+    }
+
+    private boolean enableWriteAheadLogging() {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            Log.w(TDDatabase.TAG, "Write-ahead logging requires Android 3.0; using a rollback journal");
+            return false;
+        }
+        if(!READ_CONNECTIONS_SUPPORTED) {
+            Log.w(TDDatabase.TAG, "Read transactions can't be started on this Android version; using a rollback journal");
+            return false;
+        }
+        // Not SQLiteDatabase.enableWriteAheadLogging(): its pooled connections wouldn't have
+        // our JSON collators registered. We manage our own readers instead.
+        Cursor cursor = null;
         try {
-            database.beginTransaction();
-            ++transactionLevel;
-            //Log.v(TAG, "Begin transaction (level " + Integer.toString(transactionLevel) + ")...");
+            cursor = database.rawQuery("PRAGMA journal_mode=WAL", null);
+            if(cursor.moveToFirst() && "wal".equalsIgnoreCase(cursor.getString(0))) {
+                return true;
+            }
+            Log.w(TDDatabase.TAG, "Unable to switch to write-ahead logging");
         } catch (SQLException e) {
-            return false;
+            Log.e(TDDatabase.TAG, "Error enabling write-ahead logging", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
         }
-        return true;
+        return false;
     }
 
     /**
-     * Commits or aborts (rolls back) a transaction.
-     *
-     * @param commit If true, commits; if false, aborts and rolls back, undoing all changes made since the matching -beginTransaction call, *including* any committed nested transactions.
+     * Per-thread state of a read operation begun with beginRead().
      */
-    public boolean endTransaction(boolean commit) {
-        assert(transactionLevel > 0);
+    private static class TDReadContext {
+        SQLiteDatabase connection;
+        long cacheGeneration;
+        long revTreeGeneration;
+        long docIDGeneration;
+        int depth = 1;
+        boolean holdsTransaction;
+    }
 
-        if(commit) {
-            //Log.v(TAG, "Committing transaction (level " + Integer.toString(transactionLevel) + ")...");
-            database.setTransactionSuccessful();
-            database.endTransaction();
+    /**
+     * Starts a read operation on the current thread; must be balanced by endRead(). Read operations nest.
+     *
+     * In WAL mode, and outside of a write transaction (whose uncommitted changes must stay visible), the
+     * outermost read operation checks out a read-only connection and opens a read transaction on it, so
+     * every query made via getReadDatabase() until endRead() sees the same snapshot.
+     */
+    void beginRead() {
+        TDReadContext context = readContext.get();
+        if(context != null) {
+            ++context.depth;
+            return;
         }
-        else {
-            Log.v(TAG, "CANCEL transaction (level " + Integer.toString(transactionLevel) + ")...");
-            try {
-                database.endTransaction();
-            } catch (SQLException e) {
-                return false;
-            }
+        context = new TDReadContext();
+        // Captured before the snapshot starts, so nothing read from it is cached if a write commits meanwhile:
+        context.cacheGeneration = revisionCache.getGeneration();
+        context.revTreeGeneration = revTreeCache.getGeneration();
+        context.docIDGeneration = docIDCache.getGeneration();
+        if(writeAheadLogging && !database.inTransaction()) {
+            context.connection = acquireReadConnection();
         }
+        readContext.set(context);
+    }
 
-        --transactionLevel;
-        return true;
+    void endRead() {
+        TDReadContext context = readContext.get();
+        assert(context != null);
+        if(--context.depth > 0) {
+            return;
+        }
+        readContext.remove();
+        if(context.connection != null) {
+            releaseReadConnection(context.connection);
+        }
     }
 
     /**
-     * Compacts the database storage by removing the bodies and attachments of obsolete revisions.
+     * Starts a read snapshot on the current thread: until the matching endReadSnapshot(), everything
+     * read from the database on this thread -- getLastSequence(), getDocumentCount(), documents,
+     * getAllDocs(), changesSince(), view queries and their getLastSequenceIndexed() -- reflects the
+     * same state, so for example an update_seq or ETag always goes with the rows it was read with.
+     * Snapshots nest, and are meant for reads only.
+     *
+     * In write-ahead-log mode the snapshot is a read transaction on a read-only connection, and
+     * writers carry on meanwhile. Otherwise a transaction is held on the main connection, which keeps
+     * writers on other threads waiting until the snapshot ends, so keep it short.
      */
-    public TDStatus compact() {
-        // Can't delete any rows because that would lose revision tree history.
-        // But we can remove the JSON of non-current revisions, which is most of the space.
-        try {
-            Log.v(TDDatabase.TAG, "Deleting JSON of old revisions...");
-            ContentValues args = new ContentValues();
-            args.put("json", (String)null);
-            database.update("revs", args, "current=0", null);
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error compacting", e);
-            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+    public void beginReadSnapshot() {
+        beginRead();
+        TDReadContext context = readContext.get();
+        if(context.depth == 1 && context.connection == null && !database.inTransaction()) {
+            context.holdsTransaction = beginTransaction();
         }
+    }
 
-        Log.v(TDDatabase.TAG, "Deleting old attachments...");
-        TDStatus result = garbageCollectAttachments();
-
-        Log.v(TDDatabase.TAG, "Vacuuming SQLite database...");
-        try {
-            database.execSQL("VACUUM");
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error vacuuming database", e);
-            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+    public void endReadSnapshot() {
+        TDReadContext context = readContext.get();
+        if(context == null) {
+            throw new IllegalStateException("endReadSnapshot() without beginReadSnapshot()");
+        }
+        if(context.depth == 1 && context.holdsTransaction) {
+            endTransaction(true);  // nothing to commit, but there's nothing to roll back either
         }
+        endRead();
+    }
 
-        return result;
+    /**
+     * The connection that reads on the current thread should use: the read-only connection of the
+     * current read operation if there is one, otherwise the main connection.
+     */
+    SQLiteDatabase getReadDatabase() {
+        TDReadContext context = readContext.get();
+        if(context != null && context.connection != null && !database.inTransaction()) {
+            return context.connection;
+        }
+        return database;
     }
 
-    public String privateUUID() {
-        String result = null;
-        Cursor cursor = null;
-        try {
-            cursor = database.rawQuery("SELECT value FROM info WHERE key='privateUUID'", null);
-            if(cursor.moveToFirst()) {
-                result = cursor.getString(0);
-            }
-        } catch(SQLException e) {
-            Log.e(TAG, "Error querying privateUUID", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
+    /**
+     * The revision cache generation to use for entries read via getReadDatabase().
+     */
+    private long getReadCacheGeneration() {
+        TDReadContext context = readContext.get();
+        if(context != null && context.connection != null) {
+            return context.cacheGeneration;
         }
-        return result;
+        return revisionCache.getGeneration();
     }
 
-    public String publicUUID() {
-        String result = null;
-        Cursor cursor = null;
-        try {
-            cursor = database.rawQuery("SELECT value FROM info WHERE key='publicUUID'", null);
-            if(cursor.moveToFirst()) {
-                result = cursor.getString(0);
-            }
-        } catch(SQLException e) {
-            Log.e(TAG, "Error querying privateUUID", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
+    /**
+     * The revision tree cache generation to use for trees read via getReadDatabase().
+     */
+    private long getReadRevTreeGeneration() {
+        TDReadContext context = readContext.get();
+        if(context != null && context.connection != null) {
+            return context.revTreeGeneration;
         }
-        return result;
+        return revTreeCache.getGeneration();
     }
 
-    /** GETTING DOCUMENTS: **/
+    /**
+     * The docid cache generation to use for mappings read via getReadDatabase().
+     */
+    private long getReadDocIDGeneration() {
+        TDReadContext context = readContext.get();
+        if(context != null && context.connection != null) {
+            return context.docIDGeneration;
+        }
+        return docIDCache.getGeneration();
+    }
 
-    public int getDocumentCount() {
-        String sql = "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
-        Cursor cursor = null;
-        int result = 0;
-        try {
-            cursor = database.rawQuery(sql, null);
-            if(cursor.moveToFirst()) {
-                result = cursor.getInt(0);
+    /**
+     * Checks out a read-only connection with a read transaction open on it, waiting if all of them are
+     * in use. Returns null (meaning: use the main connection) if one can't be opened.
+     *
+     * The read transaction has to be DEFERRED. Android's own beginTransaction methods only start
+     * EXCLUSIVE or IMMEDIATE ones, which take the write lock (holding writers up for the whole read)
+     * and which SQLite refuses to start on a read-only connection. So BEGIN and COMMIT are run as
+     * plain SQL. Since Jelly Bean (API 16) Android classifies every statement with
+     * DatabaseUtils.getSqlStatementType() and would run a bare "BEGIN" as an exclusive transaction
+     * of its own; the leading comment keeps these plain statements on releases that only look at
+     * the first three characters. Where the classification sees past it, write-ahead logging isn't
+     * turned on (READ_CONNECTIONS_SUPPORTED), so no read connections are used.
+     */
+    private SQLiteDatabase acquireReadConnection() {
+        SQLiteDatabase connection = null;
+        synchronized(idleReadConnections) {
+            while(idleReadConnections.isEmpty() && openReadConnections >= maxReadConnections) {
+                try {
+                    idleReadConnections.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
             }
-        } catch(SQLException e) {
-            Log.e(TDDatabase.TAG, "Error getting document count", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+            if(!idleReadConnections.isEmpty()) {
+                connection = idleReadConnections.remove(idleReadConnections.size() - 1);
+            }
+            else {
+                ++openReadConnections;
             }
         }
 
-        return result;
+        if(connection == null) {
+            try {
+                connection = SQLiteDatabase.openDatabase(path, null,
+                        SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                TDCollateJSON.registerCustomCollators(connection);
+            } catch (SQLiteException e) {
+                Log.e(TDDatabase.TAG, "Error opening read-only connection", e);
+                synchronized(idleReadConnections) {
+                    --openReadConnections;
+                    idleReadConnections.notifyAll();
+                }
+                return null;
+            }
+        }
+
+        try {
+            connection.execSQL(BEGIN_READ_SQL);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error starting read transaction", e);
+            discardReadConnection(connection);
+            return null;
+        }
+        return connection;
     }
 
-    public long getLastSequence() {
-        String sql = "SELECT MAX(sequence) FROM revs";
-        Cursor cursor = null;
-        long result = 0;
+    private void releaseReadConnection(SQLiteDatabase connection) {
         try {
-            cursor = database.rawQuery(sql, null);
-            if(cursor.moveToFirst()) {
-                result = cursor.getLong(0);
-            }
+            connection.execSQL(END_READ_SQL);
         } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error getting last sequence", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+            Log.e(TDDatabase.TAG, "Error ending read transaction", e);
+            discardReadConnection(connection);
+            return;
+        }
+        synchronized(idleReadConnections) {
+            if(writeAheadLogging && openReadConnections <= maxReadConnections) {
+                idleReadConnections.add(connection);
+                idleReadConnections.notifyAll();
+                return;
             }
         }
-        return result;
+        discardReadConnection(connection);
     }
 
-    /** Splices the contents of an NSDictionary into JSON data (that already represents a dict), without parsing the JSON. */
-    public  byte[] appendDictToJSON(byte[] json, Map<String,Object> dict) {
-        if(dict.size() == 0) {
-            return json;
+    private void discardReadConnection(SQLiteDatabase connection) {
+        closeStatementCache(connection);
+        connection.close();
+        synchronized(idleReadConnections) {
+            --openReadConnections;
+            idleReadConnections.notifyAll();
         }
+    }
 
-        byte[] extraJSON = null;
-        try {
-            extraJSON = TDServer.getObjectMapper().writeValueAsBytes(dict);
-        } catch (Exception e) {
-            Log.e(TDDatabase.TAG, "Error convert extra JSON to bytes", e);
-            return null;
+    /**
+     * Closes the idle read-only connections; ones still in use are closed when they're released.
+     */
+    private void closeReadConnections() {
+        synchronized(idleReadConnections) {
+            for (SQLiteDatabase connection : idleReadConnections) {
+                closeStatementCache(connection);
+                connection.close();
+            }
+            openReadConnections -= idleReadConnections.size();
+            idleReadConnections.clear();
+            idleReadConnections.notifyAll();
         }
+    }
 
-        int jsonLength = json.length;
-        int extraLength = extraJSON.length;
-        if(jsonLength == 2) { // Original JSON was empty
-            return extraJSON;
-        }
-        byte[] newJson = new byte[jsonLength + extraLength - 1];
-        System.arraycopy(json, 0, newJson, 0, jsonLength - 1);  // Copy json w/o trailing '}'
-        newJson[jsonLength - 1] = ',';  // Add a ','
-        System.arraycopy(extraJSON, 1, newJson, jsonLength, extraLength - 1);
-        return newJson;
+    public TDBlobStore getAttachments() {
+        return attachments;
     }
 
-    /** Inserts the _id, _rev and _attachments properties into the JSON data and stores it in rev.
-    Rev must already have its revID and sequence properties set. */
-    public Map<String,Object> extraPropertiesForRevision(TDRevision rev, EnumSet<TDContentOptions> contentOptions) {
-
-        String docId = rev.getDocId();
-        String revId = rev.getRevId();
-        long sequenceNumber = rev.getSequence();
-        assert(revId != null);
-        assert(sequenceNumber > 0);
-
-        // Get attachment metadata, and optionally the contents:
-        boolean withAttachments = contentOptions.contains(TDContentOptions.TDIncludeAttachments);
-        Map<String, Object> attachmentsDict = getAttachmentsDictForSequenceWithContent(sequenceNumber, withAttachments);
+    /** COMPILED STATEMENTS: **/
 
-        // Get more optional stuff to put in the properties:
-        //OPT: This probably ends up making redundant SQL queries if multiple options are enabled.
-        Long localSeq = null;
-        if(contentOptions.contains(TDContentOptions.TDIncludeLocalSeq)) {
-            localSeq = sequenceNumber;
+    /**
+     * Returns a compiled statement for the given SQL, reusing one from this database's cache when possible.
+     * Every call must be balanced by a call to releaseStatement().
+     *
+     * Cached statements are only handed out to the thread holding the current transaction, since that
+     * thread has exclusive use of the connection. Callers outside a transaction get a freshly compiled
+     * statement every time; reads can use acquireReadStatement() instead.
+     */
+    SQLiteStatement acquireStatement(String sql) {
+        if(!database.inTransaction()) {
+            return compileUncachedStatement(database, sql);
         }
+        return acquireCachedStatement(database, sql);
+    }
 
-        Map<String,Object> revHistory = null;
-        if(contentOptions.contains(TDContentOptions.TDIncludeRevs)) {
-            revHistory = getRevisionHistoryDict(rev);
+    /**
+     * Like acquireStatement(), for statements that only read. Outside a transaction the statement is
+     * compiled on the connection getReadDatabase() returns. Read connections are only used by the
+     * thread that checked them out, so each has a cache of its own, and lookups such as
+     * getDocNumericID's reuse their statements on every read operation, not just inside transactions.
+     */
+    SQLiteStatement acquireReadStatement(String sql) {
+        if(database.inTransaction()) {
+            return acquireCachedStatement(database, sql);
+        }
+        SQLiteDatabase connection = getReadDatabase();
+        if(connection == database) {
+            return compileUncachedStatement(database, sql);
         }
+        return acquireCachedStatement(connection, sql);
+    }
 
-        List<Object> revsInfo = null;
-        if(contentOptions.contains(TDContentOptions.TDIncludeRevsInfo)) {
-            revsInfo = new ArrayList<Object>();
-            List<TDRevision> revHistoryFull = getRevisionHistory(rev);
-            for (TDRevision historicalRev : revHistoryFull) {
-                Map<String,Object> revHistoryItem = new HashMap<String,Object>();
-                String status = "available";
-                if(historicalRev.isDeleted()) {
-                    status = "deleted";
-                }
-                // TODO: Detect missing revisions, set status="missing"
-                revHistoryItem.put("rev", historicalRev.getRevId());
-                revHistoryItem.put("status", status);
-                revsInfo.add(revHistoryItem);
-            }
+    private SQLiteStatement compileUncachedStatement(SQLiteDatabase connection, String sql) {
+        synchronized(statementCacheLock) {
+            ++statementCacheMisses;
         }
+        return connection.compileStatement(sql);
+    }
 
-        List<String> conflicts = null;
-        if(contentOptions.contains(TDContentOptions.TDIncludeConflicts)) {
-            TDRevisionList revs = getAllRevisionsOfDocumentID(docId, true);
-            if(revs.size() > 1) {
-                conflicts = new ArrayList<String>();
-                for (TDRevision historicalRev : revs) {
-                    if(!historicalRev.equals(rev)) {
-                        conflicts.add(historicalRev.getRevId());
-                    }
-                }
+    private SQLiteStatement acquireCachedStatement(SQLiteDatabase connection, String sql) {
+        synchronized(statementCacheLock) {
+            Map<String, SQLiteStatement> statementCache = statementCaches.get(connection);
+            if(statementCache == null) {
+                statementCache = new HashMap<String, SQLiteStatement>();
+                statementCaches.put(connection, statementCache);
+            }
+            SQLiteStatement statement = statementCache.get(sql);
+            if(statement != null) {
+                ++statementCacheHits;
+            }
+            else {
+                ++statementCacheMisses;
+                statement = connection.compileStatement(sql);
+                statementCache.put(sql, statement);
+                cachedStatements.add(statement);
             }
+            return statement;
         }
+    }
 
-        Map<String,Object> result = new HashMap<String,Object>();
-        result.put("_id", docId);
-        result.put("_rev", revId);
-        if(rev.isDeleted()) {
-            result.put("_deleted", true);
-        }
-        if(attachmentsDict != null) {
-            result.put("_attachments", attachmentsDict);
-        }
-        if(localSeq != null) {
-            result.put("_local_seq", localSeq);
+    /**
+     * Returns a statement obtained from acquireStatement() or acquireReadStatement(). Cached
+     * statements have their bindings cleared; uncached ones are closed.
+     */
+    void releaseStatement(SQLiteStatement statement) {
+        if(statement == null) {
+            return;
         }
-        if(revHistory != null) {
-            result.put("_revisions", revHistory);
+        boolean cached;
+        synchronized(statementCacheLock) {
+            cached = cachedStatements.contains(statement);
         }
-        if(revsInfo != null) {
-            result.put("_revs_info", revsInfo);
+        if(cached) {
+            statement.clearBindings();
         }
-        if(conflicts != null) {
-            result.put("_conflicts", conflicts);
+        else {
+            statement.close();
         }
+    }
 
-        return result;
+    /**
+     * Closes the statements cached for a connection, before the connection itself is closed.
+     */
+    private void closeStatementCache(SQLiteDatabase connection) {
+        synchronized(statementCacheLock) {
+            Map<String, SQLiteStatement> statementCache = statementCaches.remove(connection);
+            if(statementCache != null) {
+                for (SQLiteStatement statement : statementCache.values()) {
+                    cachedStatements.remove(statement);
+                    statement.close();
+                }
+            }
+        }
     }
 
-    /** Inserts the _id, _rev and _attachments properties into the JSON data and stores it in rev.
-    Rev must already have its revID and sequence properties set. */
-    public void expandStoredJSONIntoRevisionWithAttachments(byte[] json, TDRevision rev, EnumSet<TDContentOptions> contentOptions) {
-        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
-        if(json != null) {
-            rev.setJson(appendDictToJSON(json, extra));
+    /**
+     * Number of statement lookups served from the compiled-statement cache.
+     */
+    public long getStatementCacheHits() {
+        synchronized(statementCacheLock) {
+            return statementCacheHits;
         }
-        else {
-            rev.setProperties(extra);
+    }
+
+    /**
+     * Number of statement lookups that had to compile SQL.
+     */
+    public long getStatementCacheMisses() {
+        synchronized(statementCacheLock) {
+            return statementCacheMisses;
         }
     }
 
-    @SuppressWarnings("unchecked")
-    public Map<String, Object> documentPropertiesFromJSON(byte[] json, String docId, String revId, long sequence, EnumSet<TDContentOptions> contentOptions) {
+    /** DOCUMENT ID CACHE: **/
 
-        TDRevision rev = new TDRevision(docId, revId, false);
-        rev.setSequence(sequence);
-        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
-        if(json == null) {
-            return extra;
-        }
+    /**
+     * Sets the maximum number of docid -> numeric ID mappings kept in memory.
+     */
+    public void setDocIDCacheSize(int size) {
+        docIDCache.setMaxSize(size);
+    }
 
-      Map<String,Object> docProperties = null;
-      try {
-          docProperties = TDServer.getObjectMapper().readValue(json, Map.class);
-          docProperties.putAll(extra);
-          return docProperties;
-      } catch (Exception e) {
-          Log.e(TDDatabase.TAG, "Error serializing properties to JSON", e);
-      }
+    public long getDocIDCacheHits() {
+        return docIDCache.getHitCount();
+    }
 
-      return docProperties;
+    public long getDocIDCacheMisses() {
+        return docIDCache.getMissCount();
     }
 
-    public TDRevision getDocumentWithIDAndRev(String id, String rev, EnumSet<TDContentOptions> contentOptions) {
-        TDRevision result = null;
-        String sql;
+    public double getDocIDCacheHitRate() {
+        return docIDCache.getHitRate();
+    }
 
-        Cursor cursor = null;
-        try {
-            cursor = null;
-            String cols = "revid, deleted, sequence";
-            if(!contentOptions.contains(TDContentOptions.TDNoBody)) {
-                cols += ", json";
-            }
-            if(rev != null) {
-                sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id AND revid=? LIMIT 1";
-                String[] args = {id, rev};
-                cursor = database.rawQuery(sql, args);
-            }
-            else {
-                sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";
-                String[] args = {id};
-                cursor = database.rawQuery(sql, args);
-            }
+    /** REVISION CACHE: **/
 
-            if(cursor.moveToFirst()) {
-                if(rev == null) {
-                    rev = cursor.getString(0);
-                }
-                boolean deleted = (cursor.getInt(1) > 0);
-                result = new TDRevision(id, rev, deleted);
-                result.setSequence(cursor.getLong(2));
-                if(!contentOptions.equals(EnumSet.of(TDContentOptions.TDNoBody))) {
-                    byte[] json = null;
-                    if(!contentOptions.contains(TDContentOptions.TDNoBody)) {
-                        json = cursor.getBlob(3);
-                    }
-                    expandStoredJSONIntoRevisionWithAttachments(json, result, contentOptions);
-                }
-            }
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error getting document with id and rev", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
-        }
-        return result;
+    /**
+     * Sets the maximum size, in bytes, of the cache of recently read revisions.
+     */
+    public void setRevisionCacheSize(int maxBytes) {
+        revisionCache.setMaxSize(maxBytes);
     }
 
-    public boolean existsDocumentWithIDAndRev(String docId, String revId) {
-        return getDocumentWithIDAndRev(docId, revId, EnumSet.of(TDContentOptions.TDNoBody)) != null;
+    public long getRevisionCacheHits() {
+        return revisionCache.getHitCount();
     }
 
-    public TDStatus loadRevisionBody(TDRevision rev, EnumSet<TDContentOptions> contentOptions) {
-        if(rev.getBody() != null) {
-            return new TDStatus(TDStatus.OK);
+    public long getRevisionCacheMisses() {
+        return revisionCache.getMissCount();
+    }
+
+    public double getRevisionCacheHitRate() {
+        return revisionCache.getHitRate();
+    }
+
+    /** REVISION TREE CACHE: **/
+
+    /**
+     * Sets the maximum total number of revisions in the cached revision trees.
+     */
+    public void setRevTreeCacheSize(int maxRevisions) {
+        revTreeCache.setMaxSize(maxRevisions);
+    }
+
+    public long getRevTreeCacheHits() {
+        return revTreeCache.getHitCount();
+    }
+
+    public long getRevTreeCacheMisses() {
+        return revTreeCache.getMissCount();
+    }
+
+    public double getRevTreeCacheHitRate() {
+        return revTreeCache.getHitRate();
+    }
+
+    /**
+     * Records a change to a document's revision tree, to be applied to the cached tree (if any) once
+     * the current transaction commits. Outside a transaction the cached tree is simply dropped.
+     */
+    private void revTreeChanged(TDRevTreeCache.Change change) {
+        if(change.docId == null) {
+            return;
         }
-        assert((rev.getDocId() != null) && (rev.getRevId() != null));
+        if(database.inTransaction()) {
+            pendingRevTreeChanges.add(change);
+        }
+        else {
+            revTreeCache.invalidate(change.docId);
+        }
+    }
 
-        Cursor cursor = null;
-        TDStatus result = new TDStatus(TDStatus.NOT_FOUND);
-        try {
-            String sql = "SELECT sequence, json FROM revs, docs WHERE revid=? AND docs.docid=? AND revs.doc_id=docs.doc_id LIMIT 1";
-            String[] args = { rev.getRevId(), rev.getDocId()};
-            cursor = database.rawQuery(sql, args);
-            if(cursor.moveToFirst()) {
-                result.setCode(TDStatus.OK);
-                rev.setSequence(cursor.getLong(0));
-                expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(1), rev, contentOptions);
-            }
-        } catch(SQLException e) {
-            Log.e(TDDatabase.TAG, "Error loading revision body", e);
-            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+    /**
+     * Returns the revision tree of a document, from the cache if possible. Inside a transaction (which
+     * may have changed the document without committing yet) it's always read from the database.
+     * Returns null on error, or an empty tree if the document doesn't exist.
+     */
+    TDRevTree getRevTree(String docId) {
+        boolean useCache = !database.inTransaction();
+        if(useCache) {
+            TDRevTree cached = revTreeCache.get(docId);
+            if(cached != null) {
+                return cached;
             }
         }
-        return result;
-    }
+        long generation = getReadRevTreeGeneration();
 
-    public long getDocNumericID(String docId) {
-        Cursor cursor = null;
-        String[] args = { docId };
+        long docNumericId = getDocNumericID(docId);
+        if(docNumericId < 0) {
+            return null;
+        }
+        else if(docNumericId == 0) {
+            return new TDRevTree(0, new long[0], new long[0], new String[0], new boolean[0], new boolean[0]);
+        }
 
-        long result = -1;
+        String sql = "SELECT sequence, parent, revid, deleted, current FROM revs " +
+                    "WHERE doc_id=? ORDER BY sequence";
+        String[] args = { Long.toString(docNumericId) };
+        Cursor cursor = null;
+        TDRevTree tree;
         try {
-            cursor = database.rawQuery("SELECT doc_id FROM docs WHERE docid=?", args);
-
-            if(cursor.moveToFirst()) {
-                result = cursor.getLong(0);
-            }
-            else {
-                result = 0;
+            cursor = getReadDatabase().rawQuery(sql, args);
+            int count = cursor.getCount();
+            long[] sequences = new long[count];
+            long[] parents = new long[count];
+            String[] revIds = new String[count];
+            boolean[] deleted = new boolean[count];
+            boolean[] current = new boolean[count];
+            int i = 0;
+            while(cursor.moveToNext()) {
+                sequences[i] = cursor.getLong(0);
+                parents[i] = cursor.getLong(1);
+                revIds[i] = cursor.getString(2);
+                deleted[i] = (cursor.getInt(3) > 0);
+                current[i] = (cursor.getInt(4) > 0);
+                ++i;
             }
-        } catch (Exception e) {
-            Log.e(TDDatabase.TAG, "Error getting doc numeric id", e);
+            tree = new TDRevTree(count, sequences, parents, revIds, deleted, current);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting revision tree", e);
+            return null;
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
         }
 
-        return result;
+        if(useCache) {
+            revTreeCache.putIfUnchanged(docId, tree, generation);
+        }
+        return tree;
     }
 
-    /** HISTORY: **/
+    /**
+     * Must be called whenever a document's revisions are changed, so that no out-of-date revision of it
+     * stays cached. Changes made in a transaction invalidate the cache again when the transaction ends.
+     */
+    void documentChanged(String docId) {
+        revisionCache.invalidate(docId);
+        if(database.inTransaction()) {
+            pendingRevisionInvalidations.add(docId);
+        }
+    }
 
     /**
-     * Returns all the known revisions (or all current/conflicting revisions) of a document.
+     * Removes a document from the docid cache, e.g. after its row has been deleted. Inside a
+     * transaction it's forgotten again when the transaction ends, since until the deletion commits
+     * other connections' reads can still find the row.
      */
-    public TDRevisionList getAllRevisionsOfDocumentID(String docId, long docNumericID, boolean onlyCurrent) {
+    void forgetDocNumericID(String docId) {
+        docIDCache.forget(docId);
+        pendingDocIDs.remove(docId);
+        if(database.inTransaction()) {
+            pendingForgottenDocIDs.add(docId);
+        }
+    }
 
-        String sql = null;
-        if(onlyCurrent) {
-            sql = "SELECT sequence, revid, deleted FROM revs " +
-                    "WHERE doc_id=? AND current ORDER BY sequence DESC";
-        }
-        else {
-            sql = "SELECT sequence, revid, deleted FROM revs " +
-                    "WHERE doc_id=? ORDER BY sequence DESC";
+    private void addPendingDocID(String docId, long docNumericID) {
+        if(pendingDocIDs.put(docId, docNumericID) == null) {
+            pendingDocIDOrder.add(docId);
         }
+    }
 
-        String[] args = { Long.toString(docNumericID) };
-        Cursor cursor = null;
+    private void clearPendingDocIDs() {
+        pendingDocIDs.clear();
+        pendingDocIDOrder.clear();
+        pendingDocIDMarks.clear();
+    }
 
-        cursor = database.rawQuery(sql, args);
+    /**
+     * Forgets the document IDs inserted since a nested transaction began, when it's rolled back.
+     */
+    private void forgetPendingDocIDsAfter(int mark) {
+        while(pendingDocIDOrder.size() > mark) {
+            pendingDocIDs.remove(pendingDocIDOrder.remove(pendingDocIDOrder.size() - 1));
+        }
+    }
 
-        TDRevisionList result;
+    public long totalDataSize() {
+        File f = new File(path);
+        long size = f.length() + attachments.totalDataSize();
+        return size;
+    }
+
+    /**
+     * Begins a database transaction. Transactions can nest.
+     * Every beginTransaction() must be balanced by a later endTransaction()
+     *
+     * Nested transactions are implemented as SQLite savepoints, so aborting one only undoes its own
+     * changes instead of dooming the enclosing transaction (as Android's nested transactions do.)
+     * Where Android won't let a savepoint be rolled back (see isNestedRollbackSupported()) aborting
+     * a nested transaction dooms the outermost one instead.
+     */
+    public boolean beginTransaction() {
         try {
-            cursor.moveToFirst();
-            result = new TDRevisionList();
-            while(!cursor.isAfterLast()) {
-                TDRevision rev = new TDRevision(docId, cursor.getString(1), (cursor.getInt(2) > 0));
-                rev.setSequence(cursor.getLong(0));
-                result.add(rev);
-                cursor.moveToNext();
+            if(!database.inTransaction()) {
+                database.beginTransaction();
+                transactionLevel = 1;
+                transactionDoomed = false;
+                clearPendingDocIDs();
+                pendingRevTreeChanges.clear();
+                pendingRevTreeMarks.clear();
+                clearPendingTotals();
             }
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error getting all revisions of document", e);
-            return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+            else {
+                database.execSQL("SAVEPOINT tdb" + (transactionLevel + 1));
+                ++transactionLevel;
+                pendingDocIDMarks.add(pendingDocIDOrder.size());
+                pendingRevTreeMarks.add(pendingRevTreeChanges.size());
+                pendingDocumentCountMarks.add(pendingDocumentCountDelta);
+                pendingLastSequenceMarks.add(pendingLastSequence);
             }
+            //Log.v(TAG, "Begin transaction (level " + Integer.toString(transactionLevel) + ")...");
+        } catch (SQLException e) {
+            return false;
         }
-
-        return result;
+        return true;
     }
 
-    public TDRevisionList getAllRevisionsOfDocumentID(String docId, boolean onlyCurrent) {
-        long docNumericId = getDocNumericID(docId);
-        if(docNumericId < 0) {
-            return null;
-        }
-        else if(docNumericId == 0) {
-            return new TDRevisionList();
+    /**
+     * Commits or aborts (rolls back) a transaction.
+     *
+     * @param commit If true, commits; if false, aborts and rolls back, undoing all changes made since the matching -beginTransaction call, *including* any committed nested transactions.
+     */
+    public boolean endTransaction(boolean commit) {
+        assert(transactionLevel > 0);
+
+        if(transactionLevel > 1) {
+            String savepoint = "tdb" + transactionLevel;
+            int mark = pendingDocIDMarks.remove(pendingDocIDMarks.size() - 1);
+            int revTreeMark = pendingRevTreeMarks.remove(pendingRevTreeMarks.size() - 1);
+            int documentCountMark = pendingDocumentCountMarks.remove(pendingDocumentCountMarks.size() - 1);
+            long lastSequenceMark = pendingLastSequenceMarks.remove(pendingLastSequenceMarks.size() - 1);
+            try {
+                if(!commit) {
+                    forgetPendingDocIDsAfter(mark);
+                    pendingDocumentCountDelta = documentCountMark;
+                    pendingLastSequence = lastSequenceMark;
+                    while(pendingRevTreeChanges.size() > revTreeMark) {
+                        pendingRevTreeChanges.remove(pendingRevTreeChanges.size() - 1);
+                    }
+                    Log.v(TAG, "CANCEL transaction (level " + Integer.toString(transactionLevel) + ")...");
+                    if(NESTED_ROLLBACK_SUPPORTED) {
+                        database.execSQL(ROLLBACK_TO_SAVEPOINT_SQL + savepoint);
+                    }
+                    else {
+                        transactionDoomed = true;
+                    }
+                }
+                database.execSQL("RELEASE SAVEPOINT " + savepoint);
+            } catch (SQLException e) {
+                return false;
+            } finally {
+                --transactionLevel;
+            }
+            return true;
         }
-        else {
-            return getAllRevisionsOfDocumentID(docId, docNumericId, onlyCurrent);
+
+        boolean committed = false;
+        try {
+            if(commit && transactionDoomed) {
+                Log.w(TAG, "Rolling back transaction because a nested one was aborted");
+                database.endTransaction();
+                return false;
+            }
+            if(commit) {
+                //Log.v(TAG, "Committing transaction (level " + Integer.toString(transactionLevel) + ")...");
+                database.setTransactionSuccessful();
+                database.endTransaction();
+                committed = true;
+            }
+            else {
+                Log.v(TAG, "CANCEL transaction (level " + Integer.toString(transactionLevel) + ")...");
+                try {
+                    database.endTransaction();
+                } catch (SQLException e) {
+                    return false;
+                }
+            }
+        } finally {
+            transactionLevel = 0;
+            outermostTransactionEnded(committed);
         }
+        return true;
     }
 
-    public List<String> getConflictingRevisionIDsOfDocID(String docID) {
-        long docIdNumeric = getDocNumericID(docID);
-        if(docIdNumeric < 0) {
-            return null;
+    /**
+     * Whether aborting a nested transaction undoes only its own changes. Before Jelly Bean (API
+     * 16) SQL is passed straight to SQLite. Since then Android runs every statement, however it's
+     * executed, through SQLiteSession, which classifies it with DatabaseUtils.getSqlStatementType()
+     * and handles anything that starts with "ROLLBACK" as the end of its own transaction. The
+     * releases that only look at the first three characters see a leading comment instead, so it
+     * keeps "ROLLBACK TO SAVEPOINT" a plain statement. Releases that skip leading comments classify
+     * it as an abort no matter what, so there a failed nested transaction dooms the outermost one
+     * instead, and group commit is turned off. The classification is checked directly rather than
+     * trusting the version number.
+     */
+    public static boolean isNestedRollbackSupported() {
+        return NESTED_ROLLBACK_SUPPORTED;
+    }
+
+    /**
+     * Brings the in-memory caches up to date after the outermost transaction commits or rolls back.
+     */
+    private void outermostTransactionEnded(boolean committed) {
+        for (String docId : pendingForgottenDocIDs) {
+            docIDCache.forget(docId);
         }
+        pendingForgottenDocIDs.clear();
 
-        List<String> result = new ArrayList<String>();
-        Cursor cursor = null;
-        try {
-            String[] args = { Long.toString(docIdNumeric) };
-            cursor = database.rawQuery("SELECT revid FROM revs WHERE doc_id=? AND current " +
-                                           "ORDER BY revid DESC OFFSET 1", args);
-            cursor.moveToFirst();
-            while(!cursor.isAfterLast()) {
-                result.add(cursor.getString(0));
-                cursor.moveToNext();
+        if(committed) {
+            for (String docId : pendingDocIDOrder) {
+                Long docNumericID = pendingDocIDs.get(docId);
+                if(docNumericID != null) {
+                    docIDCache.put(docId, docNumericID);
+                }
             }
+        }
+        clearPendingDocIDs();
 
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error getting all revisions of document", e);
-            return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+        for (String docId : pendingRevisionInvalidations) {
+            revisionCache.invalidate(docId);
+        }
+        pendingRevisionInvalidations.clear();
+
+        if(committed) {
+            for (TDRevTreeCache.Change change : pendingRevTreeChanges) {
+                revTreeCache.apply(change);
             }
         }
+        pendingRevTreeChanges.clear();
+        pendingRevTreeMarks.clear();
 
-        return result;
+        if(committed) {
+            documentCount += pendingDocumentCountDelta;
+            lastSequence = Math.max(lastSequence, pendingLastSequence);
+        }
+        clearPendingTotals();
     }
 
-    public String findCommonAncestorOf(TDRevision rev, List<String> revIDs) {
-        String result = null;
+    private void clearPendingTotals() {
+        pendingDocumentCountDelta = 0;
+        pendingLastSequence = 0;
+        pendingDocumentCountMarks.clear();
+        pendingLastSequenceMarks.clear();
+    }
 
-    	if (revIDs.size() == 0)
-    		return null;
-    	String docId = rev.getDocId();
-    	long docNumericID = getDocNumericID(docId);
-    	if (docNumericID <= 0)
-    		return null;
-    	String quotedRevIds = joinQuoted(revIDs);
-    	String sql = "SELECT revid FROM revs " +
-    			"WHERE doc_id=? and revid in (" + quotedRevIds + ") and revid <= ? " +
-    			"ORDER BY revid DESC LIMIT 1";
-    	String[] args = { Long.toString(docNumericID) };
-
-    	Cursor cursor = null;
-    	try {
-    		cursor = database.rawQuery(sql, args);
-    		cursor.moveToFirst();
-            if(!cursor.isAfterLast()) {
-                result = cursor.getString(0);
-    		}
+    /** GROUP COMMIT: **/
 
-    	} catch (SQLException e) {
-    		Log.e(TDDatabase.TAG, "Error getting all revisions of document", e);
-    	} finally {
-    		if(cursor != null) {
-    			cursor.close();
-    		}
-    	}
+    /**
+     * Enables or disables group commit. When enabled, putRevision and forceInsert calls made from
+     * different threads outside of any transaction are queued and committed together in a single
+     * SQLite transaction, so they share one sync to storage. Each caller still gets its own status.
+     */
+    public void setGroupCommitEnabled(boolean groupCommitEnabled) {
+        this.groupCommitEnabled = groupCommitEnabled;
+    }
 
-    	return result;
+    public boolean isGroupCommitEnabled() {
+        return groupCommitEnabled;
     }
 
     /**
-     * Returns an array of TDRevs in reverse chronological order, starting with the given revision.
+     * The maximum number of writes committed together in one group commit.
      */
-    public List<TDRevision> getRevisionHistory(TDRevision rev) {
-        String docId = rev.getDocId();
-        String revId = rev.getRevId();
-        assert((docId != null) && (revId != null));
+    public void setGroupCommitMaxBatchSize(int groupCommitMaxBatchSize) {
+        this.groupCommitMaxBatchSize = Math.max(1, groupCommitMaxBatchSize);
+    }
 
-        long docNumericId = getDocNumericID(docId);
-        if(docNumericId < 0) {
-            return null;
-        }
-        else if(docNumericId == 0) {
-            return new ArrayList<TDRevision>();
-        }
+    public int getGroupCommitMaxBatchSize() {
+        return groupCommitMaxBatchSize;
+    }
 
-        String sql = "SELECT sequence, parent, revid, deleted FROM revs " +
-                    "WHERE doc_id=? ORDER BY sequence DESC";
-        String[] args = { Long.toString(docNumericId) };
-        Cursor cursor = null;
+    /**
+     * The longest time (in milliseconds) a write will wait for others to join its group commit.
+     */
+    public void setGroupCommitMaxWait(long groupCommitMaxWait) {
+        this.groupCommitMaxWait = Math.max(0, groupCommitMaxWait);
+    }
 
-        List<TDRevision> result;
-        try {
-            cursor = database.rawQuery(sql, args);
+    public long getGroupCommitMaxWait() {
+        return groupCommitMaxWait;
+    }
 
-            cursor.moveToFirst();
-            long lastSequence = 0;
-            result = new ArrayList<TDRevision>();
-            while(!cursor.isAfterLast()) {
-                long sequence = cursor.getLong(0);
-                boolean matches = false;
-                if(lastSequence == 0) {
-                    matches = revId.equals(cursor.getString(2));
+    private boolean shouldGroupCommit() {
+        // Without nested rollback, one failed write would take the rest of its batch down with it:
+        return groupCommitEnabled && NESTED_ROLLBACK_SUPPORTED && !database.inTransaction();
+    }
+
+    /**
+     * A write waiting in the group commit queue.
+     */
+    private abstract class TDGroupCommitWrite {
+        final TDStatus status;
+        final URL source;
+        TDRevision result;
+        boolean leader;
+        boolean done;
+
+        TDGroupCommitWrite(TDStatus status, URL source) {
+            this.status = status;
+            this.source = source;
+        }
+
+        /**
+         * Performs the write inside the group's transaction.
+         * @return  the revision to announce in the change notification, or null on failure
+         */
+        abstract TDRevision perform();
+    }
+
+    /**
+     * Queues a write and blocks until the group commit containing it has finished. The first writer
+     * to arrive becomes the leader: it waits until the batch fills or the max wait expires, commits
+     * the batch on behalf of everyone in it, then hands leadership to the next queued writer.
+     */
+    private void runWithGroupCommit(TDGroupCommitWrite write) {
+        List<TDGroupCommitWrite> batch = new ArrayList<TDGroupCommitWrite>();
+        boolean interrupted = false;
+        synchronized (groupCommitLock) {
+            groupCommitQueue.add(write);
+            if(!groupCommitLeaderActive) {
+                groupCommitLeaderActive = true;
+                write.leader = true;
+            }
+            groupCommitLock.notifyAll();
+            while(!write.leader && !write.done) {
+                try {
+                    groupCommitLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
-                else {
-                    matches = (sequence == lastSequence);
-                }
-                if(matches) {
-                    revId = cursor.getString(2);
-                    boolean deleted = (cursor.getInt(3) > 0);
-                    TDRevision aRev = new TDRevision(docId, revId, deleted);
-                    aRev.setSequence(cursor.getLong(0));
-                    result.add(aRev);
-                    lastSequence = cursor.getLong(1);
-                    if(lastSequence == 0) {
-                        break;
-                    }
+            }
+            if(write.done) {
+                if(interrupted) {
+                    Thread.currentThread().interrupt();
                 }
-                cursor.moveToNext();
+                return;
             }
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error getting revision history", e);
-            return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+
+            // We're the leader; give other writers a chance to join the batch:
+            long deadline = System.currentTimeMillis() + groupCommitMaxWait;
+            while(groupCommitQueue.size() < groupCommitMaxBatchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    break;
+                }
+                try {
+                    groupCommitLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            while(!groupCommitQueue.isEmpty() && batch.size() < groupCommitMaxBatchSize) {
+                batch.add(groupCommitQueue.remove(0));
             }
         }
 
-        return result;
-    }
-
-    // Splits a revision ID into its generation number and opaque suffix string
-    public static int parseRevIDNumber(String rev) {
-        int result = -1;
-        int dashPos = rev.indexOf("-");
-        if(dashPos >= 0) {
-            try {
-                result = Integer.parseInt(rev.substring(0, dashPos));
-            } catch (NumberFormatException e) {
-                // ignore, let it return -1
+        try {
+            commitGroup(batch);
+        } finally {
+            synchronized (groupCommitLock) {
+                for (TDGroupCommitWrite committed : batch) {
+                    committed.done = true;
+                }
+                if(groupCommitQueue.isEmpty()) {
+                    groupCommitLeaderActive = false;
+                }
+                else {
+                    groupCommitQueue.get(0).leader = true;
+                }
+                groupCommitLock.notifyAll();
             }
         }
-        return result;
-    }
 
-    // Splits a revision ID into its generation number and opaque suffix string
-    public static String parseRevIDSuffix(String rev) {
-        String result = null;
-        int dashPos = rev.indexOf("-");
-        if(dashPos >= 0) {
-            result = rev.substring(dashPos + 1);
+        for (TDGroupCommitWrite committed : batch) {
+            if(committed.result != null) {
+                notifyChange(committed.result, committed.source);
+            }
         }
-        return result;
-    }
-
-    public static Map<String,Object> makeRevisionHistoryDict(List<TDRevision> history) {
-        if(history == null) {
-            return null;
+        if(interrupted) {
+            Thread.currentThread().interrupt();
         }
+    }
 
-        // Try to extract descending numeric prefixes:
-        List<String> suffixes = new ArrayList<String>();
-        int start = -1;
-        int lastRevNo = -1;
-        for (TDRevision rev : history) {
-            int revNo = parseRevIDNumber(rev.getRevId());
-            String suffix = parseRevIDSuffix(rev.getRevId());
-            if(revNo > 0 && suffix.length() > 0) {
-                if(start < 0) {
-                    start = revNo;
+    private void commitGroup(List<TDGroupCommitWrite> batch) {
+        boolean committed = false;
+        if(beginTransaction()) {
+            try {
+                for (TDGroupCommitWrite write : batch) {
+                    try {
+                        write.result = write.perform();
+                    } catch (RuntimeException e) {
+                        Log.e(TDDatabase.TAG, "Error in group commit write", e);
+                        write.status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+                        write.result = null;
+                    }
                 }
-                else if(revNo != lastRevNo - 1) {
-                    start = -1;
-                    break;
+                committed = true;
+            } finally {
+                try {
+                    committed = endTransaction(committed) && committed;
+                } catch (SQLException e) {
+                    Log.e(TDDatabase.TAG, "Error committing group of " + batch.size() + " writes", e);
+                    committed = false;
                 }
-                lastRevNo = revNo;
-                suffixes.add(suffix);
-            }
-            else {
-                start = -1;
-                break;
             }
         }
-
-        Map<String,Object> result = new HashMap<String,Object>();
-        if(start == -1) {
-            // we failed to build sequence, just stuff all the revs in list
-            suffixes = new ArrayList<String>();
-            for (TDRevision rev : history) {
-                suffixes.add(rev.getRevId());
+        if(!committed) {
+            for (TDGroupCommitWrite write : batch) {
+                write.status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+                write.result = null;
             }
         }
-        else {
-            result.put("start", start);
-        }
-        result.put("ids", suffixes);
-
-        return result;
     }
 
     /**
-     * Returns the revision history as a _revisions dictionary, as returned by the REST API's ?revs=true option.
+     * Compacts the database storage by removing the bodies and attachments of obsolete revisions.
      */
-    public Map<String,Object> getRevisionHistoryDict(TDRevision rev) {
-        return makeRevisionHistoryDict(getRevisionHistory(rev));
-    }
+    public TDStatus compact() {
+        // Delete the revisions that are further back in their documents' history than revs_limit:
+        Log.v(TDDatabase.TAG, "Pruning old revisions...");
+        if(pruneRevisions() < 0) {
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        }
 
-    public TDRevisionList changesSince(long lastSeq, TDChangesOptions options, TDFilterBlock filter) {
-        // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
-        if(options == null) {
-            options = new TDChangesOptions();
+        // The rest of the revision tree history has to be kept,
+        // but we can remove the JSON of non-current revisions, which is most of the space.
+        Log.v(TDDatabase.TAG, "Deleting JSON of old revisions...");
+        if(clearObsoleteBodies(0, Long.MAX_VALUE) < 0) {
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
         }
 
-        boolean includeDocs = options.isIncludeDocs() || (filter != null);
-        String additionalSelectColumns =  "";
-        if(includeDocs) {
-            additionalSelectColumns = ", json";
-        }
-
-        String sql = "SELECT sequence, revs.doc_id, docid, revid, deleted" + additionalSelectColumns + " FROM revs, docs "
-                        + "WHERE sequence > ? AND current=1 "
-                        + "AND revs.doc_id = docs.doc_id "
-                        + "ORDER BY revs.doc_id, revid DESC";
-        String[] args = {Long.toString(lastSeq)};
-        Cursor cursor = null;
-        TDRevisionList changes = null;
+        Log.v(TDDatabase.TAG, "Deleting old attachments...");
+        TDStatus result = garbageCollectAttachments();
 
+        Log.v(TDDatabase.TAG, "Vacuuming SQLite database...");
         try {
-            cursor = database.rawQuery(sql, args);
-            cursor.moveToFirst();
-            changes = new TDRevisionList();
-            long lastDocId = 0;
-            while(!cursor.isAfterLast()) {
-                if(!options.isIncludeConflicts()) {
-                    // Only count the first rev for a given doc (the rest will be losing conflicts):
-                    long docNumericId = cursor.getLong(1);
-                    if(docNumericId == lastDocId) {
-                        cursor.moveToNext();
-                        continue;
-                    }
-                    lastDocId = docNumericId;
-                }
-
-                TDRevision rev = new TDRevision(cursor.getString(2), cursor.getString(3), (cursor.getInt(4) > 0));
-                rev.setSequence(cursor.getLong(0));
-                if(includeDocs) {
-                    expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(5), rev, options.getContentOptions());
-                }
-                if((filter == null) || (filter.filter(rev))) {
-                    changes.add(rev);
-                }
-                cursor.moveToNext();
-            }
+            // Databases created before auto_vacuum was turned on are converted by the VACUUM:
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            database.execSQL("VACUUM");
         } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error looking for changes", e);
-        } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
+            Log.e(TDDatabase.TAG, "Error vacuuming database", e);
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
         }
 
-        if(options.isSortBySequence()) {
-            changes.sortBySequence();
-        }
-        changes.limit(options.getLimit());
-        return changes;
+        return result;
     }
 
     /**
-     * Define or clear a named filter function.
-     *
-     * These aren't used directly by TDDatabase, but they're looked up by TDRouter when a _changes request has a ?filter parameter.
+     * Removes the JSON, and the attachment rows, of the non-current revisions whose sequences are in
+     * the range (afterSequence, lastSequence]. Only revisions that stopped being current since the
+     * last compaction still have any.
+     * @return  The number of revisions cleared, or -1 on error.
      */
-    public void defineFilter(String filterName, TDFilterBlock filter) {
-        if(filters == null) {
-            filters = new HashMap<String,TDFilterBlock>();
+    int clearObsoleteBodies(long afterSequence, long lastSequence) {
+        String[] args = { Long.toString(afterSequence), Long.toString(lastSequence) };
+        int numCleared = -1;
+        boolean success = false;
+        beginTransaction();
+        try {
+            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
+                    "(SELECT sequence FROM revs WHERE current=0 AND json IS NOT NULL AND sequence > ? AND sequence <= ?)", args);
+            ContentValues values = new ContentValues();
+            values.put("json", (String)null);
+            numCleared = database.update("revs", values, "current=0 AND json IS NOT NULL AND sequence > ? AND sequence <= ?", args);
+            success = true;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error compacting", e);
+            return -1;
+        } finally {
+            endTransaction(success);
+            revisionCache.invalidateAll();
         }
-        filters.put(filterName, filter);
+        return numCleared;
     }
 
-    public TDFilterBlock getFilterNamed(String filterName) {
-        TDFilterBlock result = null;
-        if(filters != null) {
-            result = filters.get(filterName);
+    /**
+     * Starts compacting the database in the background, a step at a time, on the given executor.
+     * Unlike compact(), this never blocks the database for longer than a step's time budget.
+     * @return  The compactor, which may already have been running.
+     */
+    public synchronized TDCompactor compactInBackground(ScheduledExecutorService workExecutor) {
+        if(activeCompactor == null || activeCompactor.isFinished()) {
+            activeCompactor = new TDCompactor(this);
+            activeCompactor.start(workExecutor);
         }
-        return result;
+        return activeCompactor;
     }
 
-    /** VIEWS: **/
+    /**
+     * The background compaction that's running, or that ran most recently; null if there's none.
+     */
+    public synchronized TDCompactor getActiveCompactor() {
+        return activeCompactor;
+    }
 
-    public TDView registerView(TDView view) {
-        if(view == null) {
-            return null;
-        }
-        if(views == null) {
-            views = new HashMap<String,TDView>();
+    /**
+     * Whether the database file can give back its free pages with incremental_vacuum, rather than
+     * needing a full VACUUM.
+     */
+    boolean isIncrementalVacuumEnabled() {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("PRAGMA auto_vacuum", null);
+            return cursor.moveToFirst() && cursor.getInt(0) == 2;
+        } catch(SQLException e) {
+            Log.e(TAG, "Error querying auto_vacuum", e);
+            return false;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
         }
-        views.put(view.getName(), view);
-        return view;
     }
 
-    public TDView getViewNamed(String name) {
-        TDView view = null;
-        if(views != null) {
-            view = views.get(name);
-        }
-        if(view != null) {
-            return view;
+    /**
+     * Returns up to maxPages free pages to the file system.
+     * @return  The number of free pages left, or -1 on error.
+     */
+    int incrementalVacuum(int maxPages) {
+        Cursor cursor = null;
+        try {
+            // Each page freed is a result row, so the statement has to be stepped to the end:
+            cursor = database.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+            cursor.getCount();
+            cursor.close();
+            cursor = database.rawQuery("PRAGMA freelist_count", null);
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } catch(SQLException e) {
+            Log.e(TAG, "Error vacuuming database", e);
+            return -1;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
         }
-        return registerView(new TDView(this, name));
     }
 
-    public TDView getExistingViewNamed(String name) {
-        TDView view = null;
-        if(views != null) {
-            view = views.get(name);
-        }
-        if(view != null) {
-            return view;
-        }
-        view = new TDView(this, name);
-        if(view.getViewId() == 0) {
-            return null;
+    public String privateUUID() {
+        String result = null;
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT value FROM info WHERE key='privateUUID'", null);
+            if(cursor.moveToFirst()) {
+                result = cursor.getString(0);
+            }
+        } catch(SQLException e) {
+            Log.e(TAG, "Error querying privateUUID", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
         }
-
-        return registerView(view);
+        return result;
     }
 
-    public List<TDView> getAllViews() {
+    public String publicUUID() {
+        String result = null;
         Cursor cursor = null;
-        List<TDView> result = null;
-
         try {
-            cursor = database.rawQuery("SELECT name FROM views", null);
-            cursor.moveToFirst();
-            result = new ArrayList<TDView>();
-            while(!cursor.isAfterLast()) {
-                result.add(getViewNamed(cursor.getString(0)));
-                cursor.moveToNext();
+            cursor = database.rawQuery("SELECT value FROM info WHERE key='publicUUID'", null);
+            if(cursor.moveToFirst()) {
+                result = cursor.getString(0);
             }
-        } catch (Exception e) {
-            Log.e(TDDatabase.TAG, "Error getting all views", e);
+        } catch(SQLException e) {
+            Log.e(TAG, "Error querying privateUUID", e);
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
         }
-
         return result;
     }
 
-    public TDStatus deleteViewNamed(String name) {
-        TDStatus result = new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+    /** REVISION HISTORY LIMIT: **/
+
+    /**
+     * The maximum number of generations of a document's revision history that are kept (CouchDB's
+     * _revs_limit.) Older non-current revisions are deleted as new ones are added, and by compact().
+     */
+    public int getRevsLimit() {
+        if(revsLimit > 0) {
+            return revsLimit;
+        }
+        int result = DEFAULT_REVS_LIMIT;
+        Cursor cursor = null;
         try {
-            String[] whereArgs = { name };
-            int rowsAffected = database.delete("views", "name=?", whereArgs);
-            if(rowsAffected > 0) {
-                result.setCode(TDStatus.OK);
+            cursor = database.rawQuery("SELECT value FROM info WHERE key='revs_limit'", null);
+            if(cursor.moveToFirst()) {
+                result = Integer.parseInt(cursor.getString(0));
             }
-            else {
-                result.setCode(TDStatus.NOT_FOUND);
+        } catch(SQLException e) {
+            Log.e(TAG, "Error querying revs_limit", e);
+        } catch(NumberFormatException e) {
+            Log.e(TAG, "Invalid revs_limit stored in database", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
             }
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error deleting view", e);
         }
+        revsLimit = result;
         return result;
     }
 
-    //FIX: This has a lot of code in common with -[TDView queryWithOptions:status:]. Unify the two!
-    public Map<String,Object> getDocsWithIDs(List<String> docIDs, TDQueryOptions options) {
-        if(options == null) {
-            options = new TDQueryOptions();
+    public boolean setRevsLimit(int limit) {
+        if(limit < 1) {
+            return false;
         }
-
-        long updateSeq = 0;
-        if(options.isUpdateSeq()) {
-            updateSeq = getLastSequence();  // TODO: needs to be atomic with the following SELECT
+        try {
+            String[] args = { Integer.toString(limit) };
+            database.execSQL("INSERT OR REPLACE INTO info (key, value) VALUES ('revs_limit', ?)", args);
+        } catch(SQLException e) {
+            Log.e(TAG, "Error setting revs_limit", e);
+            return false;
         }
+        revsLimit = limit;
+        return true;
+    }
 
-        // Generate the SELECT statement, based on the options:
-        String additionalCols = "";
-        if(options.isIncludeDocs()) {
-            additionalCols = ", json, sequence";
+    /**
+     * Deletes a document's non-current revisions that aren't within revs_limit generations of any of
+     * its current revisions, so each conflicting branch keeps its own history (as CouchDB stems each
+     * leaf's path separately.) Their children's parent links become NULL, which later inserts and
+     * history lookups treat as the start of the history.
+     *
+     * A revision is kept if its generation is in the window of revs_limit generations ending at some
+     * current revision's. Every ancestor that close to a leaf is in that leaf's window, so nothing
+     * a branch needs is lost; at most revs_limit revisions per leaf are kept beyond that.
+     *
+     * @param generation  The generation of the revision just inserted; nothing can need pruning
+     *                    if it's within revs_limit of the first generation.
+     */
+    private void pruneRevisions(String docId, long docNumericID, int generation) throws SQLException {
+        int revsLimit = getRevsLimit();
+        if(generation <= revsLimit) {
+            return;
         }
-        String sql = "SELECT revs.doc_id, docid, revid, deleted" + additionalCols + " FROM revs, docs WHERE";
-
-        if(docIDs != null) {
-            sql += " docid IN (" + joinQuoted(docIDs) + ")";
-        } else {
-            sql += " deleted=0";
+        // CAST takes the leading integer of the revID, which is its generation:
+        SQLiteStatement statement = acquireStatement("DELETE FROM revs WHERE doc_id=? AND current=0 AND NOT EXISTS " +
+                "(SELECT 1 FROM revs AS leaf WHERE leaf.doc_id=revs.doc_id AND leaf.current=1" +
+                " AND CAST(revs.revid AS INTEGER) > CAST(leaf.revid AS INTEGER) - ?" +
+                " AND CAST(revs.revid AS INTEGER) <= CAST(leaf.revid AS INTEGER))");
+        SQLiteStatement changes = null;
+        try {
+            statement.bindLong(1, docNumericID);
+            statement.bindLong(2, revsLimit);
+            statement.execute();
+            changes = acquireStatement("SELECT changes()");
+            if(changes.simpleQueryForLong() > 0) {
+                revTreeChanged(TDRevTreeCache.Change.pruned(docId, revsLimit));
+            }
+        } finally {
+            releaseStatement(statement);
+            releaseStatement(changes);
         }
+    }
 
-        sql += " AND current=1 AND docs.doc_id = revs.doc_id";
-
-        List<String> argsList = new ArrayList<String>();
-        Object minKey = options.getStartKey();
-        Object maxKey = options.getEndKey();
-        boolean inclusiveMin = true;
-        boolean inclusiveMax = options.isInclusiveEnd();
-        if(options.isDescending()) {
-            minKey = maxKey;
-            maxKey = options.getStartKey();
-            inclusiveMin = inclusiveMax;
-            inclusiveMax = true;
-        }
+    /**
+     * Prunes every document's revision history to revs_limit generations.
+     * @return  The number of documents pruned, or -1 on error.
+     */
+    public int pruneRevisions() {
+        return pruneRevisions(0, Long.MAX_VALUE);
+    }
 
-        if(minKey != null) {
-            assert(minKey instanceof String);
-            if(inclusiveMin) {
-                sql += " AND docid >= ?";
-            } else {
-                sql += " AND docid > ?";
+    /**
+     * Prunes the revision histories of the documents whose numeric IDs are in the range
+     * (afterDocNumericID, lastDocNumericID], so the work can be split into small transactions.
+     * @return  The number of documents pruned, or -1 on error.
+     */
+    int pruneRevisions(long afterDocNumericID, long lastDocNumericID) {
+        String sql = "SELECT revs.doc_id, docid, MAX(CAST(revid AS INTEGER)) FROM revs, docs " +
+                "WHERE revs.doc_id = docs.doc_id AND revs.doc_id > ? AND revs.doc_id <= ? GROUP BY revs.doc_id " +
+                "HAVING MAX(CAST(revid AS INTEGER)) - MIN(CAST(revid AS INTEGER)) >= ?";
+        String[] args = { Long.toString(afterDocNumericID), Long.toString(lastDocNumericID), Integer.toString(getRevsLimit()) };
+        List<Long> docNumericIDs = new ArrayList<Long>();
+        List<String> docIds = new ArrayList<String>();
+        List<Integer> generations = new ArrayList<Integer>();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, args);
+            while(cursor.moveToNext()) {
+                docNumericIDs.add(cursor.getLong(0));
+                docIds.add(cursor.getString(1));
+                generations.add(cursor.getInt(2));
+            }
+        } catch(SQLException e) {
+            Log.e(TAG, "Error finding revisions to prune", e);
+            return -1;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
             }
-            argsList.add((String)minKey);
+        }
+        if(docIds.isEmpty()) {
+            return 0;
         }
 
-        if(maxKey != null) {
-            assert(maxKey instanceof String);
-            if(inclusiveMax) {
-                sql += " AND docid <= ?";
-            }
-            else {
-                sql += " AND docid < ?";
+        boolean success = false;
+        beginTransaction();
+        try {
+            for(int i = 0; i < docIds.size(); i++) {
+                pruneRevisions(docIds.get(i), docNumericIDs.get(i), generations.get(i));
+                documentChanged(docIds.get(i));
             }
-            argsList.add((String)maxKey);
+            success = true;
+        } catch(SQLException e) {
+            Log.e(TAG, "Error pruning revisions", e);
+        } finally {
+            endTransaction(success);
         }
+        return success ? docIds.size() : -1;
+    }
 
+    /** GETTING DOCUMENTS: **/
 
-        String order = "ASC";
-        if(options.isDescending()) {
-            order = "DESC";
+    /**
+     * The number of documents with a current, non-deleted revision. Kept in memory, so this doesn't
+     * touch the database, except within a pinned read snapshot, whose own count it returns.
+     */
+    public int getDocumentCount() {
+        if(database.inTransaction()) {
+            return documentCount + pendingDocumentCountDelta;
         }
+        if(getReadDatabase() != database) {
+            return queryDocumentCount();
+        }
+        return documentCount;
+    }
 
-        sql += " ORDER BY docid " + order + ", revid DESC LIMIT ? OFFSET ?";
+    /**
+     * The highest sequence number ever assigned to a revision. Like getDocumentCount(), this is kept
+     * in memory.
+     */
+    public long getLastSequence() {
+        if(database.inTransaction()) {
+            return Math.max(lastSequence, pendingLastSequence);
+        }
+        if(getReadDatabase() != database) {
+            return queryLastSequence();
+        }
+        return lastSequence;
+    }
 
-        argsList.add(Integer.toString(options.getLimit()));
-        argsList.add(Integer.toString(options.getSkip()));
+    private int queryDocumentCount() {
+        String sql = "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
         Cursor cursor = null;
-        long lastDocID = 0;
-        List<Map<String,Object>> rows = null;
-
+        int result = 0;
         try {
-            cursor = database.rawQuery(sql, argsList.toArray(new String[argsList.size()]));
-
-            cursor.moveToFirst();
-            rows = new ArrayList<Map<String,Object>>();
-            while(!cursor.isAfterLast()) {
-                long docNumericID = cursor.getLong(0);
-                if(docNumericID == lastDocID) {
-                    cursor.moveToNext();
-                    continue;
-                }
-                lastDocID = docNumericID;
-
-                String docId = cursor.getString(1);
-                String revId = cursor.getString(2);
-                Map<String, Object> docContents = null;
-                boolean deleted = cursor.getInt(3) > 0;
-                if(options.isIncludeDocs() && !deleted) {
-                    byte[] json = cursor.getBlob(4);
-                    long sequence = cursor.getLong(5);
-                    docContents = documentPropertiesFromJSON(json, docId, revId, sequence, options.getContentOptions());
-                }
-
-                Map<String,Object> valueMap = new HashMap<String,Object>();
-                valueMap.put("rev", revId);
-
-                Map<String,Object> change = new HashMap<String, Object>();
-                change.put("id", docId);
-                change.put("key", docId);
-                change.put("value", valueMap);
-                if(docContents != null) {
-                    change.put("doc", docContents);
-                }
-                if(deleted) {
-                    change.put("deleted", true);
-                }
-
-                rows.add(change);
-
-                cursor.moveToNext();
+            cursor = getReadDatabase().rawQuery(sql, null);
+            if(cursor.moveToFirst()) {
+                result = cursor.getInt(0);
             }
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error getting all docs", e);
-            return null;
+        } catch(SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting document count", e);
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
         }
 
-        int totalRows = cursor.getCount();  //??? Is this true, or does it ignore limit/offset?
-        Map<String, Object> result = new HashMap<String, Object>();
-        result.put("rows", rows);
-        result.put("total_rows", totalRows);
-        result.put("offset", options.getSkip());
-        if(updateSeq != 0) {
-            result.put("update_seq", updateSeq);
-        }
-
-
         return result;
     }
 
-    public Map<String,Object> getAllDocs(TDQueryOptions options) {
-        return getDocsWithIDs(null, options);
-    }
-
-    /*************************************************************************************************/
-    /*** TDDatabase+Attachments                                                                    ***/
-    /*************************************************************************************************/
-
-    public TDStatus insertAttachmentForSequenceWithNameAndType(InputStream contentStream, long sequence, String name, String contentType, int revpos) {
-        assert(sequence > 0);
-        assert(name != null);
-
-        TDBlobKey key = new TDBlobKey();
-        if(!attachments.storeBlobStream(contentStream, key)) {
-            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
-        }
-
-        byte[] keyData = key.getBytes();
-        try {
-            ContentValues args = new ContentValues();
-            args.put("sequence", sequence);
-            args.put("filename", name);
-            args.put("key", keyData);
-            args.put("type", contentType);
-            args.put("length", attachments.getSizeOfBlob(key));
-            args.put("revpos", revpos);
-            database.insert("attachments", null, args);
-            return new TDStatus(TDStatus.CREATED);
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error inserting attachment", e);
-            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
-        }
-    }
-
-    public TDStatus copyAttachmentNamedFromSequenceToSequence(String name, long fromSeq, long toSeq) {
-        assert(name != null);
-        assert(toSeq > 0);
-        if(fromSeq < 0) {
-            return new TDStatus(TDStatus.NOT_FOUND);
-        }
-
+    private long queryLastSequence() {
+        // sqlite_sequence holds the AUTOINCREMENT high-water mark, which (unlike MAX(sequence))
+        // doesn't go down when the newest revisions are removed.
+        String sql = "SELECT seq FROM sqlite_sequence WHERE name='revs'";
         Cursor cursor = null;
-
-        String[] args = { Long.toString(toSeq), name, Long.toString(fromSeq), name };
+        long result = 0;
         try {
-            database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
-                                      "SELECT ?, ?, key, type, length, revpos FROM attachments " +
-                                        "WHERE sequence=? AND filename=?", args);
-            cursor = database.rawQuery("SELECT changes()", null);
-            cursor.moveToFirst();
-            int rowsUpdated = cursor.getInt(0);
-            if(rowsUpdated == 0) {
-                // Oops. This means a glitch in our attachment-management or pull code,
-                // or else a bug in the upstream server.
-                Log.w(TDDatabase.TAG, "Can't find inherited attachment " + name + " from seq# " + Long.toString(fromSeq) + " to copy to " + Long.toString(toSeq));
-                return new TDStatus(TDStatus.NOT_FOUND);
-            }
-            else {
-                return new TDStatus(TDStatus.OK);
+            cursor = getReadDatabase().rawQuery(sql, null);
+            if(cursor.moveToFirst()) {
+                result = cursor.getLong(0);
             }
         } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error copying attachment", e);
-            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+            Log.e(TDDatabase.TAG, "Error getting last sequence", e);
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
         }
+        return result;
     }
 
     /**
-     * Returns the content and MIME type of an attachment
+     * The highest numeric document ID in use, so work over all documents can be split into ranges.
      */
-    public TDAttachment getAttachmentForSequence(long sequence, String filename, TDStatus status) {
-        assert(sequence > 0);
-        assert(filename != null);
-
-
+    long getMaxDocNumericID() {
         Cursor cursor = null;
-
-        String[] args = { Long.toString(sequence), filename };
         try {
-            cursor = database.rawQuery("SELECT key, type FROM attachments WHERE sequence=? AND filename=?", args);
-
-            if(!cursor.moveToFirst()) {
-                status.setCode(TDStatus.NOT_FOUND);
-                return null;
-            }
-
-            byte[] keyData = cursor.getBlob(0);
-            //TODO add checks on key here? (ios version)
-            TDBlobKey key = new TDBlobKey(keyData);
-            InputStream contentStream = attachments.blobStreamForKey(key);
-            if(contentStream == null) {
-                Log.e(TDDatabase.TAG, "Failed to load attachment");
-                status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
-                return null;
-            }
-            else {
-                status.setCode(TDStatus.OK);
-                TDAttachment result = new TDAttachment();
-                result.setContentStream(contentStream);
-                result.setContentType(cursor.getString(1));
-                return result;
-            }
-
-
+            cursor = database.rawQuery("SELECT MAX(doc_id) FROM docs", null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
         } catch (SQLException e) {
-            status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
-            return null;
+            Log.e(TDDatabase.TAG, "Error getting max doc_id", e);
+            return 0;
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
         }
+    }
 
+    /**
+     * Whether a document has a current, non-deleted revision, as of the current transaction.
+     */
+    private boolean isDocumentLive(long docNumericID) throws SQLException {
+        SQLiteStatement statement = acquireStatement(
+                "SELECT EXISTS (SELECT 1 FROM revs WHERE doc_id=? AND current=1 AND deleted=0)");
+        try {
+            statement.bindLong(1, docNumericID);
+            return statement.simpleQueryForLong() != 0;
+        } finally {
+            releaseStatement(statement);
+        }
     }
 
     /**
-     * Constructs an "_attachments" dictionary for a revision, to be inserted in its JSON body.
+     * Records, within the current transaction, a document becoming live or no longer live.
      */
-    public Map<String,Object> getAttachmentsDictForSequenceWithContent(long sequence, boolean withContent) {
-        assert(sequence > 0);
+    private void documentLivenessChanged(boolean wasLive, boolean isLive) {
+        if(isLive != wasLive) {
+            pendingDocumentCountDelta += isLive ? 1 : -1;
+        }
+    }
 
-        Cursor cursor = null;
+    /** Splices the contents of an NSDictionary into JSON data (that already represents a dict), without parsing the JSON. */
+    public  byte[] appendDictToJSON(byte[] json, Map<String,Object> dict) {
+        if(dict.size() == 0) {
+            return json;
+        }
 
-        String args[] = { Long.toString(sequence) };
+        byte[] extraJSON = null;
         try {
-            cursor = database.rawQuery("SELECT filename, key, type, length, revpos FROM attachments WHERE sequence=?", args);
+            extraJSON = TDServer.getObjectMapper().writeValueAsBytes(dict);
+        } catch (Exception e) {
+            Log.e(TDDatabase.TAG, "Error convert extra JSON to bytes", e);
+            return null;
+        }
 
-            if(!cursor.moveToFirst()) {
-                return null;
-            }
+        int jsonLength = json.length;
+        int extraLength = extraJSON.length;
+        if(jsonLength == 2) { // Original JSON was empty
+            return extraJSON;
+        }
+        byte[] newJson = new byte[jsonLength + extraLength - 1];
+        System.arraycopy(json, 0, newJson, 0, jsonLength - 1);  // Copy json w/o trailing '}'
+        newJson[jsonLength - 1] = ',';  // Add a ','
+        System.arraycopy(extraJSON, 1, newJson, jsonLength, extraLength - 1);
+        return newJson;
+    }
 
-            Map<String, Object> result = new HashMap<String, Object>();
+    /** Inserts the _id, _rev and _attachments properties into the JSON data and stores it in rev.
+    Rev must already have its revID and sequence properties set. */
+    public Map<String,Object> extraPropertiesForRevision(TDRevision rev, EnumSet<TDContentOptions> contentOptions) {
 
-            while(!cursor.isAfterLast()) {
+        String docId = rev.getDocId();
+        String revId = rev.getRevId();
+        long sequenceNumber = rev.getSequence();
+        assert(revId != null);
+        assert(sequenceNumber > 0);
 
-                byte[] keyData = cursor.getBlob(1);
-                TDBlobKey key = new TDBlobKey(keyData);
-                String digestString = "sha1-" + Base64.encodeBytes(keyData);
-                String dataBase64 = null;
-                if(withContent) {
-                    byte[] data = attachments.blobForKey(key);
-                    if(data != null) {
-                        dataBase64 = Base64.encodeBytes(data);
-                    }
-                    else {
-                        Log.w(TDDatabase.TAG, "Error loading attachment");
-                    }
-                }
+        // Get attachment metadata, and optionally the contents:
+        boolean withAttachments = contentOptions.contains(TDContentOptions.TDIncludeAttachments);
+        Map<String, Object> attachmentsDict = getAttachmentsDictForSequenceWithContent(sequenceNumber, withAttachments);
 
-                Map<String, Object> attachment = new HashMap<String, Object>();
-                if(dataBase64 == null) {
-                    attachment.put("stub", true);
-                }
-                else {
-                    attachment.put("data", dataBase64);
-                }
-                attachment.put("digest", digestString);
-                attachment.put("content_type", cursor.getString(2));
-                attachment.put("length", cursor.getInt(3));
-                attachment.put("revpos", cursor.getInt(4));
+        // Get more optional stuff to put in the properties:
+        //OPT: This probably ends up making redundant SQL queries if multiple options are enabled.
+        Long localSeq = null;
+        if(contentOptions.contains(TDContentOptions.TDIncludeLocalSeq)) {
+            localSeq = sequenceNumber;
+        }
 
-                result.put(cursor.getString(0), attachment);
+        Map<String,Object> revHistory = null;
+        if(contentOptions.contains(TDContentOptions.TDIncludeRevs)) {
+            revHistory = getRevisionHistoryDict(rev);
+        }
 
-                cursor.moveToNext();
+        List<Object> revsInfo = null;
+        if(contentOptions.contains(TDContentOptions.TDIncludeRevsInfo)) {
+            revsInfo = new ArrayList<Object>();
+            List<TDRevision> revHistoryFull = getRevisionHistory(rev);
+            for (TDRevision historicalRev : revHistoryFull) {
+                Map<String,Object> revHistoryItem = new HashMap<String,Object>();
+                String status = "available";
+                if(historicalRev.isDeleted()) {
+                    status = "deleted";
+                }
+                // TODO: Detect missing revisions, set status="missing"
+                revHistoryItem.put("rev", historicalRev.getRevId());
+                revHistoryItem.put("status", status);
+                revsInfo.add(revHistoryItem);
             }
+        }
 
-            return result;
-
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error getting attachments for sequence", e);
-            return null;
-        } finally {
-            if(cursor != null) {
-                cursor.close();
+        List<String> conflicts = null;
+        if(contentOptions.contains(TDContentOptions.TDIncludeConflicts)) {
+            TDRevisionList revs = getAllRevisionsOfDocumentID(docId, true);
+            if(revs.size() > 1) {
+                conflicts = new ArrayList<String>();
+                for (TDRevision historicalRev : revs) {
+                    if(!historicalRev.equals(rev)) {
+                        conflicts.add(historicalRev.getRevId());
+                    }
+                }
             }
         }
+
+        Map<String,Object> result = new HashMap<String,Object>();
+        result.put("_id", docId);
+        result.put("_rev", revId);
+        if(rev.isDeleted()) {
+            result.put("_deleted", true);
+        }
+        if(attachmentsDict != null) {
+            result.put("_attachments", attachmentsDict);
+        }
+        if(localSeq != null) {
+            result.put("_local_seq", localSeq);
+        }
+        if(revHistory != null) {
+            result.put("_revisions", revHistory);
+        }
+        if(revsInfo != null) {
+            result.put("_revs_info", revsInfo);
+        }
+        if(conflicts != null) {
+            result.put("_conflicts", conflicts);
+        }
+
+        return result;
+    }
+
+    /** Inserts the _id, _rev and _attachments properties into the JSON data and stores it in rev.
+    Rev must already have its revID and sequence properties set. */
+    public void expandStoredJSONIntoRevisionWithAttachments(byte[] json, TDRevision rev, EnumSet<TDContentOptions> contentOptions) {
+        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
+        json = decompressDocumentBody(json);
+        if(TDBinaryJSON.isBinary(json)) {
+            // No JSON text to splice into; it's streamed out or decoded when it's needed
+            rev.setBody(new TDBody(new TDStoredDocument(json, extra)));
+        }
+        else if(json != null) {
+            rev.setJson(appendDictToJSON(json, extra));
+        }
+        else {
+            rev.setProperties(extra);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> documentPropertiesFromJSON(byte[] json, String docId, String revId, long sequence, EnumSet<TDContentOptions> contentOptions) {
+
+        TDRevision rev = new TDRevision(docId, revId, false);
+        rev.setSequence(sequence);
+        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
+        json = decompressDocumentBody(json);
+        if(json == null) {
+            return extra;
+        }
+
+      // If this revision was read recently, reuse (a copy of) its parsed properties:
+      TDRevisionCache.Entry cached = revisionCache.getRevision(docId, revId);
+      if(cached != null && cached.sequence == sequence && cached.json != null) {
+          Map<String,Object> cachedProperties = cached.properties;
+          if(cachedProperties == null) {
+              try {
+                  cachedProperties = parseDocumentBody(cached.json);
+              } catch (Exception e) {
+                  Log.e(TDDatabase.TAG, "Error serializing properties to JSON", e);
+                  return null;
+              }
+              revisionCache.setProperties(docId, cached, cachedProperties);
+          }
+          Map<String,Object> docProperties = (Map<String,Object>)TDRevisionCache.deepCopy(cachedProperties);
+          docProperties.putAll(extra);
+          return docProperties;
+      }
+
+      Map<String,Object> docProperties = null;
+      try {
+          docProperties = parseDocumentBody(json);
+          docProperties.putAll(extra);
+          return docProperties;
+      } catch (Exception e) {
+          Log.e(TDDatabase.TAG, "Error serializing properties to JSON", e);
+      }
+
+      return docProperties;
+    }
+
+    /**
+     * Like documentPropertiesFromJSON, but doesn't parse the body: returns an object that writes
+     * it, with the special properties added, straight to a JsonGenerator.
+     */
+    public TDStoredDocument storedDocumentFromJSON(byte[] json, String docId, String revId, long sequence, EnumSet<TDContentOptions> contentOptions) {
+        TDRevision rev = new TDRevision(docId, revId, false);
+        rev.setSequence(sequence);
+        Map<String,Object> extra = extraPropertiesForRevision(rev, contentOptions);
+        return new TDStoredDocument(decompressDocumentBody(json), extra);
+    }
+
+    /**
+     * The contents of an included document in a query row: a TDStoredDocument if the options ask
+     * for docs to be streamed, otherwise the parsed properties.
+     */
+    Object includedDocumentFromJSON(byte[] json, String docId, String revId, long sequence, TDQueryOptions options) {
+        if(options.isStreamDocs()) {
+            return storedDocumentFromJSON(json, docId, revId, sequence, options.getContentOptions());
+        }
+        return documentPropertiesFromJSON(json, docId, revId, sequence, options.getContentOptions());
+    }
+
+    public TDRevision getDocumentWithIDAndRev(String id, String rev, EnumSet<TDContentOptions> contentOptions) {
+        beginRead();
+        try {
+            return readDocumentWithIDAndRev(id, rev, contentOptions);
+        } finally {
+            endRead();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private TDRevision readDocumentWithIDAndRev(String id, String rev, EnumSet<TDContentOptions> contentOptions) {
+        TDRevision result = null;
+        String sql;
+
+        // The winning revision can't be taken from (or added to) the cache inside a transaction,
+        // since the transaction may have changed the document without committing yet.
+        boolean useCache = (rev != null) || !database.inTransaction();
+        TDRevisionCache.Entry cached = useCache ? revisionCache.getRevision(id, rev) : null;
+        if(cached != null) {
+            result = new TDRevision(id, cached.revId, cached.deleted);
+            result.setSequence(cached.sequence);
+            if(!contentOptions.equals(EnumSet.of(TDContentOptions.TDNoBody))) {
+                if(contentOptions.contains(TDContentOptions.TDNoBody) || cached.properties == null) {
+                    byte[] json = contentOptions.contains(TDContentOptions.TDNoBody) ? null : cached.json;
+                    expandStoredJSONIntoRevisionWithAttachments(json, result, contentOptions);
+                }
+                else {
+                    Map<String,Object> properties = (Map<String,Object>)TDRevisionCache.deepCopy(cached.properties);
+                    properties.putAll(extraPropertiesForRevision(result, contentOptions));
+                    result.setProperties(properties);
+                }
+            }
+            return result;
+        }
+        long cacheGeneration = getReadCacheGeneration();
+        boolean winnerQuery = (rev == null);
+
+        Cursor cursor = null;
+        try {
+            cursor = null;
+            String cols = "revid, deleted, sequence";
+            if(!contentOptions.contains(TDContentOptions.TDNoBody)) {
+                cols += ", json";
+            }
+            if(rev != null) {
+                sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id AND revid=? LIMIT 1";
+                String[] args = {id, rev};
+                cursor = getReadDatabase().rawQuery(sql, args);
+            }
+            else {
+                sql = "SELECT " + cols + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";
+                String[] args = {id};
+                cursor = getReadDatabase().rawQuery(sql, args);
+            }
+
+            if(cursor.moveToFirst()) {
+                if(rev == null) {
+                    rev = cursor.getString(0);
+                }
+                boolean deleted = (cursor.getInt(1) > 0);
+                result = new TDRevision(id, rev, deleted);
+                result.setSequence(cursor.getLong(2));
+                if(!contentOptions.equals(EnumSet.of(TDContentOptions.TDNoBody))) {
+                    byte[] json = null;
+                    if(!contentOptions.contains(TDContentOptions.TDNoBody)) {
+                        // Cache it decompressed, so it's only decompressed once:
+                        json = decompressDocumentBody(cursor.getBlob(3));
+                        if(winnerQuery && !database.inTransaction()) {
+                            // Remember the winning revision for next time:
+                            TDRevisionCache.Entry entry = new TDRevisionCache.Entry(rev, result.getSequence(), deleted, true, json);
+                            revisionCache.putIfUnchanged(id, entry, cacheGeneration);
+                        }
+                    }
+                    expandStoredJSONIntoRevisionWithAttachments(json, result, contentOptions);
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting document with id and rev", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    public boolean existsDocumentWithIDAndRev(String docId, String revId) {
+        return getDocumentWithIDAndRev(docId, revId, EnumSet.of(TDContentOptions.TDNoBody)) != null;
+    }
+
+    public TDStatus loadRevisionBody(TDRevision rev, EnumSet<TDContentOptions> contentOptions) {
+        if(rev.getBody() != null) {
+            return new TDStatus(TDStatus.OK);
+        }
+        assert((rev.getDocId() != null) && (rev.getRevId() != null));
+
+        TDRevisionCache.Entry cached = revisionCache.getRevision(rev.getDocId(), rev.getRevId());
+        if(cached != null) {
+            rev.setSequence(cached.sequence);
+            expandStoredJSONIntoRevisionWithAttachments(cached.json, rev, contentOptions);
+            return new TDStatus(TDStatus.OK);
+        }
+
+        Cursor cursor = null;
+        TDStatus result = new TDStatus(TDStatus.NOT_FOUND);
+        try {
+            String sql = "SELECT sequence, json FROM revs, docs WHERE revid=? AND docs.docid=? AND revs.doc_id=docs.doc_id LIMIT 1";
+            String[] args = { rev.getRevId(), rev.getDocId()};
+            cursor = getReadDatabase().rawQuery(sql, args);
+            if(cursor.moveToFirst()) {
+                result.setCode(TDStatus.OK);
+                rev.setSequence(cursor.getLong(0));
+                expandStoredJSONIntoRevisionWithAttachments(cursor.getBlob(1), rev, contentOptions);
+            }
+        } catch(SQLException e) {
+            Log.e(TDDatabase.TAG, "Error loading revision body", e);
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    public long getDocNumericID(String docId) {
+        if(database.inTransaction()) {
+            Long pending = pendingDocIDs.get(docId);
+            if(pending != null) {
+                return pending;
+            }
+        }
+        Long cached = docIDCache.get(docId);
+        if(cached != null) {
+            return cached;
+        }
+
+        // Captured before the query, so a row found just before a purge deletes it isn't cached:
+        long generation = getReadDocIDGeneration();
+        SQLiteStatement statement = null;
+
+        long result = -1;
+        try {
+            String sql = "SELECT doc_id FROM docs WHERE docid=?";
+            statement = acquireReadStatement(sql);
+            statement.bindString(1, docId);
+            result = statement.simpleQueryForLong();
+            // Rows inserted by the current transaction are already in pendingDocIDs, so this one is committed:
+            docIDCache.putIfUnchanged(docId, result, generation);
+        } catch (SQLiteDoneException e) {
+            result = 0;
+        } catch (Exception e) {
+            Log.e(TDDatabase.TAG, "Error getting doc numeric id", e);
+        } finally {
+            releaseStatement(statement);
+        }
+
+        return result;
+    }
+
+    /** HISTORY: **/
+
+    /**
+     * Returns all the known revisions (or all current/conflicting revisions) of a document.
+     */
+    public TDRevisionList getAllRevisionsOfDocumentID(String docId, long docNumericID, boolean onlyCurrent) {
+
+        String sql = null;
+        if(onlyCurrent) {
+            sql = "SELECT sequence, revid, deleted FROM revs " +
+                    "WHERE doc_id=? AND current ORDER BY sequence DESC";
+        }
+        else {
+            sql = "SELECT sequence, revid, deleted FROM revs " +
+                    "WHERE doc_id=? ORDER BY sequence DESC";
+        }
+
+        String[] args = { Long.toString(docNumericID) };
+        Cursor cursor = null;
+
+        cursor = getReadDatabase().rawQuery(sql, args);
+
+        TDRevisionList result;
+        try {
+            cursor.moveToFirst();
+            result = new TDRevisionList();
+            while(!cursor.isAfterLast()) {
+                TDRevision rev = new TDRevision(docId, cursor.getString(1), (cursor.getInt(2) > 0));
+                rev.setSequence(cursor.getLong(0));
+                result.add(rev);
+                cursor.moveToNext();
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting all revisions of document", e);
+            return null;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
+    public TDRevisionList getAllRevisionsOfDocumentID(String docId, boolean onlyCurrent) {
+        long docNumericId = getDocNumericID(docId);
+        if(docNumericId < 0) {
+            return null;
+        }
+        else if(docNumericId == 0) {
+            return new TDRevisionList();
+        }
+        else {
+            return getAllRevisionsOfDocumentID(docId, docNumericId, onlyCurrent);
+        }
+    }
+
+    public List<String> getConflictingRevisionIDsOfDocID(String docID) {
+        TDRevTree tree = getRevTree(docID);
+        if(tree == null) {
+            return null;
+        }
+        return tree.getConflictingRevIds();
+    }
+
+    /**
+     * Returns the highest of the given revision IDs that the document has, and that sorts at or below rev's.
+     */
+    public String findCommonAncestorOf(TDRevision rev, List<String> revIDs) {
+        if (revIDs.size() == 0) {
+            return null;
+        }
+        TDRevTree tree = getRevTree(rev.getDocId());
+        if (tree == null) {
+            return null;
+        }
+        return tree.findCommonAncestor(revIDs, rev.getRevId());
+    }
+
+    /**
+     * Returns an array of TDRevs in reverse chronological order, starting with the given revision.
+     */
+    public List<TDRevision> getRevisionHistory(TDRevision rev) {
+        String docId = rev.getDocId();
+        String revId = rev.getRevId();
+        assert((docId != null) && (revId != null));
+
+        TDRevTree tree = getRevTree(docId);
+        if(tree == null) {
+            return null;
+        }
+        return tree.getHistory(docId, revId);
+    }
+
+    // Splits a revision ID into its generation number and opaque suffix string
+    public static int parseRevIDNumber(String rev) {
+        int result = -1;
+        int dashPos = rev.indexOf("-");
+        if(dashPos >= 0) {
+            try {
+                result = Integer.parseInt(rev.substring(0, dashPos));
+            } catch (NumberFormatException e) {
+                // ignore, let it return -1
+            }
+        }
+        return result;
+    }
+
+    // Splits a revision ID into its generation number and opaque suffix string
+    public static String parseRevIDSuffix(String rev) {
+        String result = null;
+        int dashPos = rev.indexOf("-");
+        if(dashPos >= 0) {
+            result = rev.substring(dashPos + 1);
+        }
+        return result;
+    }
+
+    public static Map<String,Object> makeRevisionHistoryDict(List<TDRevision> history) {
+        if(history == null) {
+            return null;
+        }
+
+        // Try to extract descending numeric prefixes:
+        List<String> suffixes = new ArrayList<String>();
+        int start = -1;
+        int lastRevNo = -1;
+        for (TDRevision rev : history) {
+            int revNo = parseRevIDNumber(rev.getRevId());
+            String suffix = parseRevIDSuffix(rev.getRevId());
+            if(revNo > 0 && suffix.length() > 0) {
+                if(start < 0) {
+                    start = revNo;
+                }
+                else if(revNo != lastRevNo - 1) {
+                    start = -1;
+                    break;
+                }
+                lastRevNo = revNo;
+                suffixes.add(suffix);
+            }
+            else {
+                start = -1;
+                break;
+            }
+        }
+
+        Map<String,Object> result = new HashMap<String,Object>();
+        if(start == -1) {
+            // we failed to build sequence, just stuff all the revs in list
+            suffixes = new ArrayList<String>();
+            for (TDRevision rev : history) {
+                suffixes.add(rev.getRevId());
+            }
+        }
+        else {
+            result.put("start", start);
+        }
+        result.put("ids", suffixes);
+
+        return result;
+    }
+
+    /**
+     * Returns the revision history as a _revisions dictionary, as returned by the REST API's ?revs=true option.
+     */
+    public Map<String,Object> getRevisionHistoryDict(TDRevision rev) {
+        return makeRevisionHistoryDict(getRevisionHistory(rev));
+    }
+
+    public TDRevisionList changesSince(long lastSeq, TDChangesOptions options, TDFilterBlock filter) {
+        TDChangesIterator iterator = changesIterator(lastSeq, options, filter);
+        if(iterator == null) {
+            return null;
+        }
+        TDRevisionList changes = new TDRevisionList();
+        try {
+            while(iterator.hasNext()) {
+                changes.add(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+        return changes;
+    }
+
+    /**
+     * Like changesSince, but returns the changes one at a time from a database cursor instead of all
+     * at once in a list. The ordering by sequence and the limit are applied by the query (the limit only
+     * when there's no filter), and revision bodies are only loaded for the rows that are returned.
+     *
+     * The iterator reads from a single snapshot of the database. It must be used on the calling thread,
+     * and closed if it isn't read to the end.
+     */
+    public TDChangesIterator changesIterator(long lastSeq, TDChangesOptions options, TDFilterBlock filter) {
+        // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
+        if(options == null) {
+            options = new TDChangesOptions();
+        }
+
+        boolean includeDocs = options.isIncludeDocs() || (filter != null);
+        String additionalSelectColumns =  "";
+        if(includeDocs) {
+            additionalSelectColumns = ", json";
+        }
+
+        // Without conflicts, only the winning (highest revid) current revision of each doc is returned.
+        // Ordered by sequence, the query leaves out the others; ordered by doc, the iterator skips them.
+        boolean bySequence = options.isSortBySequence();
+        boolean skipConflicts = !options.isIncludeConflicts() && !bySequence;
+        String seq = Long.toString(lastSeq);
+        List<String> args = new ArrayList<String>();
+        args.add(seq);
+        String sql = "SELECT sequence, revs.doc_id, docid, revid, deleted" + additionalSelectColumns + " FROM revs, docs "
+                        + "WHERE sequence > ? AND current=1 "
+                        + "AND revs.doc_id = docs.doc_id";
+        if(!options.isIncludeConflicts() && bySequence) {
+            sql += " AND NOT EXISTS (SELECT 1 FROM revs AS other WHERE other.doc_id=revs.doc_id "
+                        + "AND other.current=1 AND other.sequence > ? AND other.revid > revs.revid)";
+            args.add(seq);
+        }
+        if(bySequence) {
+            sql += " ORDER BY sequence";
+        }
+        else {
+            sql += " ORDER BY revs.doc_id, revid DESC";
+        }
+        if(filter == null && !skipConflicts && options.getLimit() < Integer.MAX_VALUE) {
+            sql += " LIMIT ?";
+            args.add(Integer.toString(options.getLimit()));
+        }
+
+        beginRead();
+        Cursor cursor = null;
+        try {
+            cursor = getReadDatabase().rawQuery(sql, args.toArray(new String[args.size()]));
+            return new TDChangesIterator(this, cursor, options, filter, includeDocs, skipConflicts);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error looking for changes", e);
+            if(cursor != null) {
+                cursor.close();
+            }
+            endRead();
+            return null;
+        }
+    }
+
+    /**
+     * Define or clear a named filter function.
+     *
+     * These aren't used directly by TDDatabase, but they're looked up by TDRouter when a _changes request has a ?filter parameter.
+     */
+    public void defineFilter(String filterName, TDFilterBlock filter) {
+        if(filters == null) {
+            filters = new HashMap<String,TDFilterBlock>();
+        }
+        filters.put(filterName, filter);
+    }
+
+    public TDFilterBlock getFilterNamed(String filterName) {
+        TDFilterBlock result = null;
+        if(filters != null) {
+            result = filters.get(filterName);
+        }
+        return result;
+    }
+
+    /** VIEWS: **/
+
+    public TDView registerView(TDView view) {
+        if(view == null) {
+            return null;
+        }
+        views.put(view.getName(), view);
+        return view;
+    }
+
+    public TDView getViewNamed(String name) {
+        TDView view = views.get(name);
+        if(view != null) {
+            return view;
+        }
+        return registerViewIfAbsent(new TDView(this, name));
+    }
+
+    public TDView getExistingViewNamed(String name) {
+        TDView view = views.get(name);
+        if(view != null) {
+            return view;
+        }
+        view = new TDView(this, name);
+        if(view.getViewId() == 0) {
+            return null;
+        }
+
+        return registerViewIfAbsent(view);
+    }
+
+    // Another thread may have registered the same view meanwhile; everybody has to get the same one.
+    private TDView registerViewIfAbsent(TDView view) {
+        TDView existing = views.putIfAbsent(view.getName(), view);
+        return (existing != null) ? existing : view;
+    }
+
+    public List<TDView> getAllViews() {
+        Cursor cursor = null;
+        List<TDView> result = null;
+
+        try {
+            cursor = database.rawQuery("SELECT name FROM views", null);
+            cursor.moveToFirst();
+            result = new ArrayList<TDView>();
+            while(!cursor.isAfterLast()) {
+                result.add(getViewNamed(cursor.getString(0)));
+                cursor.moveToNext();
+            }
+        } catch (Exception e) {
+            Log.e(TDDatabase.TAG, "Error getting all views", e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * The registered views that have map blocks.
+     */
+    List<TDView> getViewsWithMapBlocks() {
+        List<TDView> result = new ArrayList<TDView>();
+        for (TDView view : views.values()) {
+            if(view.getMapBlock() != null) {
+                result.add(view);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Turns on background indexing: after changes are made to the database, the registered views
+     * that have map blocks are brought up to date on the given executor, so that queries (e.g. with
+     * stale=ok) don't have to wait for it. Pass null to turn it off. It's off by default.
+     */
+    public synchronized void setAutoIndexExecutor(ScheduledExecutorService autoIndexExecutor) {
+        this.autoIndexExecutor = autoIndexExecutor;
+        if(backgroundIndexer != null) {
+            backgroundIndexer.stop();
+            backgroundIndexer = null;
+        }
+        if(autoIndexExecutor != null && open) {
+            backgroundIndexer = new TDBackgroundIndexer(this, autoIndexExecutor);
+            backgroundIndexer.start();
+        }
+    }
+
+    public synchronized ScheduledExecutorService getAutoIndexExecutor() {
+        return autoIndexExecutor;
+    }
+
+    /**
+     * Whether anything besides the database's own background indexer is observing its changes.
+     */
+    synchronized boolean hasExternalObservers() {
+        return countObservers() > (backgroundIndexer != null ? 1 : 0);
+    }
+
+    /**
+     * The registered views of a design document (the ones named "designdoc/viewname") that have
+     * map blocks.
+     */
+    public List<TDView> getViewsOfDesignDoc(String designDoc) {
+        List<TDView> result = new ArrayList<TDView>();
+        String prefix = designDoc + "/";
+        for (TDView view : views.values()) {
+            if(view.getName().startsWith(prefix) && view.getMapBlock() != null) {
+                result.add(view);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Updates the indexes of several views in one pass over the database, so each new revision
+     * is only read and parsed once.
+     * @return 200 if any index was updated, 304 if all were already up-to-date, else an error code
+     */
+    public TDStatus updateIndexes(List<TDView> viewsToUpdate) {
+        if(viewsToUpdate.isEmpty()) {
+            return new TDStatus(TDStatus.NOT_MODIFIED);
+        }
+        return TDView.updateIndexes(viewsToUpdate);
+    }
+
+    /**
+     * Updates the views' indexes on the executor (e.g. after a stale=update_after query.) Requests
+     * made before the update starts are combined into it, so a view is only queued once however
+     * often it's asked for.
+     */
+    public void updateIndexesInBackground(List<TDView> viewsToUpdate, ScheduledExecutorService workExecutor) {
+        synchronized(pendingIndexUpdates) {
+            for (TDView view : viewsToUpdate) {
+                pendingIndexUpdates.add(view.getName());
+            }
+            if(indexUpdateScheduled || pendingIndexUpdates.isEmpty()) {
+                return;
+            }
+            indexUpdateScheduled = true;
+        }
+        workExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runPendingIndexUpdates();
+            }
+        });
+    }
+
+    private void runPendingIndexUpdates() {
+        List<String> names;
+        synchronized(pendingIndexUpdates) {
+            names = new ArrayList<String>(pendingIndexUpdates);
+            pendingIndexUpdates.clear();
+            indexUpdateScheduled = false;
+        }
+        if(!beginBackgroundWork()) {
+            return;
+        }
+        try {
+            List<TDView> viewsToUpdate = new ArrayList<TDView>(names.size());
+            for (String name : names) {
+                TDView view = views.get(name);
+                if(view != null && view.getMapBlock() != null) {
+                    viewsToUpdate.add(view);
+                }
+            }
+            TDStatus status = updateIndexes(viewsToUpdate);
+            if(!status.isSuccessful()) {
+                Log.w(TAG, "Background update of views " + names + " failed: " + status.getCode());
+            }
+        } finally {
+            endBackgroundWork();
+        }
+    }
+
+    public TDStatus deleteViewNamed(String name) {
+        TDStatus result = new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        try {
+            String[] whereArgs = { name };
+            int rowsAffected = database.delete("views", "name=?", whereArgs);
+            if(rowsAffected > 0) {
+                result.setCode(TDStatus.OK);
+            }
+            else {
+                result.setCode(TDStatus.NOT_FOUND);
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error deleting view", e);
+        }
+        return result;
+    }
+
+    //FIX: This has a lot of code in common with -[TDView queryWithOptions:status:]. Unify the two!
+    public Map<String,Object> getDocsWithIDs(List<String> docIDs, TDQueryOptions options) {
+        // A full snapshot if the update_seq has to match the rows, even without write-ahead logging:
+        boolean snapshot = (options != null && options.isUpdateSeq());
+        if(snapshot) {
+            beginReadSnapshot();
+        }
+        else {
+            beginRead();
+        }
+        try {
+            return readDocsWithIDs(docIDs, options);
+        } finally {
+            if(snapshot) {
+                endReadSnapshot();
+            }
+            else {
+                endRead();
+            }
+        }
+    }
+
+    private Map<String,Object> readDocsWithIDs(List<String> docIDs, TDQueryOptions options) {
+        if(options == null) {
+            options = new TDQueryOptions();
+        }
+
+        long updateSeq = 0;
+        if(options.isUpdateSeq()) {
+            updateSeq = getLastSequence();  // atomic with the following SELECT, as it's in a read snapshot
+        }
+
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        int totalRows;
+        if(docIDs == null || docIDs.size() <= MAX_DOC_IDS_PER_QUERY) {
+            totalRows = queryDocRows(docIDs, options, options.getLimit(), options.getSkip(), rows);
+            if(totalRows < 0) {
+                return null;
+            }
+        }
+        else {
+            // Too many IDs to bind to one statement: query them a chunk at a time, then sort, skip and
+            // limit the combined rows here.
+            for(int start = 0; start < docIDs.size(); start += MAX_DOC_IDS_PER_QUERY) {
+                List<String> chunk = docIDs.subList(start, Math.min(start + MAX_DOC_IDS_PER_QUERY, docIDs.size()));
+                if(queryDocRows(chunk, options, Integer.MAX_VALUE, 0, rows) < 0) {
+                    return null;
+                }
+            }
+            final boolean descending = options.isDescending();
+            Collections.sort(rows, new Comparator<Map<String,Object>>() {
+                @Override
+                public int compare(Map<String, Object> row1, Map<String, Object> row2) {
+                    int result = compareDocIDs((String)row1.get("id"), (String)row2.get("id"));
+                    return descending ? -result : result;
+                }
+            });
+            int from = Math.min(options.getSkip(), rows.size());
+            int to = (int)Math.min((long)from + options.getLimit(), rows.size());
+            rows = new ArrayList<Map<String,Object>>(rows.subList(from, to));
+            totalRows = rows.size();
+        }
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("rows", rows);
+        result.put("total_rows", totalRows);
+        result.put("offset", options.getSkip());
+        if(updateSeq != 0) {
+            result.put("update_seq", updateSeq);
+        }
+        return result;
+    }
+
+    /**
+     * Appends to rows the current revisions of the given documents (or of all of them, if docIDs is
+     * null) that the options select.
+     * @return  The number of rows the query returned, or -1 on error
+     */
+    private int queryDocRows(List<String> docIDs, TDQueryOptions options, int limit, int skip, List<Map<String,Object>> rows) {
+        // Generate the SELECT statement, based on the options:
+        String additionalCols = "";
+        if(options.isIncludeDocs()) {
+            additionalCols = ", json, sequence";
+        }
+        String sql = "SELECT revs.doc_id, docid, revid, deleted" + additionalCols + " FROM revs, docs WHERE";
+
+        List<String> argsList = new ArrayList<String>();
+        if(docIDs != null) {
+            sql += " docid IN (";
+            for(int i = 0; i < docIDs.size(); i++) {
+                sql += (i == 0) ? "?" : ", ?";
+            }
+            sql += ")";
+            argsList.addAll(docIDs);
+        } else {
+            sql += " deleted=0";
+        }
+
+        sql += " AND current=1 AND docs.doc_id = revs.doc_id";
+
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        boolean inclusiveMin = true;
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if(options.isDescending()) {
+            minKey = maxKey;
+            maxKey = options.getStartKey();
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+        }
+
+        if(minKey != null) {
+            assert(minKey instanceof String);
+            if(inclusiveMin) {
+                sql += " AND docid >= ?";
+            } else {
+                sql += " AND docid > ?";
+            }
+            argsList.add((String)minKey);
+        }
+
+        if(maxKey != null) {
+            assert(maxKey instanceof String);
+            if(inclusiveMax) {
+                sql += " AND docid <= ?";
+            }
+            else {
+                sql += " AND docid < ?";
+            }
+            argsList.add((String)maxKey);
+        }
+
+
+        String order = "ASC";
+        if(options.isDescending()) {
+            order = "DESC";
+        }
+
+        sql += " ORDER BY docid " + order + ", revid DESC LIMIT ? OFFSET ?";
+
+        argsList.add(Integer.toString(limit));
+        argsList.add(Integer.toString(skip));
+        Cursor cursor = null;
+        long lastDocID = 0;
+
+        try {
+            cursor = getReadDatabase().rawQuery(sql, argsList.toArray(new String[argsList.size()]));
+
+            cursor.moveToFirst();
+            while(!cursor.isAfterLast()) {
+                long docNumericID = cursor.getLong(0);
+                if(docNumericID == lastDocID) {
+                    cursor.moveToNext();
+                    continue;
+                }
+                lastDocID = docNumericID;
+
+                String docId = cursor.getString(1);
+                String revId = cursor.getString(2);
+                Object docContents = null;
+                boolean deleted = cursor.getInt(3) > 0;
+                if(options.isIncludeDocs() && !deleted) {
+                    byte[] json = cursor.getBlob(4);
+                    long sequence = cursor.getLong(5);
+                    docContents = includedDocumentFromJSON(json, docId, revId, sequence, options);
+                }
+
+                Map<String,Object> valueMap = new HashMap<String,Object>();
+                valueMap.put("rev", revId);
+
+                Map<String,Object> change = new HashMap<String, Object>();
+                change.put("id", docId);
+                change.put("key", docId);
+                change.put("value", valueMap);
+                if(docContents != null) {
+                    change.put("doc", docContents);
+                }
+                if(deleted) {
+                    change.put("deleted", true);
+                }
+
+                rows.add(change);
+
+                cursor.moveToNext();
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting all docs", e);
+            return -1;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return cursor.getCount();  //??? Is this true, or does it ignore limit/offset?
+    }
+
+    /**
+     * Orders document IDs as the docs table does, with SQLite's BINARY collation: by their UTF-8
+     * bytes, which is the same as by code point (String.compareTo goes by UTF-16 units instead.)
+     */
+    static int compareDocIDs(String docID1, String docID2) {
+        int i1 = 0, i2 = 0;
+        while(i1 < docID1.length() && i2 < docID2.length()) {
+            int c1 = docID1.codePointAt(i1);
+            int c2 = docID2.codePointAt(i2);
+            if(c1 != c2) {
+                return (c1 < c2) ? -1 : 1;
+            }
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+        }
+        return (docID1.length() - i1) - (docID2.length() - i2);
+    }
+
+
+    public Map<String,Object> getAllDocs(TDQueryOptions options) {
+        return getDocsWithIDs(null, options);
+    }
+
+    /*************************************************************************************************/
+    /*** TDDatabase+Attachments                                                                    ***/
+    /*************************************************************************************************/
+
+    public TDStatus insertAttachmentForSequenceWithNameAndType(InputStream contentStream, long sequence, String name, String contentType, int revpos) {
+        assert(sequence > 0);
+        assert(name != null);
+
+        TDBlobKey key = new TDBlobKey();
+        if(!attachments.storeBlobStream(contentStream, key)) {
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        }
+
+        byte[] keyData = key.getBytes();
+        SQLiteStatement statement = null;
+        try {
+            statement = acquireStatement("INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
+                                         "VALUES (?, ?, ?, ?, ?, ?)");
+            statement.bindLong(1, sequence);
+            statement.bindString(2, name);
+            statement.bindBlob(3, keyData);
+            if(contentType != null) {
+                statement.bindString(4, contentType);
+            }
+            else {
+                statement.bindNull(4);
+            }
+            statement.bindLong(5, attachments.getSizeOfBlob(key));
+            statement.bindLong(6, revpos);
+            statement.executeInsert();
+            return new TDStatus(TDStatus.CREATED);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error inserting attachment", e);
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        } finally {
+            releaseStatement(statement);
+        }
+    }
+
+    public TDStatus copyAttachmentNamedFromSequenceToSequence(String name, long fromSeq, long toSeq) {
+        assert(name != null);
+        assert(toSeq > 0);
+        if(fromSeq < 0) {
+            return new TDStatus(TDStatus.NOT_FOUND);
+        }
+
+        Cursor cursor = null;
+
+        String[] args = { Long.toString(toSeq), name, Long.toString(fromSeq), name };
+        try {
+            database.execSQL("INSERT INTO attachments (sequence, filename, key, type, length, revpos) " +
+                                      "SELECT ?, ?, key, type, length, revpos FROM attachments " +
+                                        "WHERE sequence=? AND filename=?", args);
+            cursor = database.rawQuery("SELECT changes()", null);
+            cursor.moveToFirst();
+            int rowsUpdated = cursor.getInt(0);
+            if(rowsUpdated == 0) {
+                // Oops. This means a glitch in our attachment-management or pull code,
+                // or else a bug in the upstream server.
+                Log.w(TDDatabase.TAG, "Can't find inherited attachment " + name + " from seq# " + Long.toString(fromSeq) + " to copy to " + Long.toString(toSeq));
+                return new TDStatus(TDStatus.NOT_FOUND);
+            }
+            else {
+                return new TDStatus(TDStatus.OK);
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error copying attachment", e);
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the content and MIME type of an attachment
+     */
+    public TDAttachment getAttachmentForSequence(long sequence, String filename, TDStatus status) {
+        assert(sequence > 0);
+        assert(filename != null);
+
+
+        Cursor cursor = null;
+
+        String[] args = { Long.toString(sequence), filename };
+        try {
+            cursor = getReadDatabase().rawQuery("SELECT key, type FROM attachments WHERE sequence=? AND filename=?", args);
+
+            if(!cursor.moveToFirst()) {
+                status.setCode(TDStatus.NOT_FOUND);
+                return null;
+            }
+
+            byte[] keyData = cursor.getBlob(0);
+            //TODO add checks on key here? (ios version)
+            TDBlobKey key = new TDBlobKey(keyData);
+            InputStream contentStream = attachments.blobStreamForKey(key);
+            if(contentStream == null) {
+                Log.e(TDDatabase.TAG, "Failed to load attachment");
+                status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+                return null;
+            }
+            else {
+                status.setCode(TDStatus.OK);
+                TDAttachment result = new TDAttachment();
+                result.setContentStream(contentStream);
+                result.setContentType(cursor.getString(1));
+                return result;
+            }
+
+
+        } catch (SQLException e) {
+            status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+            return null;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+    }
+
+    /**
+     * Constructs an "_attachments" dictionary for a revision, to be inserted in its JSON body.
+     */
+    public Map<String,Object> getAttachmentsDictForSequenceWithContent(long sequence, boolean withContent) {
+        assert(sequence > 0);
+
+        Cursor cursor = null;
+
+        String args[] = { Long.toString(sequence) };
+        try {
+            cursor = getReadDatabase().rawQuery("SELECT filename, key, type, length, revpos FROM attachments WHERE sequence=?", args);
+
+            if(!cursor.moveToFirst()) {
+                return null;
+            }
+
+            Map<String, Object> result = new HashMap<String, Object>();
+
+            while(!cursor.isAfterLast()) {
+
+                byte[] keyData = cursor.getBlob(1);
+                TDBlobKey key = new TDBlobKey(keyData);
+                String digestString = "sha1-" + Base64.encodeBytes(keyData);
+                String dataBase64 = null;
+                if(withContent) {
+                    byte[] data = attachments.blobForKey(key);
+                    if(data != null) {
+                        dataBase64 = Base64.encodeBytes(data);
+                    }
+                    else {
+                        Log.w(TDDatabase.TAG, "Error loading attachment");
+                    }
+                }
+
+                Map<String, Object> attachment = new HashMap<String, Object>();
+                if(dataBase64 == null) {
+                    attachment.put("stub", true);
+                }
+                else {
+                    attachment.put("data", dataBase64);
+                }
+                attachment.put("digest", digestString);
+                attachment.put("content_type", cursor.getString(2));
+                attachment.put("length", cursor.getInt(3));
+                attachment.put("revpos", cursor.getInt(4));
+
+                result.put(cursor.getString(0), attachment);
+
+                cursor.moveToNext();
+            }
+
+            return result;
+
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting attachments for sequence", e);
+            return null;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Modifies a TDRevision's body by changing all attachments with revpos < minRevPos into stubs.
+     *
+     * @param rev
+     * @param minRevPos
+     */
+    public void stubOutAttachmentsIn(TDRevision rev, int minRevPos)
+    {
+        if (minRevPos <= 1) {
+            return;
+        }
+        Map<String, Object> properties = (Map<String,Object>)rev.getProperties();
+        Map<String, Object> attachments = null;
+        if(properties != null) {
+            attachments = (Map<String,Object>)properties.get("_attachments");
+        }
+        Map<String, Object> editedProperties = null;
+        Map<String, Object> editedAttachments = null;
+        for (String name : attachments.keySet()) {
+            Map<String,Object> attachment = (Map<String,Object>)attachments.get(name);
+            int revPos = (Integer) attachment.get("revpos");
+            Object stub = attachment.get("stub");
+            if (revPos > 0 && revPos < minRevPos && (stub == null)) {
+                // Strip this attachment's body. First make its dictionary mutable:
+                if (editedProperties == null) {
+                    editedProperties = new HashMap<String,Object>(properties);
+                    editedAttachments = new HashMap<String,Object>(attachments);
+                    editedProperties.put("_attachments", editedAttachments);
+                }
+                // ...then remove the 'data' and 'follows' key:
+                Map<String,Object> editedAttachment = new HashMap<String,Object>(attachment);
+                editedAttachment.remove("data");
+                editedAttachment.remove("follows");
+                editedAttachment.put("stub", true);
+                editedAttachments.put(name,editedAttachment);
+                Log.d(TDDatabase.TAG, "Stubbed out attachment" + rev + " " + name + ": revpos" + revPos + " " + minRevPos);
+            }
+        }
+        if (editedProperties != null)
+            rev.setProperties(editedProperties);
+    }
+
+    /**
+     * Given a newly-added revision, adds the necessary attachment rows to the database and stores inline attachments into the blob store.
+     */
+    public TDStatus processAttachmentsForRevision(TDRevision rev, long parentSequence) {
+        assert(rev != null);
+        long newSequence = rev.getSequence();
+        assert(newSequence > parentSequence);
+
+        // If there are no attachments in the new rev, there's nothing to do:
+        Map<String,Object> newAttachments = null;
+        Map<String,Object> properties = (Map<String,Object>)rev.getProperties();
+        if(properties != null) {
+            newAttachments = (Map<String,Object>)properties.get("_attachments");
+        }
+        if(newAttachments == null || newAttachments.size() == 0 || rev.isDeleted()) {
+            return new TDStatus(TDStatus.OK);
+        }
+
+        for (String name : newAttachments.keySet()) {
+
+            TDStatus status = new TDStatus();
+            Map<String,Object> newAttach = (Map<String,Object>)newAttachments.get(name);
+            String newContentBase64 = (String)newAttach.get("data");
+            if(newContentBase64 != null) {
+                // New item contains data, so insert it. First decode the data:
+                byte[] newContents;
+                try {
+                    newContents = Base64.decode(newContentBase64);
+                } catch (IOException e) {
+                    Log.e(TDDatabase.TAG, "IOExeption parsing base64", e);
+                    return new TDStatus(TDStatus.BAD_REQUEST);
+                }
+                if(newContents == null) {
+                    return new TDStatus(TDStatus.BAD_REQUEST);
+                }
+
+                // Now determine the revpos, i.e. generation # this was added in. Usually this is
+                // implicit, but a rev being pulled in replication will have it set already.
+                int generation = rev.getGeneration();
+                assert(generation > 0);
+                Object revposObj = newAttach.get("revpos");
+                int revpos = generation;
+                if(revposObj != null && revposObj instanceof Integer) {
+                    revpos = ((Integer)revposObj).intValue();
+                }
+
+                if(revpos > generation) {
+                    return new TDStatus(TDStatus.BAD_REQUEST);
+                }
+
+                // Finally insert the attachment:
+                status = insertAttachmentForSequenceWithNameAndType(new ByteArrayInputStream(newContents), newSequence, name, (String)newAttach.get("content_type"), revpos);
+            }
+            else {
+                // It's just a stub, so copy the previous revision's attachment entry:
+                //? Should I enforce that the type and digest (if any) match?
+                status = copyAttachmentNamedFromSequenceToSequence(name, parentSequence, newSequence);
+            }
+            if(!status.isSuccessful()) {
+                return status;
+            }
+        }
+
+        return new TDStatus(TDStatus.OK);
+    }
+
+    /**
+     * Updates or deletes an attachment, creating a new document revision in the process.
+     * Used by the PUT / DELETE methods called on attachment URLs.
+     */
+    public TDRevision updateAttachment(String filename, InputStream contentStream, String contentType, String docID, String oldRevID, TDStatus status) {
+        status.setCode(TDStatus.BAD_REQUEST);
+        if(filename == null || filename.length() == 0 || (contentStream != null && contentType == null) || (oldRevID != null && docID == null) || (contentStream != null && docID == null)) {
+            return null;
+        }
+
+        beginTransaction();
+        try {
+            TDRevision oldRev = new TDRevision(docID, oldRevID, false);
+            if(oldRevID != null) {
+                // Load existing revision if this is a replacement:
+                TDStatus loadStatus = loadRevisionBody(oldRev, EnumSet.noneOf(TDContentOptions.class));
+                status.setCode(loadStatus.getCode());
+                if(!status.isSuccessful()) {
+                    if(status.getCode() == TDStatus.NOT_FOUND && existsDocumentWithIDAndRev(docID, null)) {
+                        status.setCode(TDStatus.CONFLICT);  // if some other revision exists, it's a conflict
+                    }
+                    return null;
+                }
+
+                Map<String,Object> attachments = (Map<String, Object>) oldRev.getProperties().get("_attachments");
+                if(contentStream == null && attachments != null && !attachments.containsKey(filename)) {
+                    status.setCode(TDStatus.NOT_FOUND);
+                    return null;
+                }
+                // Remove the _attachments stubs so putRevision: doesn't copy the rows for me
+                // OPT: Would be better if I could tell loadRevisionBody: not to add it
+                if(attachments != null) {
+                    Map<String,Object> properties = new HashMap<String,Object>(oldRev.getProperties());
+                    properties.remove("_attachments");
+                    oldRev.setBody(new TDBody(properties));
+                }
+            } else {
+                // If this creates a new doc, it needs a body:
+                oldRev.setBody(new TDBody(new HashMap<String,Object>()));
+            }
+
+            // Create a new revision:
+            TDRevision newRev = putRevision(oldRev, oldRevID, false, status);
+            if(newRev == null) {
+                return null;
+            }
+
+            if(oldRevID != null) {
+                // Copy all attachment rows _except_ for the one being updated:
+                String[] args = { Long.toString(newRev.getSequence()), Long.toString(oldRev.getSequence()), filename };
+                database.execSQL("INSERT INTO attachments "
+                        + "(sequence, filename, key, type, length, revpos) "
+                        + "SELECT ?, filename, key, type, length, revpos FROM attachments "
+                        + "WHERE sequence=? AND filename != ?", args);
+            }
+
+            if(contentStream != null) {
+                // If not deleting, add a new attachment entry:
+                TDStatus insertStatus = insertAttachmentForSequenceWithNameAndType(contentStream, newRev.getSequence(),
+                        filename, contentType, newRev.getGeneration());
+                status.setCode(insertStatus.getCode());
+
+                if(!status.isSuccessful()) {
+                    return null;
+                }
+            }
+
+            status.setCode((contentStream != null) ? TDStatus.CREATED : TDStatus.OK);
+            return newRev;
+
+        } catch(SQLException e) {
+            Log.e(TAG, "Error uploading attachment", e);
+            status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+            return null;
+        } finally {
+            endTransaction(status.isSuccessful());
+        }
+    }
+
+    /**
+     * Deletes obsolete attachments from the database and blob store.
+     */
+    public TDStatus garbageCollectAttachments() {
+        if(garbageCollectDeletedAttachments() < 0) {
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        }
+        return new TDStatus(TDStatus.OK);
+    }
+
+    /**
+     * Deletes the attachment files that no revision refers to any more.
+     *
+     * Only the keys of attachment rows deleted since the last run are checked (the attachments_deleted
+     * trigger logs them in attachments_gc), so the cost depends on how much has been removed since
+     * then, not on the size of the attachment store.
+     *
+     * @return the number of files deleted, or -1 on error
+     */
+    public int garbageCollectDeletedAttachments() {
+        if(needsFullAttachmentGC()) {
+            return garbageCollectAllAttachments();
+        }
+        return garbageCollectDeletedAttachments(-1);
+    }
+
+    /**
+     * Like garbageCollectDeletedAttachments(), but only checks up to maxKeys of the logged keys (all
+     * of them if maxKeys is negative), leaving the rest for the next call.
+     * @return the number of files deleted, or -1 on error
+     */
+    int garbageCollectDeletedAttachments(int maxKeys) {
+        int numDeleted = 0;
+        boolean success = false;
+        Cursor cursor = null;
+        SQLiteStatement forget = null;
+        // In a transaction, so no revision can start using a key between checking it and deleting it
+        beginTransaction();
+        try {
+            if(maxKeys < 0) {
+                cursor = database.rawQuery("SELECT key FROM attachments_gc WHERE NOT EXISTS " +
+                        "(SELECT 1 FROM attachments WHERE attachments.key=attachments_gc.key)", null);
+                while(cursor.moveToNext()) {
+                    if(attachments.deleteBlobForKey(new TDBlobKey(cursor.getBlob(0)))) {
+                        ++numDeleted;
+                    }
+                }
+                database.execSQL("DELETE FROM attachments_gc");
+            }
+            else {
+                String[] args = { Integer.toString(maxKeys) };
+                cursor = database.rawQuery("SELECT key, NOT EXISTS " +
+                        "(SELECT 1 FROM attachments WHERE attachments.key=attachments_gc.key) " +
+                        "FROM attachments_gc LIMIT ?", args);
+                forget = acquireStatement("DELETE FROM attachments_gc WHERE key=?");
+                while(cursor.moveToNext()) {
+                    byte[] key = cursor.getBlob(0);
+                    if(cursor.getInt(1) != 0 && attachments.deleteBlobForKey(new TDBlobKey(key))) {
+                        ++numDeleted;
+                    }
+                    forget.bindBlob(1, key);
+                    forget.execute();
+                }
+            }
+            success = true;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error collecting deleted attachments", e);
+            return -1;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+            releaseStatement(forget);
+            endTransaction(success);
+        }
+
+        Log.v(TDDatabase.TAG, "Deleted " + numDeleted + " attachments");
+        return numDeleted;
+    }
+
+    /**
+     * Deletes every file in the attachment store that no revision refers to, by listing them all.
+     * Unlike garbageCollectDeletedAttachments(), this also finds files that never got an attachment row,
+     * e.g. because the revision they were written for failed to be inserted.
+     *
+     * @return the number of files deleted, or -1 on error
+     */
+    public int garbageCollectAllAttachments() {
+        int numDeleted = -1;
+        boolean success = false;
+        Cursor cursor = null;
+        beginTransaction();
+        try {
+            cursor = database.rawQuery("SELECT DISTINCT key FROM attachments", null);
+            List<TDBlobKey> allKeys = new ArrayList<TDBlobKey>();
+            while(cursor.moveToNext()) {
+                allKeys.add(new TDBlobKey(cursor.getBlob(0)));
+            }
+            cursor.close();
+            cursor = null;
+
+            numDeleted = attachments.deleteBlobsExceptWithKeys(allKeys);
+            if(numDeleted < 0) {
+                return -1;
+            }
+            database.execSQL("DELETE FROM attachments_gc");
+            database.execSQL("DELETE FROM info WHERE key='attachment_gc_full'");
+            success = true;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error finding attachment keys in use", e);
+            return -1;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+            endTransaction(success);
+        }
+
+        Log.v(TDDatabase.TAG, "Deleted " + numDeleted + " attachments");
+        return numDeleted;
+    }
+
+    /**
+     * Whether garbageCollectDeletedAttachments() has logged keys left to check.
+     */
+    boolean hasAttachmentGarbage() {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT 1 FROM attachments_gc LIMIT 1", null);
+            return cursor.moveToFirst();
+        } catch(SQLException e) {
+            Log.e(TAG, "Error querying attachments_gc", e);
+            return false;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private boolean needsFullAttachmentGC() {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT 1 FROM info WHERE key='attachment_gc_full'", null);
+            return cursor.moveToFirst();
+        } catch(SQLException e) {
+            Log.e(TAG, "Error querying attachment_gc_full", e);
+            return true;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /*************************************************************************************************/
+    /*** TDDatabase+Insertion                                                                      ***/
+    /*************************************************************************************************/
+
+    /** DOCUMENT & REV IDS: **/
+
+    public static boolean isValidDocumentId(String id) {
+        // http://wiki.apache.org/couchdb/HTTP_Document_API#Documents
+        if(id == null || id.length() == 0) {
+            return false;
+        }
+        if(id.charAt(0) == '_') {
+            return  (id.startsWith("_design/"));
+        }
+        return true;
+        // "_local/*" is not a valid document ID. Local docs have their own API and shouldn't get here.
+    }
+
+    public static String generateDocumentId() {
+        return TDMisc.TDCreateUUID();
+    }
+
+    public String generateNextRevisionID(String revisionId) {
+        // Revision IDs have a generation count, a hyphen, and a UUID.
+        int generation = 0;
+        if(revisionId != null) {
+            generation = TDRevision.generationFromRevID(revisionId);
+            if(generation == 0) {
+                return null;
+            }
+        }
+        String digest = TDMisc.TDCreateUUID();  //TODO: Generate canonical digest of body
+        return Integer.toString(generation + 1) + "-" + digest;
+    }
+
+    public long insertDocumentID(String docId) {
+        long rowId = -1;
+        SQLiteStatement statement = null;
+        try {
+            statement = acquireStatement("INSERT INTO docs (docid) VALUES (?)");
+            statement.bindString(1, docId);
+            rowId = statement.executeInsert();
+            if(rowId > 0) {
+                if(database.inTransaction()) {
+                    addPendingDocID(docId, rowId);
+                }
+                else {
+                    docIDCache.put(docId, rowId);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TDDatabase.TAG, "Error inserting document id", e);
+        } finally {
+            releaseStatement(statement);
+        }
+        return rowId;
+    }
+
+    public long getOrInsertDocNumericID(String docId) {
+        long docNumericId = getDocNumericID(docId);
+        if(docNumericId == 0) {
+            docNumericId = insertDocumentID(docId);
+        }
+        return docNumericId;
+    }
+
+    /**
+     * Parses the _revisions dict from a document into an array of revision ID strings
+     */
+    public static List<String> parseCouchDBRevisionHistory(Map<String,Object> docProperties) {
+        Map<String,Object> revisions = (Map<String,Object>)docProperties.get("_revisions");
+        if(revisions == null) {
+            return null;
+        }
+        List<String> revIDs = (List<String>)revisions.get("ids");
+        Integer start = (Integer)revisions.get("start");
+        if(start != null) {
+            for(int i=0; i < revIDs.size(); i++) {
+                String revID = revIDs.get(i);
+                revIDs.set(i, Integer.toString(start--) + "-" + revID);
+            }
+        }
+        return revIDs;
+    }
+
+    /** INSERTION: **/
+
+    /**
+     * Stores new revision bodies in a compact binary encoding (see TDBinaryJSON) instead of JSON text.
+     * Each row is tagged with its encoding, so existing bodies stay readable either way.
+     */
+    public void setBinaryBodiesEnabled(boolean enabled) {
+        this.binaryBodiesEnabled = enabled;
+    }
+
+    public boolean isBinaryBodiesEnabled() {
+        return binaryBodiesEnabled;
+    }
+
+    /**
+     * Compresses revision bodies of at least this many bytes when they're stored, if that makes them
+     * smaller. 0 (the default) turns compression off. Compressed and uncompressed bodies can be mixed,
+     * so this can be changed at any time.
+     */
+    public void setBodyCompressionThreshold(int bytes) {
+        this.bodyCompressionThreshold = Math.max(0, bytes);
+    }
+
+    public int getBodyCompressionThreshold() {
+        return bodyCompressionThreshold;
+    }
+
+    /** The number of revision bodies stored compressed since the database was opened. */
+    public synchronized long getCompressedBodyCount() {
+        return compressedBodyCount;
+    }
+
+    /**
+     * The total compressed size of the bodies stored compressed since the database was opened,
+     * divided by their uncompressed size; 1.0 if none were.
+     */
+    public synchronized double getBodyCompressionRatio() {
+        if(compressedBodyInputBytes == 0) {
+            return 1.0;
+        }
+        return (double)compressedBodyOutputBytes / compressedBodyInputBytes;
+    }
+
+    private byte[] compressDocumentBody(byte[] data) {
+        if(data == null || bodyCompressionThreshold <= 0 || data.length < bodyCompressionThreshold) {
+            return data;
+        }
+        byte[] compressed = TDCompression.compress(data);
+        if(compressed == null) {
+            return data;
+        }
+        synchronized(this) {
+            ++compressedBodyCount;
+            compressedBodyInputBytes += data.length;
+            compressedBodyOutputBytes += compressed.length;
+        }
+        return compressed;
+    }
+
+    private static byte[] decompressDocumentBody(byte[] data) {
+        try {
+            return TDCompression.decompress(data);
+        } catch (IOException e) {
+            Log.e(TDDatabase.TAG, "Error decompressing revision body", e);
+            return null;
+        }
+    }
+
+    /** The document's properties minus the known "_"-prefixed ones, or null if it has unknown ones. */
+    private Map<String,Object> storedProperties(TDRevision rev) {
+        Map<String,Object> origProps = rev.getProperties();
+        if(origProps == null) {
+            return null;
+        }
+
+        // Don't allow any "_"-prefixed keys. Known ones we'll ignore, unknown ones are an error.
+        Map<String,Object> properties = new HashMap<String,Object>(origProps.size());
+        for (String key : origProps.keySet()) {
+            if(key.startsWith("_")) {
+                if(!KNOWN_SPECIAL_KEYS.contains(key)) {
+                    Log.e(TAG, "TDDatabase: Invalid top-level key '" + key + "' in document to be inserted");
+                    return null;
+                }
+            } else {
+                properties.put(key, origProps.get(key));
+            }
+        }
+        return properties;
+    }
+
+    public byte[] encodeDocumentJSON(TDRevision rev) {
+        Map<String,Object> properties = storedProperties(rev);
+        if(properties == null) {
+            return null;
+        }
+
+        byte[] json = null;
+        try {
+            json = TDServer.getObjectMapper().writeValueAsBytes(properties);
+        } catch (Exception e) {
+            Log.e(TDDatabase.TAG, "Error serializing " + rev + " to JSON", e);
+        }
+        return json;
+    }
+
+    /**
+     * Encodes a revision's body the way it's stored in the revs table: as binary if that's enabled,
+     * otherwise (or if the properties contain something the binary encoding can't represent) as JSON.
+     */
+    public byte[] encodeDocumentBody(TDRevision rev) {
+        if(binaryBodiesEnabled) {
+            Map<String,Object> properties = storedProperties(rev);
+            if(properties == null) {
+                return null;
+            }
+            try {
+                return TDBinaryJSON.encode(properties);
+            } catch (IllegalArgumentException e) {
+                Log.w(TDDatabase.TAG, "Storing " + rev + " as JSON: " + e.getMessage());
+            }
+        }
+        return encodeDocumentJSON(rev);
+    }
+
+    /**
+     * Parses a stored revision body, compressed or not and in either encoding, into its properties.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String,Object> parseDocumentBody(byte[] body) throws IOException {
+        body = TDCompression.decompress(body);
+        if(TDBinaryJSON.isBinary(body)) {
+            return (Map<String,Object>)TDBinaryJSON.decode(body);
+        }
+        return TDServer.getObjectMapper().readValue(body, Map.class);
+    }
+
+    public void notifyChange(TDRevision rev, URL source) {
+        notifyChange(rev, source, false);
+    }
+
+    /**
+     * @param purged  If true, rev has been purged rather than added; "purged" is set in the notification.
+     */
+    private void notifyChange(TDRevision rev, URL source, boolean purged) {
+        Map<String,Object> changeNotification = new HashMap<String, Object>();
+        changeNotification.put("rev", rev);
+        changeNotification.put("seq", rev.getSequence());
+        if(source != null) {
+            changeNotification.put("source", source);
+        }
+        if(purged) {
+            changeNotification.put("purged", Boolean.TRUE);
+        }
+        setChanged();
+        notifyObservers(changeNotification);
+    }
+
+    public long insertRevision(TDRevision rev, long docNumericID, long parentSequence, boolean current, byte[] data) {
+        long rowId = 0;
+        SQLiteStatement statement = null;
+        try {
+            statement = acquireStatement("INSERT INTO revs (doc_id, revid, parent, current, deleted, json) " +
+                                         "VALUES (?, ?, ?, ?, ?, ?)");
+            statement.bindLong(1, docNumericID);
+            statement.bindString(2, rev.getRevId());
+            if(parentSequence != 0) {
+                statement.bindLong(3, parentSequence);
+            }
+            else {
+                statement.bindNull(3);
+            }
+            statement.bindLong(4, current ? 1 : 0);
+            statement.bindLong(5, rev.isDeleted() ? 1 : 0);
+            data = compressDocumentBody(data);
+            if(data != null) {
+                statement.bindBlob(6, data);
+            }
+            else {
+                statement.bindNull(6);
+            }
+            rowId = statement.executeInsert();
+            rev.setSequence(rowId);
+            if(rowId > pendingLastSequence) {
+                pendingLastSequence = rowId;
+            }
+            revTreeChanged(TDRevTreeCache.Change.inserted(rev.getDocId(), rowId, parentSequence, rev.getRevId(), rev.isDeleted(), current));
+        } catch (Exception e) {
+            Log.e(TDDatabase.TAG, "Error inserting revision", e);
+        } finally {
+            releaseStatement(statement);
+        }
+        return rowId;
+    }
+
+    /**
+     * Marks a revision as no longer current (i.e. it now has a child.)
+     */
+    void makeRevisionNoncurrent(String docId, long sequence) throws SQLException {
+        SQLiteStatement statement = acquireStatement("UPDATE revs SET current=0 WHERE sequence=?");
+        try {
+            statement.bindLong(1, sequence);
+            statement.execute();
+        } finally {
+            releaseStatement(statement);
+        }
+        revTreeChanged(TDRevTreeCache.Change.noncurrent(docId, sequence));
+    }
+
+    private TDRevision putRevision(TDRevision rev, String prevRevId, TDStatus resultStatus) {
+        return putRevision(rev, prevRevId, false, resultStatus);
+    }
+
+    /**
+     * Stores a new (or initial) revision of a document.
+     *
+     * This is what's invoked by a PUT or POST. As with those, the previous revision ID must be supplied when necessary and the call will fail if it doesn't match.
+     *
+     * @param rev The revision to add. If the docID is null, a new UUID will be assigned. Its revID must be null. It must have a JSON body.
+     * @param prevRevId The ID of the revision to replace (same as the "?rev=" parameter to a PUT), or null if this is a new document.
+     * @param allowConflict If false, an error status 409 will be returned if the insertion would create a conflict, i.e. if the previous revision already has a child.
+     * @param resultStatus On return, an HTTP status code indicating success or failure.
+     * @return A new TDRevision with the docID, revID and sequence filled in (but no body).
+     */
+    public TDRevision putRevision(final TDRevision rev, final String prevRevId, final boolean allowConflict, final TDStatus resultStatus) {
+        if(shouldGroupCommit()) {
+            TDGroupCommitWrite write = new TDGroupCommitWrite(resultStatus, null) {
+                @Override
+                TDRevision perform() {
+                    return putRevisionWithoutNotifying(rev, prevRevId, allowConflict, resultStatus, null);
+                }
+            };
+            runWithGroupCommit(write);
+            return write.result;
+        }
+
+        TDRevision result = putRevisionWithoutNotifying(rev, prevRevId, allowConflict, resultStatus, null);
+        if(result != null) {
+            //// EPILOGUE: A change notification is sent...
+            notifyChange(result, null);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TDRevision putRevisionWithoutNotifying(TDRevision rev, String prevRevId, boolean allowConflict, TDStatus resultStatus, TDBulkLookup lookup) {
+        // prevRevId is the rev ID being replaced, or nil if an insert
+        String docId = rev.getDocId();
+        boolean deleted = rev.isDeleted();
+        if((rev == null) || ((prevRevId != null) && (docId == null)) || (deleted && (docId == null))
+                || ((docId != null) && !isValidDocumentId(docId))) {
+            resultStatus.setCode(TDStatus.BAD_REQUEST);
+            return null;
+        }
+
+        resultStatus.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+        beginTransaction();
+        if(docId != null) {
+            documentChanged(docId);
+        }
+
+        //// PART I: In which are performed lookups and validations prior to the insert...
+
+        long docNumericID = (docId != null) ? lookupDocNumericID(docId, lookup) : 0;
+        long parentSequence = 0;
+        try {
+            boolean wasLive = (docNumericID > 0) && isDocumentLive(docNumericID);
+            if(prevRevId != null) {
+                // Replacing: make sure given prevRevID is current & find its sequence number:
+                if(docNumericID <= 0) {
+                    resultStatus.setCode(TDStatus.NOT_FOUND);
+                    return null;
+                }
+
+                parentSequence = lookupRevisionSequence(docNumericID, prevRevId, !allowConflict, lookup);
+
+                if(parentSequence == 0) {
+                    // Not found: either a 404 or a 409, depending on whether there is any current revision
+                    if(!allowConflict && existsDocumentWithIDAndRev(docId, null)) {
+                        resultStatus.setCode(TDStatus.CONFLICT);
+                        return null;
+                    }
+                    else {
+                        resultStatus.setCode(TDStatus.NOT_FOUND);
+                        return null;
+                    }
+                }
+
+                if(validations != null && validations.size() > 0) {
+                    // Fetch the previous revision and validate the new one against it:
+                    TDRevision prevRev = new TDRevision(docId, prevRevId, false);
+                    TDStatus status = validateRevision(rev, prevRev);
+                    if(!status.isSuccessful()) {
+                        resultStatus.setCode(status.getCode());
+                        return null;
+                    }
+                }
+
+                // Make replaced rev non-current:
+                makeRevisionNoncurrent(docId, parentSequence);
+            }
+            else {
+                // Inserting first revision.
+                if(deleted && (docId != null)) {
+                    // Didn't specify a revision to delete: 404 or a 409, depending
+                    if(existsDocumentWithIDAndRev(docId, null)) {
+                        resultStatus.setCode(TDStatus.CONFLICT);
+                        return null;
+                    }
+                    else {
+                        resultStatus.setCode(TDStatus.NOT_FOUND);
+                        return null;
+                    }
+                }
+
+                // Validate:
+                TDStatus status = validateRevision(rev, null);
+                if(!status.isSuccessful()) {
+                    resultStatus.setCode(status.getCode());
+                    return null;
+                }
+
+                if(docId != null) {
+                    // Inserting first revision, with docID given (PUT):
+                    if(docNumericID <= 0) {
+                        // Doc doesn't exist at all; create it:
+                        docNumericID = insertDocumentID(docId);
+                        if(docNumericID <= 0) {
+                            return null;
+                        }
+                    } else {
+                        // Doc exists; check whether current winning revision is deleted:
+                        TDRevision winner = lookupWinningRevision(docId, docNumericID, lookup);
+
+                        if(winner != null) {
+                            boolean wasAlreadyDeleted = winner.isDeleted();
+                            if(wasAlreadyDeleted) {
+                                // Make the deleted revision no longer current:
+                                makeRevisionNoncurrent(docId, winner.getSequence());
+                            }
+                            else if (!allowConflict) {
+                                // docId already exists, current not deleted, conflict
+                                resultStatus.setCode(TDStatus.CONFLICT);
+                                return null;
+                            }
+                        }
+                    }
+                }
+                else {
+                    // Inserting first revision, with no docID given (POST): generate a unique docID:
+                    docId = TDDatabase.generateDocumentId();
+                    docNumericID = insertDocumentID(docId);
+                    if(docNumericID <= 0) {
+                        return null;
+                    }
+                }
+            }
+
+            //// PART II: In which insertion occurs...
+
+            // Bump the revID and update the JSON:
+            String newRevId = generateNextRevisionID(prevRevId);
+            byte[] data = null;
+            if(!rev.isDeleted()) {
+                data = encodeDocumentBody(rev);
+                if(data == null) {
+                    // bad or missing json
+                    resultStatus.setCode(TDStatus.BAD_REQUEST);
+                    return null;
+                }
+            }
+
+            rev = rev.copyWithDocID(docId, newRevId);
+
+            // Now insert the rev itself:
+            long newSequence = insertRevision(rev, docNumericID, parentSequence, true, data);
+            if(newSequence == 0) {
+                return null;
+            }
+
+            // Store any attachments:
+            if(attachments != null) {
+                TDStatus status = processAttachmentsForRevision(rev, parentSequence);
+                if(!status.isSuccessful()) {
+                    resultStatus.setCode(status.getCode());
+                    return null;
+                }
+            }
+
+            // Drop history that's now beyond revs_limit (after attachments were copied from the parent):
+            pruneRevisions(docId, docNumericID, parseRevIDNumber(newRevId));
+
+            // A deletion only kills the document if it has no other live (conflicting) revision:
+            documentLivenessChanged(wasLive, !deleted || isDocumentLive(docNumericID));
+
+            // Success!
+            if(deleted) {
+                resultStatus.setCode(TDStatus.OK);
+            }
+            else {
+                resultStatus.setCode(TDStatus.CREATED);
+            }
+
+        } catch (SQLException e1) {
+            Log.e(TDDatabase.TAG, "Error putting revision", e1);
+            return null;
+        } finally {
+            endTransaction(resultStatus.isSuccessful());
+        }
+
+        return rev;
     }
 
     /**
-     * Modifies a TDRevision's body by changing all attachments with revpos < minRevPos into stubs.
+     * Inserts an already-existing revision replicated from a remote database.
      *
-     * @param rev
-     * @param minRevPos
+     * It must already have a revision ID. This may create a conflict! The revision's history must be given; ancestor revision IDs that don't already exist locally will create phantom revisions with no content.
      */
-    public void stubOutAttachmentsIn(TDRevision rev, int minRevPos)
-    {
-        if (minRevPos <= 1) {
-            return;
-        }
-        Map<String, Object> properties = (Map<String,Object>)rev.getProperties();
-        Map<String, Object> attachments = null;
-        if(properties != null) {
-            attachments = (Map<String,Object>)properties.get("_attachments");
-        }
-        Map<String, Object> editedProperties = null;
-        Map<String, Object> editedAttachments = null;
-        for (String name : attachments.keySet()) {
-            Map<String,Object> attachment = (Map<String,Object>)attachments.get(name);
-            int revPos = (Integer) attachment.get("revpos");
-            Object stub = attachment.get("stub");
-            if (revPos > 0 && revPos < minRevPos && (stub == null)) {
-                // Strip this attachment's body. First make its dictionary mutable:
-                if (editedProperties == null) {
-                    editedProperties = new HashMap<String,Object>(properties);
-                    editedAttachments = new HashMap<String,Object>(attachments);
-                    editedProperties.put("_attachments", editedAttachments);
+    public TDStatus forceInsert(final TDRevision rev, final List<String> revHistory, URL source) {
+        if(shouldGroupCommit()) {
+            final TDStatus resultStatus = new TDStatus();
+            TDGroupCommitWrite write = new TDGroupCommitWrite(resultStatus, source) {
+                @Override
+                TDRevision perform() {
+                    TDStatus status = forceInsertWithoutNotifying(rev, revHistory, null);
+                    resultStatus.setCode(status.getCode());
+                    return status.isSuccessful() ? rev : null;
                 }
-                // ...then remove the 'data' and 'follows' key:
-                Map<String,Object> editedAttachment = new HashMap<String,Object>(attachment);
-                editedAttachment.remove("data");
-                editedAttachment.remove("follows");
-                editedAttachment.put("stub", true);
-                editedAttachments.put(name,editedAttachment);
-                Log.d(TDDatabase.TAG, "Stubbed out attachment" + rev + " " + name + ": revpos" + revPos + " " + minRevPos);
-            }
+            };
+            runWithGroupCommit(write);
+            return resultStatus;
         }
-        if (editedProperties != null)
-            rev.setProperties(editedProperties);
+
+        TDStatus status = forceInsertWithoutNotifying(rev, revHistory, null);
+        if(status.isSuccessful()) {
+            // Notify and return:
+            notifyChange(rev, source);
+        }
+        return status;
     }
 
-    /**
-     * Given a newly-added revision, adds the necessary attachment rows to the database and stores inline attachments into the blob store.
-     */
-    public TDStatus processAttachmentsForRevision(TDRevision rev, long parentSequence) {
-        assert(rev != null);
-        long newSequence = rev.getSequence();
-        assert(newSequence > parentSequence);
+    private TDStatus forceInsertWithoutNotifying(TDRevision rev, List<String> revHistory, TDBulkLookup lookup) {
+        String docId = rev.getDocId();
+        String revId = rev.getRevId();
+        if(!isValidDocumentId(docId) || (revId == null)) {
+            return new TDStatus(TDStatus.BAD_REQUEST);
+        }
 
-        // If there are no attachments in the new rev, there's nothing to do:
-        Map<String,Object> newAttachments = null;
-        Map<String,Object> properties = (Map<String,Object>)rev.getProperties();
-        if(properties != null) {
-            newAttachments = (Map<String,Object>)properties.get("_attachments");
+        int historyCount = revHistory.size();
+        if(historyCount == 0) {
+            revHistory = new ArrayList<String>();
+            revHistory.add(revId);
+            historyCount = 1;
+        } else if(!revHistory.get(0).equals(rev.getRevId())) {
+            return new TDStatus(TDStatus.BAD_REQUEST);
         }
-        if(newAttachments == null || newAttachments.size() == 0 || rev.isDeleted()) {
-            return new TDStatus(TDStatus.OK);
+        if(historyCount > getRevsLimit()) {
+            // Revisions further back would only be pruned again right away:
+            revHistory = revHistory.subList(0, getRevsLimit());
+            historyCount = revHistory.size();
         }
 
-        for (String name : newAttachments.keySet()) {
+        boolean success = false;
+        beginTransaction();
+        documentChanged(docId);
+        try {
+            // First look up all locally-known revisions of this document:
+            long docNumericID = lookupDocNumericID(docId, lookup);
+            boolean wasLive = false;
+            if(docNumericID == 0) {
+                docNumericID = insertDocumentID(docId);
+            }
+            else {
+                wasLive = isDocumentLive(docNumericID);
+            }
+            TDRevisionList localRevs = lookupAllRevisions(docId, docNumericID, lookup);
+            if(localRevs == null) {
+                return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+            }
 
-            TDStatus status = new TDStatus();
-            Map<String,Object> newAttach = (Map<String,Object>)newAttachments.get(name);
-            String newContentBase64 = (String)newAttach.get("data");
-            if(newContentBase64 != null) {
-                // New item contains data, so insert it. First decode the data:
-                byte[] newContents;
-                try {
-                    newContents = Base64.decode(newContentBase64);
-                } catch (IOException e) {
-                    Log.e(TDDatabase.TAG, "IOExeption parsing base64", e);
-                    return new TDStatus(TDStatus.BAD_REQUEST);
-                }
-                if(newContents == null) {
-                    return new TDStatus(TDStatus.BAD_REQUEST);
+            // Walk through the remote history in chronological order, matching each revision ID to
+            // a local revision. When the list diverges, start creating blank local revisions to fill
+            // in the local history:
+            long sequence = 0;
+            long localParentSequence = 0;
+            for(int i = revHistory.size() - 1; i >= 0; --i) {
+                revId = revHistory.get(i);
+                TDRevision localRev = localRevs.revWithDocIdAndRevId(docId, revId);
+                if(localRev != null) {
+                    // This revision is known locally. Remember its sequence as the parent of the next one:
+                    sequence = localRev.getSequence();
+                    assert(sequence > 0);
+                    localParentSequence = sequence;
                 }
+                else {
+                    // This revision isn't known, so add it:
+                    TDRevision newRev;
+                    byte[] data = null;
+                    boolean current = false;
+                    if(i == 0) {
+                        // Hey, this is the leaf revision we're inserting:
+                       newRev = rev;
+                       if(!rev.isDeleted()) {
+                           data = encodeDocumentBody(rev);
+                           if(data == null) {
+                               return new TDStatus(TDStatus.BAD_REQUEST);
+                           }
+                       }
+                       current = true;
+                    }
+                    else {
+                        // It's an intermediate parent, so insert a stub:
+                        newRev = new TDRevision(docId, revId, false);
+                    }
 
-                // Now determine the revpos, i.e. generation # this was added in. Usually this is
-                // implicit, but a rev being pulled in replication will have it set already.
-                int generation = rev.getGeneration();
-                assert(generation > 0);
-                Object revposObj = newAttach.get("revpos");
-                int revpos = generation;
-                if(revposObj != null && revposObj instanceof Integer) {
-                    revpos = ((Integer)revposObj).intValue();
-                }
+                    // Insert it:
+                    sequence = insertRevision(newRev, docNumericID, sequence, current, data);
 
-                if(revpos > generation) {
-                    return new TDStatus(TDStatus.BAD_REQUEST);
-                }
+                    if(sequence <= 0) {
+                        return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+                    }
 
-                // Finally insert the attachment:
-                status = insertAttachmentForSequenceWithNameAndType(new ByteArrayInputStream(newContents), newSequence, name, (String)newAttach.get("content_type"), revpos);
-            }
-            else {
-                // It's just a stub, so copy the previous revision's attachment entry:
-                //? Should I enforce that the type and digest (if any) match?
-                status = copyAttachmentNamedFromSequenceToSequence(name, parentSequence, newSequence);
+                    if(i == 0) {
+                        // Write any changed attachments for the new revision:
+                        TDStatus status = processAttachmentsForRevision(rev, localParentSequence);
+                        if(!status.isSuccessful()) {
+                            return status;
+                        }
+                    }
+                }
             }
-            if(!status.isSuccessful()) {
-                return status;
+
+            // Mark the latest local rev as no longer current:
+            if(localParentSequence > 0 && localParentSequence != sequence) {
+                try {
+                    makeRevisionNoncurrent(docId, localParentSequence);
+                } catch (SQLException e) {
+                    return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+                }
             }
+
+            // Drop history that's now beyond revs_limit:
+            pruneRevisions(docId, docNumericID, parseRevIDNumber(rev.getRevId()));
+
+            documentLivenessChanged(wasLive, isDocumentLive(docNumericID));
+
+            success = true;
+        } catch(SQLException e) {
+            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+        } finally {
+            endTransaction(success);
         }
 
-        return new TDStatus(TDStatus.OK);
+        return new TDStatus(TDStatus.CREATED);
     }
 
+    /** PURGING: **/
+
     /**
-     * Updates or deletes an attachment, creating a new document revision in the process.
-     * Used by the PUT / DELETE methods called on attachment URLs.
+     * Permanently removes revisions from the database, as CouchDB's _purge does: unlike deletion,
+     * nothing is left behind, not even a tombstone, and the revisions won't be replicated anywhere.
+     *
+     * Each given revision is removed along with its ancestors, except for those that are also
+     * ancestors of a revision that isn't being purged. The special revision ID "*" purges every
+     * revision of the document. A document left with no revisions is removed entirely. Map rows
+     * and attachments of the removed revisions go with them.
+     *
+     * @param docsToRevs  Maps document IDs to the IDs of the revisions to purge.
+     * @return  Maps each document ID to the IDs of the revisions that were actually purged, or null
+     *          on error.
      */
-    public TDRevision updateAttachment(String filename, InputStream contentStream, String contentType, String docID, String oldRevID, TDStatus status) {
-        status.setCode(TDStatus.BAD_REQUEST);
-        if(filename == null || filename.length() == 0 || (contentStream != null && contentType == null) || (oldRevID != null && docID == null) || (contentStream != null && docID == null)) {
-            return null;
-        }
-
+    public Map<String,List<String>> purgeRevisions(Map<String,List<String>> docsToRevs) {
+        // <http://wiki.apache.org/couchdb/Purge_Documents>
+        Map<String,List<String>> result = new HashMap<String,List<String>>();
+        boolean purgedAny = false;
+        boolean winnerChanged = false;
+        boolean success = false;
         beginTransaction();
         try {
-            TDRevision oldRev = new TDRevision(docID, oldRevID, false);
-            if(oldRevID != null) {
-                // Load existing revision if this is a replacement:
-                TDStatus loadStatus = loadRevisionBody(oldRev, EnumSet.noneOf(TDContentOptions.class));
-                status.setCode(loadStatus.getCode());
-                if(!status.isSuccessful()) {
-                    if(status.getCode() == TDStatus.NOT_FOUND && existsDocumentWithIDAndRev(docID, null)) {
-                        status.setCode(TDStatus.CONFLICT);  // if some other revision exists, it's a conflict
-                    }
+            for (Map.Entry<String,List<String>> entry : docsToRevs.entrySet()) {
+                String docId = entry.getKey();
+                List<String> revIds = entry.getValue();
+                long docNumericID = getDocNumericID(docId);
+                if(docNumericID < 0) {
                     return null;
                 }
+                else if(docNumericID == 0) {
+                    continue;  // no such document; skip silently
+                }
 
-                Map<String,Object> attachments = (Map<String, Object>) oldRev.getProperties().get("_attachments");
-                if(contentStream == null && attachments != null && !attachments.containsKey(filename)) {
-                    status.setCode(TDStatus.NOT_FOUND);
-                    return null;
+                boolean wasLive = isDocumentLive(docNumericID);
+                String oldWinner = indexedRevID(docNumericID);
+                List<String> revsPurged;
+                if(revIds.isEmpty()) {
+                    revsPurged = new ArrayList<String>();
                 }
-                // Remove the _attachments stubs so putRevision: doesn't copy the rows for me
-                // OPT: Would be better if I could tell loadRevisionBody: not to add it
-                if(attachments != null) {
-                    Map<String,Object> properties = new HashMap<String,Object>(oldRev.getProperties());
-                    properties.remove("_attachments");
-                    oldRev.setBody(new TDBody(properties));
+                else if(revIds.contains("*")) {
+                    // Delete all revisions if magic "*" revision ID is given:
+                    String[] args = { Long.toString(docNumericID) };
+                    database.execSQL("DELETE FROM revs WHERE doc_id=?", args);
+                    revsPurged = new ArrayList<String>();
+                    revsPurged.add("*");
                 }
-            } else {
-                // If this creates a new doc, it needs a body:
-                oldRev.setBody(new TDBody(new HashMap<String,Object>()));
-            }
-
-            // Create a new revision:
-            TDRevision newRev = putRevision(oldRev, oldRevID, false, status);
-            if(newRev == null) {
-                return null;
-            }
-
-            if(oldRevID != null) {
-                // Copy all attachment rows _except_ for the one being updated:
-                String[] args = { Long.toString(newRev.getSequence()), Long.toString(oldRev.getSequence()), filename };
-                database.execSQL("INSERT INTO attachments "
-                        + "(sequence, filename, key, type, length, revpos) "
-                        + "SELECT ?, filename, key, type, length, revpos FROM attachments "
-                        + "WHERE sequence=? AND filename != ?", args);
-            }
-
-            if(contentStream != null) {
-                // If not deleting, add a new attachment entry:
-                TDStatus insertStatus = insertAttachmentForSequenceWithNameAndType(contentStream, newRev.getSequence(),
-                        filename, contentType, newRev.getGeneration());
-                status.setCode(insertStatus.getCode());
-
-                if(!status.isSuccessful()) {
-                    return null;
+                else {
+                    revsPurged = purgeRevisions(docNumericID, revIds);
+                }
+
+                if(!revsPurged.isEmpty()) {
+                    purgedAny = true;
+                    String[] args = { Long.toString(docNumericID), Long.toString(docNumericID) };
+                    database.execSQL("DELETE FROM docs WHERE doc_id=? AND NOT EXISTS " +
+                            "(SELECT 1 FROM revs WHERE doc_id=?)", args);
+                    forgetDocNumericID(docId);
+                    documentChanged(docId);
+                    revTreeChanged(TDRevTreeCache.Change.purged(docId));
+                    documentLivenessChanged(wasLive, isDocumentLive(docNumericID));
+
+                    // If another revision now wins, views have to index it even though it's old:
+                    String newWinner = indexedRevID(docNumericID);
+                    if(newWinner != null && !newWinner.equals(oldWinner)) {
+                        winnerChanged = true;
+                    }
                 }
+                result.put(docId, revsPurged);
             }
 
-            status.setCode((contentStream != null) ? TDStatus.CREATED : TDStatus.OK);
-            return newRev;
-
-        } catch(SQLException e) {
-            Log.e(TAG, "Error uploading attachment", e);
-            status.setCode(TDStatus.INTERNAL_SERVER_ERROR);
+            if(purgedAny) {
+                long purgeSeq = getPurgeSequence() + 1;
+                String[] args = { Long.toString(purgeSeq) };
+                database.execSQL("INSERT OR REPLACE INTO info (key, value) VALUES ('purge_seq', ?)", args);
+                if(winnerChanged) {
+                    database.execSQL("INSERT OR REPLACE INTO info (key, value) VALUES ('purge_reindex_seq', ?)", args);
+                }
+            }
+            success = true;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error purging revisions", e);
             return null;
         } finally {
-            endTransaction(status.isSuccessful());
+            endTransaction(success);
         }
+        return result;
     }
 
     /**
-     * Deletes obsolete attachments from the database and blob store.
+     * Purges the given revisions of a document and their ancestors, keeping any ancestors of the
+     * revisions that aren't being purged.
+     * @return  The IDs of the revisions deleted.
      */
-    public TDStatus garbageCollectAttachments() {
-        // First delete attachment rows for already-cleared revisions:
-        // OPT: Could start after last sequence# we GC'd up to
-
-        try {
-            database.execSQL("DELETE FROM attachments WHERE sequence IN " +
-                            "(SELECT sequence from revs WHERE json IS null)");
-        }
-        catch(SQLException e) {
-            Log.e(TDDatabase.TAG, "Error deleting attachments", e);
-        }
-
-        // Now collect all remaining attachment IDs and tell the store to delete all but these:
+    private List<String> purgeRevisions(long docNumericID, List<String> revIds) throws SQLException {
+        // Iterate over all the revisions of the doc, in reverse sequence order (children before
+        // parents), keeping track of the sequences to delete: the given revs and their ancestors,
+        // but not any other leaf revs or their ancestors.
+        Set<Long> seqsToPurge = new HashSet<Long>();
+        Set<Long> seqsToKeep = new HashSet<Long>();
+        Map<Long,String> revsToPurge = new HashMap<Long,String>();
+        String[] args = { Long.toString(docNumericID) };
         Cursor cursor = null;
         try {
-            cursor = database.rawQuery("SELECT DISTINCT key FROM attachments", null);
-
-            cursor.moveToFirst();
-            List<TDBlobKey> allKeys = new ArrayList<TDBlobKey>();
-            while(!cursor.isAfterLast()) {
-                TDBlobKey key = new TDBlobKey(cursor.getBlob(0));
-                allKeys.add(key);
-                cursor.moveToNext();
-            }
-
-            int numDeleted = attachments.deleteBlobsExceptWithKeys(allKeys);
-            if(numDeleted < 0) {
-                return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
+            cursor = database.rawQuery("SELECT revid, sequence, parent FROM revs WHERE doc_id=? ORDER BY sequence DESC", args);
+            while(cursor.moveToNext()) {
+                String revId = cursor.getString(0);
+                long sequence = cursor.getLong(1);
+                long parent = cursor.getLong(2);
+                if((seqsToPurge.contains(sequence) || revIds.contains(revId)) && !seqsToKeep.contains(sequence)) {
+                    // Purge it and maybe its parent:
+                    seqsToPurge.add(sequence);
+                    revsToPurge.put(sequence, revId);
+                    if(parent > 0) {
+                        seqsToPurge.add(parent);
+                    }
+                }
+                else {
+                    // Keep it and its parent:
+                    seqsToPurge.remove(sequence);
+                    revsToPurge.remove(sequence);
+                    seqsToKeep.add(parent);
+                }
             }
-
-            Log.v(TDDatabase.TAG, "Deleted " + numDeleted + " attachments");
-
-            return new TDStatus(TDStatus.OK);
-        } catch (SQLException e) {
-            Log.e(TDDatabase.TAG, "Error finding attachment keys in use", e);
-            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
         }
-    }
-
-    /*************************************************************************************************/
-    /*** TDDatabase+Insertion                                                                      ***/
-    /*************************************************************************************************/
-
-    /** DOCUMENT & REV IDS: **/
+        seqsToPurge.removeAll(seqsToKeep);
+        revsToPurge.keySet().retainAll(seqsToPurge);
 
-    public static boolean isValidDocumentId(String id) {
-        // http://wiki.apache.org/couchdb/HTTP_Document_API#Documents
-        if(id == null || id.length() == 0) {
-            return false;
+        if(!seqsToPurge.isEmpty()) {
+            database.execSQL("DELETE FROM revs WHERE sequence IN (" + TextUtils.join(",", seqsToPurge) + ")");
         }
-        if(id.charAt(0) == '_') {
-            return  (id.startsWith("_design/"));
+        return new ArrayList<String>(revsToPurge.values());
+    }
+
+    /**
+     * The revision of a document that views index, i.e. the winning non-deleted one; null if none.
+     */
+    private String indexedRevID(long docNumericID) throws SQLException {
+        SQLiteStatement statement = acquireStatement("SELECT revid FROM revs WHERE doc_id=? " +
+                "AND current!=0 AND deleted=0 ORDER BY revid DESC LIMIT 1");
+        try {
+            statement.bindLong(1, docNumericID);
+            return statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            releaseStatement(statement);
         }
-        return true;
-        // "_local/*" is not a valid document ID. Local docs have their own API and shouldn't get here.
     }
 
-    public static String generateDocumentId() {
-        return TDMisc.TDCreateUUID();
+    /**
+     * The number of purges done to the database so far. Views compare it with the one they've seen.
+     */
+    public long getPurgeSequence() {
+        return queryInfoLong("purge_seq");
     }
 
-    public String generateNextRevisionID(String revisionId) {
-        // Revision IDs have a generation count, a hyphen, and a UUID.
-        int generation = 0;
-        if(revisionId != null) {
-            generation = TDRevision.generationFromRevID(revisionId);
-            if(generation == 0) {
-                return null;
-            }
-        }
-        String digest = TDMisc.TDCreateUUID();  //TODO: Generate canonical digest of body
-        return Integer.toString(generation + 1) + "-" + digest;
+    /**
+     * The purge sequence of the last purge that changed which revision of a document views have to
+     * index, so that views that hadn't caught up with it yet need rebuilding.
+     */
+    long getPurgeReindexSequence() {
+        return queryInfoLong("purge_reindex_seq");
     }
 
-    public long insertDocumentID(String docId) {
-        long rowId = -1;
+    private long queryInfoLong(String key) {
+        String[] args = { key };
+        Cursor cursor = null;
         try {
-            ContentValues args = new ContentValues();
-            args.put("docid", docId);
-            rowId = database.insert("docs", null, args);
-        } catch (Exception e) {
-            Log.e(TDDatabase.TAG, "Error inserting document id", e);
+            cursor = database.rawQuery("SELECT value FROM info WHERE key=?", args);
+            return cursor.moveToFirst() ? Long.parseLong(cursor.getString(0)) : 0;
+        } catch(SQLException e) {
+            Log.e(TAG, "Error querying " + key, e);
+            return 0;
+        } catch(NumberFormatException e) {
+            Log.e(TAG, "Invalid " + key + " stored in database", e);
+            return 0;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
         }
-        return rowId;
     }
 
-    public long getOrInsertDocNumericID(String docId) {
-        long docNumericId = getDocNumericID(docId);
-        if(docNumericId == 0) {
-            docNumericId = insertDocumentID(docId);
-        }
-        return docNumericId;
+    /** EXPIRATION: **/
+
+    /**
+     * Sets the executor on which expired documents are purged in the background, as soon as they
+     * expire. Must be called before open(). Without one, expired documents stay until
+     * purgeExpiredDocuments() is called.
+     */
+    public void setExpirationExecutor(ScheduledExecutorService expirationExecutor) {
+        this.expirationExecutor = expirationExecutor;
     }
 
     /**
-     * Parses the _revisions dict from a document into an array of revision ID strings
+     * Sets the time at which a document expires, after which it's purged. Expiration times are kept
+     * with the document's numeric ID, not its revisions, so they last across updates; they go away
+     * when the document is purged.
+     *
+     * @param docId  The ID of an existing document.
+     * @param expiration  In milliseconds since the epoch (as System.currentTimeMillis()), or 0 to
+     *                    make the document not expire.
+     * @return  false if there's no such document, or on error.
      */
-    public static List<String> parseCouchDBRevisionHistory(Map<String,Object> docProperties) {
-        Map<String,Object> revisions = (Map<String,Object>)docProperties.get("_revisions");
-        if(revisions == null) {
-            return null;
+    public boolean setDocumentExpiration(String docId, long expiration) {
+        long docNumericID = getDocNumericID(docId);
+        if(docNumericID <= 0) {
+            return false;
         }
-        List<String> revIDs = (List<String>)revisions.get("ids");
-        Integer start = (Integer)revisions.get("start");
-        if(start != null) {
-            for(int i=0; i < revIDs.size(); i++) {
-                String revID = revIDs.get(i);
-                revIDs.set(i, Integer.toString(start--) + "-" + revID);
+        try {
+            if(expiration > 0) {
+                String[] args = { Long.toString(docNumericID), Long.toString(expiration) };
+                database.execSQL("INSERT OR REPLACE INTO expiry (doc_id, expires) VALUES (?, ?)", args);
             }
+            else {
+                String[] args = { Long.toString(docNumericID) };
+                database.execSQL("DELETE FROM expiry WHERE doc_id=?", args);
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error setting document expiration", e);
+            return false;
         }
-        return revIDs;
-    }
-
-    /** INSERTION: **/
-
-    public byte[] encodeDocumentJSON(TDRevision rev) {
-
-        Map<String,Object> origProps = rev.getProperties();
-        if(origProps == null) {
-            return null;
-        }
-
-        // Don't allow any "_"-prefixed keys. Known ones we'll ignore, unknown ones are an error.
-        Map<String,Object> properties = new HashMap<String,Object>(origProps.size());
-        for (String key : origProps.keySet()) {
-            if(key.startsWith("_")) {
-                if(!KNOWN_SPECIAL_KEYS.contains(key)) {
-                    Log.e(TAG, "TDDatabase: Invalid top-level key '" + key + "' in document to be inserted");
-                    return null;
-                }
-            } else {
-                properties.put(key, origProps.get(key));
+        synchronized(this) {
+            if(expirySweeper != null && expiration > 0) {
+                expirySweeper.schedule(expiration);
             }
         }
+        return true;
+    }
 
-        byte[] json = null;
+    /**
+     * The time at which a document expires, in milliseconds since the epoch, or 0 if it doesn't.
+     */
+    public long getDocumentExpiration(String docId) {
+        String[] args = { docId };
+        Cursor cursor = null;
         try {
-            json = TDServer.getObjectMapper().writeValueAsBytes(properties);
-        } catch (Exception e) {
-            Log.e(TDDatabase.TAG, "Error serializing " + rev + " to JSON", e);
+            cursor = getReadDatabase().rawQuery("SELECT expires FROM expiry, docs " +
+                    "WHERE expiry.doc_id = docs.doc_id AND docid=?", args);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting document expiration", e);
+            return 0;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
         }
-        return json;
     }
 
-    public void notifyChange(TDRevision rev, URL source) {
-        Map<String,Object> changeNotification = new HashMap<String, Object>();
-        changeNotification.put("rev", rev);
-        changeNotification.put("seq", rev.getSequence());
-        if(source != null) {
-            changeNotification.put("source", source);
+    /**
+     * The documents that expire next, soonest first, with their expiration times.
+     * @param limit  The maximum number of documents to return.
+     * @return  Maps document IDs to expiration times, in order, or null on error.
+     */
+    public Map<String,Long> getNextExpirations(int limit) {
+        String[] args = { Integer.toString(limit) };
+        Map<String,Long> result = new LinkedHashMap<String,Long>();
+        Cursor cursor = null;
+        try {
+            cursor = getReadDatabase().rawQuery("SELECT docid, expires FROM expiry, docs " +
+                    "WHERE expiry.doc_id = docs.doc_id ORDER BY expires LIMIT ?", args);
+            while(cursor.moveToNext()) {
+                result.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting next expirations", e);
+            return null;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
         }
-        setChanged();
-        notifyObservers(changeNotification);
+        return result;
     }
 
-    public long insertRevision(TDRevision rev, long docNumericID, long parentSequence, boolean current, byte[] data) {
-        long rowId = 0;
+    /**
+     * The earliest expiration time of any document, or 0 if none expires.
+     */
+    public long getNextExpiration() {
+        Cursor cursor = null;
         try {
-            ContentValues args = new ContentValues();
-            args.put("doc_id", docNumericID);
-            args.put("revid", rev.getRevId());
-            if(parentSequence != 0) {
-                args.put("parent", parentSequence);
+            cursor = getReadDatabase().rawQuery("SELECT MIN(expires) FROM expiry", null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error getting next expiration", e);
+            return 0;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
             }
-            args.put("current", current);
-            args.put("deleted", rev.isDeleted());
-            args.put("json", data);
-            rowId = database.insert("revs", null, args);
-            rev.setSequence(rowId);
-        } catch (Exception e) {
-            Log.e(TDDatabase.TAG, "Error inserting revision", e);
         }
-        return rowId;
-    }
-
-    private TDRevision putRevision(TDRevision rev, String prevRevId, TDStatus resultStatus) {
-        return putRevision(rev, prevRevId, false, resultStatus);
     }
 
     /**
-     * Stores a new (or initial) revision of a document.
-     *
-     * This is what's invoked by a PUT or POST. As with those, the previous revision ID must be supplied when necessary and the call will fail if it doesn't match.
+     * Purges documents whose expiration time has passed, soonest-expired first. Observers are notified
+     * of each one's current revision (as it was, with its own sequence) with "purged" set in the
+     * notification; since purges aren't replicated, pushers and _changes feeds ignore these.
      *
-     * @param rev The revision to add. If the docID is null, a new UUID will be assigned. Its revID must be null. It must have a JSON body.
-     * @param prevRevId The ID of the revision to replace (same as the "?rev=" parameter to a PUT), or null if this is a new document.
-     * @param allowConflict If false, an error status 409 will be returned if the insertion would create a conflict, i.e. if the previous revision already has a child.
-     * @param resultStatus On return, an HTTP status code indicating success or failure.
-     * @return A new TDRevision with the docID, revID and sequence filled in (but no body).
+     * @param maxDocs  The maximum number of documents to purge.
+     * @return  The number of documents purged, or -1 on error.
      */
-    @SuppressWarnings("unchecked")
-    public TDRevision putRevision(TDRevision rev, String prevRevId, boolean allowConflict, TDStatus resultStatus) {
-        // prevRevId is the rev ID being replaced, or nil if an insert
-        String docId = rev.getDocId();
-        boolean deleted = rev.isDeleted();
-        if((rev == null) || ((prevRevId != null) && (docId == null)) || (deleted && (docId == null))
-                || ((docId != null) && !isValidDocumentId(docId))) {
-            resultStatus.setCode(TDStatus.BAD_REQUEST);
-            return null;
-        }
-
-        resultStatus.setCode(TDStatus.INTERNAL_SERVER_ERROR);
-        beginTransaction();
+    public int purgeExpiredDocuments(int maxDocs) {
+        String[] args = { Long.toString(System.currentTimeMillis()), Integer.toString(maxDocs) };
+        List<TDRevision> purgedRevs = new ArrayList<TDRevision>();
+        Map<String,List<String>> docsToRevs = new HashMap<String,List<String>>();
+        boolean success = false;
         Cursor cursor = null;
-
-        //// PART I: In which are performed lookups and validations prior to the insert...
-
-        long docNumericID = (docId != null) ? getDocNumericID(docId) : 0;
-        long parentSequence = 0;
+        beginTransaction();
         try {
-            if(prevRevId != null) {
-                // Replacing: make sure given prevRevID is current & find its sequence number:
-                if(docNumericID <= 0) {
-                    resultStatus.setCode(TDStatus.NOT_FOUND);
-                    return null;
-                }
-
-                String[] args = {Long.toString(docNumericID), prevRevId};
-                String additionalWhereClause = "";
-                if(!allowConflict) {
-                    additionalWhereClause = "AND current=1";
-                }
-
-                cursor = database.rawQuery("SELECT sequence FROM revs WHERE doc_id=? AND revid=? " + additionalWhereClause + " LIMIT 1", args);
-
-                if(cursor.moveToFirst()) {
-                    parentSequence = cursor.getLong(0);
-                }
-
-                if(parentSequence == 0) {
-                    // Not found: either a 404 or a 409, depending on whether there is any current revision
-                    if(!allowConflict && existsDocumentWithIDAndRev(docId, null)) {
-                        resultStatus.setCode(TDStatus.CONFLICT);
-                        return null;
-                    }
-                    else {
-                        resultStatus.setCode(TDStatus.NOT_FOUND);
-                        return null;
-                    }
+            cursor = database.rawQuery("SELECT docid, winner.revid, winner.deleted, winner.sequence " +
+                    "FROM expiry JOIN docs ON expiry.doc_id = docs.doc_id " +
+                    "LEFT JOIN revs AS winner ON winner.sequence = (SELECT sequence FROM revs " +
+                    "WHERE revs.doc_id = expiry.doc_id AND current=1 ORDER BY revid DESC LIMIT 1) " +
+                    "WHERE expires <= ? ORDER BY expires LIMIT ?", args);
+            while(cursor.moveToNext()) {
+                String docId = cursor.getString(0);
+                docsToRevs.put(docId, Arrays.asList("*"));
+                if(!cursor.isNull(1)) {
+                    TDRevision rev = new TDRevision(docId, cursor.getString(1), cursor.getInt(2) > 0);
+                    rev.setSequence(cursor.getLong(3));
+                    purgedRevs.add(rev);
                 }
+            }
+            cursor.close();
+            cursor = null;
+            if(docsToRevs.isEmpty()) {
+                success = true;
+                return 0;
+            }
+            if(purgeRevisions(docsToRevs) == null) {
+                return -1;
+            }
+            success = true;
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error purging expired documents", e);
+            return -1;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+            endTransaction(success);
+        }
 
-                if(validations != null && validations.size() > 0) {
-                    // Fetch the previous revision and validate the new one against it:
-                    TDRevision prevRev = new TDRevision(docId, prevRevId, false);
-                    TDStatus status = validateRevision(rev, prevRev);
-                    if(!status.isSuccessful()) {
-                        resultStatus.setCode(status.getCode());
-                        return null;
-                    }
-                }
+        Log.v(TDDatabase.TAG, "Purged " + docsToRevs.size() + " expired documents");
+        for (TDRevision rev : purgedRevs) {
+            notifyChange(rev, null, true);
+        }
+        return docsToRevs.size();
+    }
 
-                // Make replaced rev non-current:
-                ContentValues updateContent = new ContentValues();
-                updateContent.put("current", 0);
-                database.update("revs", updateContent, "sequence=" + parentSequence, null);
+    /** BULK INSERTION: **/
+
+    /**
+     * Stores a batch of new revisions, as putRevision does for one, in a single transaction.
+     *
+     * The documents' numeric IDs and current revisions are looked up for the whole batch with a few
+     * set-based queries up front instead of separately for every document. Each revision is inserted
+     * in its own nested transaction, so a failure only backs out that one document; callers wanting
+     * all-or-nothing behavior should wrap the call in their own transaction.
+     *
+     * @param revs The revisions to add, as for putRevision.
+     * @param prevRevIds The ID of the revision each one replaces (null entries for new documents.)
+     * @param allowConflict If false, a document whose insertion would create a conflict gets status 409.
+     * @param outStatuses On return, contains an HTTP status for each revision, in order.
+     * @return The new revisions, in order, with null entries for the ones that failed.
+     */
+    public List<TDRevision> putRevisions(List<TDRevision> revs, List<String> prevRevIds, boolean allowConflict, List<TDStatus> outStatuses) {
+        List<TDRevision> results = new ArrayList<TDRevision>(revs.size());
+        List<TDStatus> statuses = new ArrayList<TDStatus>(revs.size());
+        List<String> docIds = new ArrayList<String>(revs.size());
+        for (TDRevision rev : revs) {
+            if(rev != null && rev.getDocId() != null) {
+                docIds.add(rev.getDocId());
             }
-            else {
-                // Inserting first revision.
-                if(deleted && (docId != null)) {
-                    // Didn't specify a revision to delete: 404 or a 409, depending
-                    if(existsDocumentWithIDAndRev(docId, null)) {
-                        resultStatus.setCode(TDStatus.CONFLICT);
-                        return null;
-                    }
-                    else {
-                        resultStatus.setCode(TDStatus.NOT_FOUND);
-                        return null;
+        }
+
+        boolean success = false;
+        if(beginTransaction()) {
+            try {
+                TDBulkLookup lookup = prefetchRevisions(docIds, true);
+                for(int i = 0; i < revs.size(); i++) {
+                    TDRevision rev = revs.get(i);
+                    TDStatus status = new TDStatus();
+                    TDRevision result = putRevisionWithoutNotifying(rev, prevRevIds.get(i), allowConflict, status, lookup);
+                    if(result != null && lookup != null) {
+                        lookup.invalidate(result.getDocId());
                     }
+                    results.add(result);
+                    statuses.add(status);
                 }
+                success = true;
+            } finally {
+                success = endTransaction(success) && success;
+            }
+        }
+        if(!success) {
+            // Nothing was committed, whatever the individual statuses said:
+            results.clear();
+            statuses.clear();
+            for(int i = 0; i < revs.size(); i++) {
+                results.add(null);
+                statuses.add(new TDStatus(TDStatus.INTERNAL_SERVER_ERROR));
+            }
+            outStatuses.addAll(statuses);
+            return results;
+        }
+        outStatuses.addAll(statuses);
 
-                // Validate:
-                TDStatus status = validateRevision(rev, null);
-                if(!status.isSuccessful()) {
-                    resultStatus.setCode(status.getCode());
-                    return null;
-                }
+        for (TDRevision result : results) {
+            if(result != null) {
+                notifyChange(result, null);
+            }
+        }
+        return results;
+    }
 
-                if(docId != null) {
-                    // Inserting first revision, with docID given (PUT):
-                    if(docNumericID <= 0) {
-                        // Doc doesn't exist at all; create it:
-                        docNumericID = insertDocumentID(docId);
-                        if(docNumericID <= 0) {
-                            return null;
-                        }
-                    } else {
-                        // Doc exists; check whether current winning revision is deleted:
-                        String[] args = { Long.toString(docNumericID) };
-                        cursor = database.rawQuery("SELECT sequence, deleted FROM revs WHERE doc_id=? and current=1 ORDER BY revid DESC LIMIT 1", args);
+    /**
+     * Inserts a batch of already-existing revisions, as forceInsert does for one, in a single transaction.
+     * Lookups are batched as in putRevisions, and each revision is again inserted in its own nested transaction.
+     *
+     * @param revs The revisions to insert; each must have a revision ID.
+     * @param revHistories The revision history of each revision, as for forceInsert.
+     * @return An HTTP status for each revision, in order.
+     */
+    public List<TDStatus> forceInsertRevisions(List<TDRevision> revs, List<List<String>> revHistories, URL source) {
+        List<TDStatus> statuses = new ArrayList<TDStatus>(revs.size());
+        List<String> docIds = new ArrayList<String>(revs.size());
+        for (TDRevision rev : revs) {
+            if(rev.getDocId() != null) {
+                docIds.add(rev.getDocId());
+            }
+        }
 
-                        if(cursor.moveToFirst()) {
-                            boolean wasAlreadyDeleted = (cursor.getInt(1) > 0);
-                            if(wasAlreadyDeleted) {
-                                // Make the deleted revision no longer current:
-                                ContentValues updateContent = new ContentValues();
-                                updateContent.put("current", 0);
-                                database.update("revs", updateContent, "sequence=" + cursor.getLong(0), null);
-                            }
-                            else if (!allowConflict) {
-                                // docId already exists, current not deleted, conflict
-                                resultStatus.setCode(TDStatus.CONFLICT);
-                                return null;
-                            }
-                        }
+        boolean success = false;
+        if(beginTransaction()) {
+            try {
+                TDBulkLookup lookup = prefetchRevisions(docIds, false);
+                for(int i = 0; i < revs.size(); i++) {
+                    TDRevision rev = revs.get(i);
+                    List<String> revHistory = revHistories.get(i);
+                    if(revHistory == null) {
+                        revHistory = new ArrayList<String>();
                     }
-                }
-                else {
-                    // Inserting first revision, with no docID given (POST): generate a unique docID:
-                    docId = TDDatabase.generateDocumentId();
-                    docNumericID = insertDocumentID(docId);
-                    if(docNumericID <= 0) {
-                        return null;
+                    TDStatus status = forceInsertWithoutNotifying(rev, revHistory, lookup);
+                    if(status.isSuccessful() && lookup != null) {
+                        lookup.invalidate(rev.getDocId());
                     }
+                    statuses.add(status);
                 }
+                success = true;
+            } finally {
+                success = endTransaction(success) && success;
+            }
+        }
+        if(!success) {
+            // Nothing was committed, whatever the individual statuses said:
+            statuses.clear();
+            for(int i = 0; i < revs.size(); i++) {
+                statuses.add(new TDStatus(TDStatus.INTERNAL_SERVER_ERROR));
             }
+            return statuses;
+        }
 
-            //// PART II: In which insertion occurs...
+        for(int i = 0; i < revs.size(); i++) {
+            if(statuses.get(i).isSuccessful()) {
+                notifyChange(revs.get(i), source);
+            }
+        }
+        return statuses;
+    }
 
-            // Bump the revID and update the JSON:
-            String newRevId = generateNextRevisionID(prevRevId);
-            byte[] data = null;
-            if(!rev.isDeleted()) {
-                data = encodeDocumentJSON(rev);
-                if(data == null) {
-                    // bad or missing json
-                    resultStatus.setCode(TDStatus.BAD_REQUEST);
-                    return null;
-                }
+    /**
+     * Document and revision metadata fetched ahead of time for a batch insert.
+     * Documents that aren't present in it are looked up in the database as usual.
+     */
+    private static class TDBulkLookup {
+        /** docid -> doc_id, with 0 for documents known not to exist */
+        final Map<String, Long> docNumericIDs = new HashMap<String, Long>();
+        /** doc_id -> the document's revisions (without bodies) */
+        final Map<Long, TDRevisionList> revisions = new HashMap<Long, TDRevisionList>();
+        /** If true, only the current revisions of each document were fetched */
+        final boolean onlyCurrent;
+
+        TDBulkLookup(boolean onlyCurrent) {
+            this.onlyCurrent = onlyCurrent;
+        }
+
+        /** Forgets what's known about a document, after it's been changed. */
+        void invalidate(String docId) {
+            Long docNumericID = docNumericIDs.remove(docId);
+            if(docNumericID != null) {
+                revisions.remove(docNumericID);
             }
+        }
+    }
 
-            rev = rev.copyWithDocID(docId, newRevId);
+    /** The most parameters SQLite allows in one statement (SQLITE_MAX_VARIABLE_NUMBER) */
+    static final int MAX_SQL_PARAMETERS = 999;
 
-            // Now insert the rev itself:
-            long newSequence = insertRevision(rev, docNumericID, parentSequence, true, data);
-            if(newSequence == 0) {
-                return null;
-            }
+    /** At most this many document IDs are bound to one statement, leaving room for the other parameters. */
+    private static final int MAX_DOC_IDS_PER_QUERY = MAX_SQL_PARAMETERS - 4;
 
-            // Store any attachments:
-            if(attachments != null) {
-                TDStatus status = processAttachmentsForRevision(rev, parentSequence);
-                if(!status.isSuccessful()) {
-                    resultStatus.setCode(status.getCode());
-                    return null;
+    /**
+     * Fetches the numeric IDs of the given documents, and their revisions, in a few queries.
+     * @return  the lookup, or null if the queries failed (callers then fall back to individual lookups.)
+     */
+    private TDBulkLookup prefetchRevisions(List<String> docIds, boolean onlyCurrent) {
+        TDBulkLookup lookup = new TDBulkLookup(onlyCurrent);
+        Map<Long, String> docIdsByNumericID = new HashMap<Long, String>();
+        Cursor cursor = null;
+        try {
+            for(int start = 0; start < docIds.size(); start += MAX_SQL_PARAMETERS) {
+                List<String> chunk = docIds.subList(start, Math.min(start + MAX_SQL_PARAMETERS, docIds.size()));
+                StringBuilder sql = new StringBuilder("SELECT docid, doc_id FROM docs WHERE docid IN (");
+                for(int i = 0; i < chunk.size(); i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                sql.append(")");
+                cursor = database.rawQuery(sql.toString(), chunk.toArray(new String[chunk.size()]));
+                while(cursor.moveToNext()) {
+                    lookup.docNumericIDs.put(cursor.getString(0), cursor.getLong(1));
+                    docIdsByNumericID.put(cursor.getLong(1), cursor.getString(0));
+                }
+                cursor.close();
+                cursor = null;
+                for (String docId : chunk) {
+                    if(!lookup.docNumericIDs.containsKey(docId)) {
+                        lookup.docNumericIDs.put(docId, 0L);
+                    }
                 }
             }
 
-            // Success!
-            if(deleted) {
-                resultStatus.setCode(TDStatus.OK);
+            List<Long> docNumericIDs = new ArrayList<Long>(docIdsByNumericID.keySet());
+            for (Long docNumericID : docNumericIDs) {
+                lookup.revisions.put(docNumericID, new TDRevisionList());
             }
-            else {
-                resultStatus.setCode(TDStatus.CREATED);
+            for(int start = 0; start < docNumericIDs.size(); start += MAX_SQL_PARAMETERS) {
+                List<Long> chunk = docNumericIDs.subList(start, Math.min(start + MAX_SQL_PARAMETERS, docNumericIDs.size()));
+                StringBuilder sql = new StringBuilder("SELECT doc_id, sequence, revid, deleted FROM revs WHERE doc_id IN (");
+                for(int i = 0; i < chunk.size(); i++) {
+                    if(i > 0) {
+                        sql.append(",");
+                    }
+                    sql.append(chunk.get(i));
+                }
+                sql.append(")");
+                if(onlyCurrent) {
+                    sql.append(" AND current=1");
+                }
+                sql.append(" ORDER BY sequence DESC");
+                cursor = database.rawQuery(sql.toString(), null);
+                while(cursor.moveToNext()) {
+                    long docNumericID = cursor.getLong(0);
+                    TDRevision rev = new TDRevision(docIdsByNumericID.get(docNumericID), cursor.getString(2), (cursor.getInt(3) > 0));
+                    rev.setSequence(cursor.getLong(1));
+                    lookup.revisions.get(docNumericID).add(rev);
+                }
+                cursor.close();
+                cursor = null;
             }
-
-        } catch (SQLException e1) {
-            Log.e(TDDatabase.TAG, "Error putting revision", e1);
+        } catch (SQLException e) {
+            Log.e(TDDatabase.TAG, "Error prefetching revisions for bulk insert", e);
             return null;
         } finally {
             if(cursor != null) {
                 cursor.close();
             }
-            endTransaction(resultStatus.isSuccessful());
         }
+        return lookup;
+    }
 
-        //// EPILOGUE: A change notification is sent...
-        notifyChange(rev, null);
-        return rev;
+    private long lookupDocNumericID(String docId, TDBulkLookup lookup) {
+        if(lookup != null) {
+            Long docNumericID = lookup.docNumericIDs.get(docId);
+            if(docNumericID != null) {
+                return docNumericID;
+            }
+        }
+        return getDocNumericID(docId);
     }
 
     /**
-     * Inserts an already-existing revision replicated from a remote database.
-     *
-     * It must already have a revision ID. This may create a conflict! The revision's history must be given; ancestor revision IDs that don't already exist locally will create phantom revisions with no content.
+     * Finds the sequence number of a document's revision, or 0 if there is no such revision.
      */
-    public TDStatus forceInsert(TDRevision rev, List<String> revHistory, URL source) {
-
-        String docId = rev.getDocId();
-        String revId = rev.getRevId();
-        if(!isValidDocumentId(docId) || (revId == null)) {
-            return new TDStatus(TDStatus.BAD_REQUEST);
+    private long lookupRevisionSequence(long docNumericID, String revId, boolean onlyCurrent, TDBulkLookup lookup) {
+        if(lookup != null) {
+            TDRevisionList revs = lookup.revisions.get(docNumericID);
+            if(revs != null) {
+                for (TDRevision rev : revs) {
+                    if(revId.equals(rev.getRevId())) {
+                        return rev.getSequence();
+                    }
+                }
+                if(onlyCurrent || !lookup.onlyCurrent) {
+                    return 0;
+                }
+            }
         }
 
-        int historyCount = revHistory.size();
-        if(historyCount == 0) {
-            revHistory = new ArrayList<String>();
-            revHistory.add(revId);
-            historyCount = 1;
-        } else if(!revHistory.get(0).equals(rev.getRevId())) {
-            return new TDStatus(TDStatus.BAD_REQUEST);
+        String additionalWhereClause = "";
+        if(onlyCurrent) {
+            additionalWhereClause = "AND current=1";
         }
-
-        boolean success = false;
-        beginTransaction();
+        long sequence = 0;
+        SQLiteStatement statement = acquireStatement("SELECT sequence FROM revs WHERE doc_id=? AND revid=? " + additionalWhereClause + " LIMIT 1");
         try {
-            // First look up all locally-known revisions of this document:
-            long docNumericID = getOrInsertDocNumericID(docId);
-            TDRevisionList localRevs = getAllRevisionsOfDocumentID(docId, docNumericID, false);
-            if(localRevs == null) {
-                return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
-            }
-
-            // Walk through the remote history in chronological order, matching each revision ID to
-            // a local revision. When the list diverges, start creating blank local revisions to fill
-            // in the local history:
-            long sequence = 0;
-            long localParentSequence = 0;
-            for(int i = revHistory.size() - 1; i >= 0; --i) {
-                revId = revHistory.get(i);
-                TDRevision localRev = localRevs.revWithDocIdAndRevId(docId, revId);
-                if(localRev != null) {
-                    // This revision is known locally. Remember its sequence as the parent of the next one:
-                    sequence = localRev.getSequence();
-                    assert(sequence > 0);
-                    localParentSequence = sequence;
-                }
-                else {
-                    // This revision isn't known, so add it:
-                    TDRevision newRev;
-                    byte[] data = null;
-                    boolean current = false;
-                    if(i == 0) {
-                        // Hey, this is the leaf revision we're inserting:
-                       newRev = rev;
-                       if(!rev.isDeleted()) {
-                           data = encodeDocumentJSON(rev);
-                           if(data == null) {
-                               return new TDStatus(TDStatus.BAD_REQUEST);
-                           }
-                       }
-                       current = true;
-                    }
-                    else {
-                        // It's an intermediate parent, so insert a stub:
-                        newRev = new TDRevision(docId, revId, false);
-                    }
-
-                    // Insert it:
-                    sequence = insertRevision(newRev, docNumericID, sequence, current, data);
-
-                    if(sequence <= 0) {
-                        return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
-                    }
+            statement.bindLong(1, docNumericID);
+            statement.bindString(2, revId);
+            sequence = statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            sequence = 0;
+        } finally {
+            releaseStatement(statement);
+        }
+        return sequence;
+    }
 
-                    if(i == 0) {
-                        // Write any changed attachments for the new revision:
-                        TDStatus status = processAttachmentsForRevision(rev, localParentSequence);
-                        if(!status.isSuccessful()) {
-                            return status;
-                        }
+    /**
+     * Returns a document's current winning revision (without a body), or null if it has none.
+     */
+    private TDRevision lookupWinningRevision(String docId, long docNumericID, TDBulkLookup lookup) {
+        if(lookup != null && lookup.onlyCurrent) {
+            TDRevisionList revs = lookup.revisions.get(docNumericID);
+            if(revs != null) {
+                TDRevision winner = null;
+                for (TDRevision rev : revs) {
+                    if(winner == null || rev.getRevId().compareTo(winner.getRevId()) > 0) {
+                        winner = rev;
                     }
                 }
+                return winner;
             }
+        }
 
-            // Mark the latest local rev as no longer current:
-            if(localParentSequence > 0 && localParentSequence != sequence) {
-                ContentValues args = new ContentValues();
-                args.put("current", 0);
-                String[] whereArgs = { Long.toString(localParentSequence) };
-                try {
-                    database.update("revs", args, "sequence=?", whereArgs);
-                } catch (SQLException e) {
-                    return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
-                }
+        TDRevision winner = null;
+        String[] args = { Long.toString(docNumericID) };
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("SELECT sequence, deleted, revid FROM revs WHERE doc_id=? and current=1 ORDER BY revid DESC LIMIT 1", args);
+            if(cursor.moveToFirst()) {
+                winner = new TDRevision(docId, cursor.getString(2), (cursor.getInt(1) > 0));
+                winner.setSequence(cursor.getLong(0));
             }
-
-            success = true;
-        } catch(SQLException e) {
-            endTransaction(success);
-            return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
         } finally {
-            endTransaction(success);
+            if(cursor != null) {
+                cursor.close();
+            }
         }
+        return winner;
+    }
 
-        // Notify and return:
-        notifyChange(rev, source);
-        return new TDStatus(TDStatus.CREATED);
+    private TDRevisionList lookupAllRevisions(String docId, long docNumericID, TDBulkLookup lookup) {
+        if(lookup != null && !lookup.onlyCurrent) {
+            TDRevisionList revs = lookup.revisions.get(docNumericID);
+            if(revs != null) {
+                return revs;
+            }
+        }
+        return getAllRevisionsOfDocumentID(docId, docNumericID, false);
     }
 
     /** VALIDATION **/
@@ -2311,41 +4986,40 @@ public class TDDatabase extends Observable {
         return result;
     }
 
+    /**
+     * Removes from the list the revisions that are already in the database.
+     */
     public boolean findMissingRevisions(TDRevisionList touchRevs) {
         if(touchRevs.size() == 0) {
             return true;
         }
 
-        String quotedDocIds = joinQuoted(touchRevs.getAllDocIds());
-        String quotedRevIds = joinQuoted(touchRevs.getAllRevIds());
-
-        String sql = "SELECT docid, revid FROM revs, docs " +
-                      "WHERE docid IN (" +
-                      quotedDocIds +
-                      ") AND revid in (" +
-                      quotedRevIds + ")" +
-                      " AND revs.doc_id == docs.doc_id";
-
-        Cursor cursor = null;
+        // Each revision is looked up by its exact (docid, revid) pair, which SQLite answers from the
+        // docs_docid and revs_by_id indexes; one compiled statement is reused for all of them.
+        List<TDRevision> missing = new ArrayList<TDRevision>(touchRevs.size());
+        SQLiteStatement statement = null;
+        beginRead();
         try {
-            cursor = database.rawQuery(sql, null);
-            cursor.moveToFirst();
-            while(!cursor.isAfterLast()) {
-                TDRevision rev = touchRevs.revWithDocIdAndRevId(cursor.getString(0), cursor.getString(1));
-
-                if(rev != null) {
-                    touchRevs.remove(rev);
+            statement = acquireReadStatement("SELECT count(*) FROM revs, docs " +
+                    "WHERE docs.docid=? AND revs.doc_id=docs.doc_id AND revs.revid=?");
+            for (TDRevision rev : touchRevs) {
+                statement.bindString(1, rev.getDocId());
+                statement.bindString(2, rev.getRevId());
+                if(statement.simpleQueryForLong() == 0) {
+                    missing.add(rev);
                 }
-
-                cursor.moveToNext();
             }
         } catch (SQLException e) {
             Log.e(TDDatabase.TAG, "Error finding missing revisions", e);
             return false;
         } finally {
-            if(cursor != null) {
-                cursor.close();
-            }
+            releaseStatement(statement);
+            endRead();
+        }
+
+        if(missing.size() < touchRevs.size()) {
+            touchRevs.clear();
+            touchRevs.addAll(missing);
         }
         return true;
     }
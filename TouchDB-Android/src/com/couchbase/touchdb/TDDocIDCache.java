@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import com.couchbase.touchdb.support.TDLRUCache;
+
+/**
+ * An in-memory cache of docid -> numeric doc_id mappings, bounded by the number of entries.
+ *
+ * A mapping stays valid until its docs row is deleted by a purge. A read that began before the
+ * purge can still find the old row, so mappings read from the database are added with
+ * putIfUnchanged(), which drops them if any document was forgotten since the read began.
+ */
+class TDDocIDCache extends TDLRUCache<String, Long> {
+
+    private long generation = 0;
+
+    public TDDocIDCache(int maxSize) {
+        super(maxSize);
+    }
+
+    /**
+     * Returns the current generation, to be passed to putIfUnchanged() after reading from the database.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Adds a mapping read from the database, unless a document was forgotten since the read began.
+     */
+    public synchronized void putIfUnchanged(String docId, long docNumericID, long readGeneration) {
+        if(readGeneration == generation) {
+            put(docId, docNumericID);
+        }
+    }
+
+    /**
+     * Discards a document's mapping, and any reads of mappings still in progress.
+     */
+    public synchronized void forget(String docId) {
+        ++generation;
+        remove(docId);
+    }
+
+    public synchronized void invalidateAll() {
+        ++generation;
+        clear();
+    }
+}
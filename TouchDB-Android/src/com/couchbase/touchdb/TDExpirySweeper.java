@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purges a database's expired documents in the background. It sleeps until the next expiration
+ * time, then purges in batches, with a pause after each so other work on the executor and the
+ * database gets a turn.
+ */
+class TDExpirySweeper {
+
+    static final int BATCH_SIZE = 100;
+    static final long BATCH_INTERVAL = 100;    // milliseconds
+    static final long RETRY_INTERVAL = 60000;  // milliseconds, after an error
+
+    private final TDDatabase db;
+    private final ScheduledExecutorService workExecutor;
+    private ScheduledFuture<?> scheduled;
+    private long scheduledTime;
+    private boolean stopped;
+
+    TDExpirySweeper(TDDatabase db, ScheduledExecutorService workExecutor) {
+        this.db = db;
+        this.workExecutor = workExecutor;
+    }
+
+    /**
+     * Makes sure the sweeper runs no later than the given time (in milliseconds since the epoch;
+     * 0 means there's nothing to do.)
+     */
+    synchronized void schedule(long time) {
+        if(stopped || time <= 0) {
+            return;
+        }
+        if(scheduled != null) {
+            if(scheduledTime <= time) {
+                return;
+            }
+            scheduled.cancel(false);
+        }
+        scheduledTime = time;
+        long delay = Math.max(0, time - System.currentTimeMillis());
+        scheduled = workExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if(scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    private void sweep() {
+        synchronized(this) {
+            scheduled = null;
+            if(stopped) {
+                return;
+            }
+        }
+        if(!db.beginBackgroundWork()) {
+            return;
+        }
+        long next;
+        try {
+            int purged = db.purgeExpiredDocuments(BATCH_SIZE);
+            long now = System.currentTimeMillis();
+            if(purged < 0) {
+                next = now + RETRY_INTERVAL;
+            }
+            else if(purged >= BATCH_SIZE) {
+                next = now + BATCH_INTERVAL;
+            }
+            else {
+                next = db.getNextExpiration();
+            }
+        } finally {
+            db.endBackgroundWork();
+        }
+        schedule(next);
+    }
+}
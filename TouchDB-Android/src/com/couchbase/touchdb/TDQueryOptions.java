@@ -27,6 +27,14 @@ import com.couchbase.touchdb.TDDatabase.TDContentOptions;
  */
 public class TDQueryOptions {
 
+    /**
+     * Whether the view's index is brought up to date before it's queried (like CouchDB's "stale"
+     * parameter): always, not at all (stale=ok), or only after the query (stale=update_after).
+     */
+    public enum TDStaleness {
+        TDStaleNever, TDStaleOK, TDStaleUpdateAfter
+    }
+
     private Object startKey = null;
     private Object endKey = null;
     private List<Object> keys = null;
@@ -40,6 +48,8 @@ public class TDQueryOptions {
     private boolean inclusiveEnd = true;
     private boolean reduce = false;
     private boolean group = false;
+    private boolean streamDocs = false;
+    private TDStaleness stale = TDStaleness.TDStaleNever;
 
     public Object getStartKey() {
         return startKey;
@@ -145,4 +155,23 @@ public class TDQueryOptions {
         this.keys = keys;
     }
 
+    /**
+     * If true, included docs are returned as TDStoredDocuments, which serialize their stored JSON
+     * without parsing it, instead of as Maps. For rows that are only going to be serialized.
+     */
+    public boolean isStreamDocs() {
+        return streamDocs;
+    }
+
+    public void setStreamDocs(boolean streamDocs) {
+        this.streamDocs = streamDocs;
+    }
+
+    public TDStaleness getStale() {
+        return stale;
+    }
+
+    public void setStale(TDStaleness stale) {
+        this.stale = stale;
+    }
 }
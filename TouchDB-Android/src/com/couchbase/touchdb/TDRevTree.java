@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact, immutable snapshot of a document's revision tree: one entry per row of the revs
+ * table, in sequence order, stored in parallel primitive arrays.
+ */
+class TDRevTree {
+
+    private final int count;
+    private final long[] sequences;
+    private final long[] parents;       // parent sequence, or 0
+    private final int[] generations;
+    private final String[] revIds;
+    private final boolean[] deleted;
+    private final boolean[] current;
+
+    TDRevTree(int count, long[] sequences, long[] parents, String[] revIds, boolean[] deleted, boolean[] current) {
+        this.count = count;
+        this.sequences = sequences;
+        this.parents = parents;
+        this.revIds = revIds;
+        this.deleted = deleted;
+        this.current = current;
+        this.generations = new int[count];
+        for(int i = 0; i < count; i++) {
+            generations[i] = TDDatabase.parseRevIDNumber(revIds[i]);
+        }
+    }
+
+    private TDRevTree(int count) {
+        this.count = count;
+        this.sequences = new long[count];
+        this.parents = new long[count];
+        this.generations = new int[count];
+        this.revIds = new String[count];
+        this.deleted = new boolean[count];
+        this.current = new boolean[count];
+    }
+
+    // Copies a tree into arrays with room for more entries (Arrays.copyOf needs API level 9)
+    private TDRevTree(TDRevTree tree, int count) {
+        this(count);
+        System.arraycopy(tree.sequences, 0, sequences, 0, tree.count);
+        System.arraycopy(tree.parents, 0, parents, 0, tree.count);
+        System.arraycopy(tree.generations, 0, generations, 0, tree.count);
+        System.arraycopy(tree.revIds, 0, revIds, 0, tree.count);
+        System.arraycopy(tree.deleted, 0, deleted, 0, tree.count);
+        System.arraycopy(tree.current, 0, current, 0, tree.count);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns a copy of the tree with a newly inserted revision added. Its parent stops being current.
+     */
+    TDRevTree withRevision(long sequence, long parent, String revId, boolean isDeleted, boolean isCurrent) {
+        TDRevTree result = new TDRevTree(this, count + 1);
+        // Sequences only ever increase, so the new revision goes at the end:
+        result.sequences[count] = sequence;
+        result.parents[count] = parent;
+        result.generations[count] = TDDatabase.parseRevIDNumber(revId);
+        result.revIds[count] = revId;
+        result.deleted[count] = isDeleted;
+        result.current[count] = isCurrent;
+        int parentIndex = result.indexOfSequence(parent);
+        if(parentIndex >= 0) {
+            result.current[parentIndex] = false;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the tree in which the given revision is no longer current.
+     */
+    TDRevTree withNoncurrent(long sequence) {
+        TDRevTree result = new TDRevTree(this, count);
+        int index = result.indexOfSequence(sequence);
+        if(index >= 0) {
+            result.current[index] = false;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the tree without the non-current revisions that aren't within revsLimit
+     * generations of any current revision, as TDDatabase prunes them.
+     */
+    TDRevTree withPruned(int revsLimit) {
+        boolean[] keep = new boolean[count];
+        int kept = 0;
+        for(int i = 0; i < count; i++) {
+            keep[i] = current[i] || isWithinLimitOfLeaf(generations[i], revsLimit);
+            if(keep[i]) {
+                ++kept;
+            }
+        }
+        TDRevTree result = new TDRevTree(kept);
+        int j = 0;
+        for(int i = 0; i < count; i++) {
+            if(keep[i]) {
+                result.sequences[j] = sequences[i];
+                result.parents[j] = parents[i];
+                result.generations[j] = generations[i];
+                result.revIds[j] = revIds[i];
+                result.deleted[j] = deleted[i];
+                result.current[j] = current[i];
+                ++j;
+            }
+        }
+        // Deleting a revision sets its children's parent to NULL:
+        for(j = 0; j < kept; j++) {
+            if(result.parents[j] != 0 && result.indexOfSequence(result.parents[j]) < 0) {
+                result.parents[j] = 0;
+            }
+        }
+        return result;
+    }
+
+    private boolean isWithinLimitOfLeaf(int generation, int revsLimit) {
+        for(int i = 0; i < count; i++) {
+            if(current[i] && generation > generations[i] - revsLimit && generation <= generations[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int indexOfSequence(long sequence) {
+        if(sequence <= 0) {
+            return -1;
+        }
+        // (Arrays.binarySearch over a range also needs API level 9)
+        int low = 0, high = count - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(sequences[mid] < sequence) {
+                low = mid + 1;
+            }
+            else if(sequences[mid] > sequence) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    int indexOfRevId(String revId) {
+        int generation = TDDatabase.parseRevIDNumber(revId);
+        for(int i = count - 1; i >= 0; i--) {
+            if(generations[i] == generation && revIds[i].equals(revId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The revision history starting with the given revision and following parent links,
+     * in reverse chronological order; empty if the revision isn't in the tree.
+     */
+    List<TDRevision> getHistory(String docId, String revId) {
+        List<TDRevision> result = new ArrayList<TDRevision>();
+        int index = indexOfRevId(revId);
+        while(index >= 0) {
+            TDRevision rev = new TDRevision(docId, revIds[index], deleted[index]);
+            rev.setSequence(sequences[index]);
+            result.add(rev);
+            index = indexOfSequence(parents[index]);
+        }
+        return result;
+    }
+
+    /**
+     * The current revision IDs, other than the one that sorts highest (the winner).
+     */
+    List<String> getConflictingRevIds() {
+        List<String> result = new ArrayList<String>();
+        for(int i = 0; i < count; i++) {
+            if(current[i]) {
+                result.add(revIds[i]);
+            }
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        if(result.size() > 0) {
+            result.remove(0);
+        }
+        return result;
+    }
+
+    /**
+     * The highest of the given revision IDs that is in the tree and sorts at or below maxRevId.
+     */
+    String findCommonAncestor(List<String> candidateRevIds, String maxRevId) {
+        String result = null;
+        for (String revId : candidateRevIds) {
+            if(revId.compareTo(maxRevId) <= 0 && (result == null || revId.compareTo(result) > 0)
+                    && indexOfRevId(revId) >= 0) {
+                result = revId;
+            }
+        }
+        return result;
+    }
+}
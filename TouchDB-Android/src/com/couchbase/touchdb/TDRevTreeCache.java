@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import com.couchbase.touchdb.support.TDLRUCache;
+
+/**
+ * An in-memory cache of documents' revision trees, keyed by document ID and bounded by the total
+ * number of revisions in them.
+ *
+ * Rather than being invalidated when a document changes, a cached tree is brought up to date with
+ * the changes once the transaction that made them commits.
+ */
+class TDRevTreeCache extends TDLRUCache<String, TDRevTree> {
+
+    /**
+     * A change made to a document's revision tree: an inserted revision, an existing revision that
+     * stopped being current, the pruning of old non-current revisions, or a purge.
+     */
+    static class Change {
+        static final int INSERTED = 0;
+        static final int NONCURRENT = 1;
+        static final int PRUNED = 2;
+        static final int PURGED = 3;
+
+        final int type;
+        final String docId;
+        final long sequence;
+        final long parent;
+        final String revId;
+        final boolean deleted;
+        final boolean current;
+
+        private Change(int type, String docId, long sequence, long parent, String revId, boolean deleted, boolean current) {
+            this.type = type;
+            this.docId = docId;
+            this.sequence = sequence;
+            this.parent = parent;
+            this.revId = revId;
+            this.deleted = deleted;
+            this.current = current;
+        }
+
+        static Change inserted(String docId, long sequence, long parent, String revId, boolean deleted, boolean current) {
+            return new Change(INSERTED, docId, sequence, parent, revId, deleted, current);
+        }
+
+        static Change noncurrent(String docId, long sequence) {
+            return new Change(NONCURRENT, docId, sequence, 0, null, false, false);
+        }
+
+        /** Non-current revisions more than revsLimit generations behind every current one were deleted. */
+        static Change pruned(String docId, int revsLimit) {
+            return new Change(PRUNED, docId, revsLimit, 0, null, false, false);
+        }
+
+        /** Revisions were purged; the cached tree is simply dropped. */
+        static Change purged(String docId) {
+            return new Change(PURGED, docId, 0, 0, null, false, false);
+        }
+    }
+
+    private long generation = 0;
+
+    public TDRevTreeCache(int maxRevisions) {
+        super(maxRevisions);
+    }
+
+    @Override
+    protected int sizeOf(String docId, TDRevTree tree) {
+        return 1 + tree.size();
+    }
+
+    /**
+     * Returns the current generation, to be passed to putIfUnchanged() after reading from the database.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Adds a tree read from the database, unless a tree was changed since the read began.
+     */
+    public synchronized void putIfUnchanged(String docId, TDRevTree tree, long readGeneration) {
+        if(readGeneration == generation) {
+            put(docId, tree);
+        }
+    }
+
+    /**
+     * Applies a committed change to the cached tree of its document, if there is one.
+     */
+    public synchronized void apply(Change change) {
+        ++generation;
+        TDRevTree tree = peek(change.docId);
+        if(tree == null) {
+            return;
+        }
+        if(change.type == Change.PURGED) {
+            remove(change.docId);
+            return;
+        }
+        switch(change.type) {
+            case Change.INSERTED:
+                // A reader may have cached the committed tree before the change was applied:
+                if(tree.indexOfSequence(change.sequence) >= 0) {
+                    return;
+                }
+                tree = tree.withRevision(change.sequence, change.parent, change.revId, change.deleted, change.current);
+                break;
+            case Change.NONCURRENT:
+                tree = tree.withNoncurrent(change.sequence);
+                break;
+            case Change.PRUNED:
+                tree = tree.withPruned((int)change.sequence);
+                break;
+        }
+        put(change.docId, tree);
+    }
+
+    public synchronized void invalidate(String docId) {
+        ++generation;
+        remove(docId);
+    }
+
+    public synchronized void invalidateAll() {
+        ++generation;
+        clear();
+    }
+}
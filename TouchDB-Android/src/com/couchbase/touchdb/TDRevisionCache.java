@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.couchbase.touchdb.support.TDLRUCache;
+
+/**
+ * An in-memory cache of recently read document revisions, keyed by document ID and bounded by
+ * the (approximate) number of bytes the cached bodies take up.
+ *
+ * Each entry holds the stored JSON of one revision and, once somebody has needed it, its parsed
+ * properties. A revision's body never changes, so an entry stays valid for its (docID, revID) until
+ * the document is modified (its winning revision may change) or the database is compacted.
+ */
+class TDRevisionCache extends TDLRUCache<String, TDRevisionCache.Entry> {
+
+    /** Rough per-entry bookkeeping cost, in bytes */
+    private static final int ENTRY_OVERHEAD = 100;
+
+    /** Parsed properties take up several times the size of their JSON */
+    private static final int PARSED_SIZE_FACTOR = 4;
+
+    static class Entry {
+        final String revId;
+        final long sequence;
+        final boolean deleted;
+        final boolean winner;
+        final byte[] json;
+        Map<String,Object> properties;
+
+        Entry(String revId, long sequence, boolean deleted, boolean winner, byte[] json) {
+            this.revId = revId;
+            this.sequence = sequence;
+            this.deleted = deleted;
+            this.winner = winner;
+            this.json = json;
+        }
+    }
+
+    private long generation = 0;
+
+    public TDRevisionCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    @Override
+    protected int sizeOf(String docId, Entry entry) {
+        int jsonSize = (entry.json != null) ? entry.json.length : 0;
+        if(entry.properties != null) {
+            jsonSize *= PARSED_SIZE_FACTOR;
+        }
+        return ENTRY_OVERHEAD + 2 * (docId.length() + entry.revId.length()) + jsonSize;
+    }
+
+    /**
+     * Returns the current generation, to be passed to putIfUnchanged() after reading from the database.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Adds an entry read from the database, unless a document was invalidated since the read began
+     * (in which case what was read may already be out of date.)
+     */
+    public synchronized void putIfUnchanged(String docId, Entry entry, long readGeneration) {
+        if(readGeneration == generation) {
+            put(docId, entry);
+        }
+    }
+
+    /**
+     * Looks up a specific revision of a document; if revId is null, looks up its winning revision.
+     */
+    public Entry getRevision(String docId, String revId) {
+        Entry entry = get(docId);
+        if(entry == null) {
+            return null;
+        }
+        if(revId == null ? !entry.winner : !revId.equals(entry.revId)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the parsed properties of an entry's JSON, re-adding it so its size is recalculated.
+     */
+    public synchronized void setProperties(String docId, Entry entry, Map<String,Object> properties) {
+        if(get(docId) == entry && entry.properties == null) {
+            remove(docId);
+            entry.properties = properties;
+            put(docId, entry);
+        }
+    }
+
+    /**
+     * Discards any cached revision of a document, and any reads of it still in progress.
+     */
+    public synchronized void invalidate(String docId) {
+        ++generation;
+        remove(docId);
+    }
+
+    public synchronized void invalidateAll() {
+        ++generation;
+        clear();
+    }
+
+    /**
+     * Returns a deep copy of parsed JSON, so callers can't modify the cached properties.
+     * Objects keep their key order, as they do when Jackson parses them.
+     */
+    @SuppressWarnings("unchecked")
+    static Object deepCopy(Object object) {
+        if(object instanceof Map) {
+            Map<String,Object> map = (Map<String,Object>)object;
+            Map<String,Object> copy = new LinkedHashMap<String,Object>(map.size());
+            for (Map.Entry<String,Object> entry : map.entrySet()) {
+                copy.put(entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return copy;
+        }
+        else if(object instanceof List) {
+            List<Object> list = (List<Object>)object;
+            List<Object> copy = new ArrayList<Object>(list.size());
+            for (Object item : list) {
+                copy.add(deepCopy(item));
+            }
+            return copy;
+        }
+        // Strings, numbers, booleans and null are immutable
+        return object;
+    }
+}
@@ -24,8 +24,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -38,10 +41,18 @@ import org.codehaus.jackson.map.ObjectMapper;
 
 import android.util.Log;
 
+import com.couchbase.touchdb.replicator.TDReplicator;
 import com.couchbase.touchdb.support.HttpClientFactory;
 
 /**
  * Manages a directory containing TDDatabases.
+ *
+ * Open databases can be limited in number, and closed after being idle for a while, to save the
+ * memory and file handles each one holds. A database that was closed that way is reopened the
+ * next time it's asked for with getDatabaseNamed(). Databases that were asked for in the last
+ * MIN_IDLE_TIME, that have been acquired (see TDDatabase.acquire(), which TDRouter does for each
+ * request) or that have running replications, a compaction in progress or change observers (like a
+ * continuous _changes feed) are never closed.
  */
 public class TDServer {
 
@@ -50,8 +61,19 @@ public class TDServer {
     public static final String LEGAL_CHARACTERS = "[^a-z]{1,}[^a-z0-9_$()/+-]*$";
     public static final String DATABASE_SUFFIX = ".touchdb";
 
+    /**
+     * A database isn't closed if it was asked for more recently than this, which leaves whoever asked
+     * for it time to acquire() it. It's also the shortest idle timeout.
+     */
+    public static final long MIN_IDLE_TIME = 5000;  // milliseconds
+
     private File directory;
-    private Map<String, TDDatabase> databases;
+    private Map<String, TDDatabase> databases;  // in least-recently-used order
+    private Map<String, Long> lastUsedTimes;
+    private Set<String> evictedDatabases;
+    private int maxOpenDatabases = 0;
+    private long idleDatabaseTimeout = 0;
+    private ScheduledFuture<?> idleCheck;
 
     private HttpClientFactory defaultHttpClientFactory;
 
@@ -63,7 +85,9 @@ public class TDServer {
 
     public TDServer(String directoryName) throws IOException {
         this.directory = new File(directoryName);
-        this.databases = new HashMap<String, TDDatabase>();
+        this.databases = new LinkedHashMap<String, TDDatabase>(16, 0.75f, true);
+        this.lastUsedTimes = new HashMap<String, Long>();
+        this.evictedDatabases = new HashSet<String>();
 
         //create the directory, but don't fail if it already exists
         if(!directory.exists()) {
@@ -85,9 +109,17 @@ public class TDServer {
         return result;
     }
 
-    public TDDatabase getDatabaseNamed(String name, boolean create) {
+    public synchronized TDDatabase getDatabaseNamed(String name, boolean create) {
         TDDatabase db = databases.get(name);
-        if(db == null) {
+        if(db != null) {
+            if(evictedDatabases.remove(name)) {
+                // Closed for being idle; reopen it as it was
+                if(!db.open()) {
+                    Log.w(TDDatabase.TAG, "Unable to reopen database " + name);
+                }
+            }
+        }
+        else {
             String path = pathForName(name);
             if(path == null) {
                 return null;
@@ -97,8 +129,13 @@ public class TDServer {
                 return null;
             }
             db.setName(name);
+            db.setExpirationExecutor(workExecutor);
             databases.put(name, db);
         }
+        lastUsedTimes.put(name, System.currentTimeMillis());
+        if(maxOpenDatabases > 0) {
+            closeDatabasesOverLimit(name);
+        }
         return db;
     }
 
@@ -114,13 +151,15 @@ public class TDServer {
         return db;
     }
 
-    public boolean deleteDatabaseNamed(String name) {
+    public synchronized boolean deleteDatabaseNamed(String name) {
         TDDatabase db = databases.get(name);
         if(db == null) {
             return false;
         }
         db.deleteDatabase();
         databases.remove(name);
+        lastUsedTimes.remove(name);
+        evictedDatabases.remove(name);
         return true;
     }
 
@@ -145,8 +184,132 @@ public class TDServer {
         return result;
     }
 
-    public Collection<TDDatabase> allOpenDatabases() {
-        return databases.values();
+    public synchronized Collection<TDDatabase> allOpenDatabases() {
+        List<TDDatabase> result = new ArrayList<TDDatabase>();
+        for (TDDatabase db : databases.values()) {
+            if(db.isOpen()) {
+                result.add(db);
+            }
+        }
+        return result;
+    }
+
+    /** IDLE DATABASES: **/
+
+    public synchronized int getMaxOpenDatabases() {
+        return maxOpenDatabases;
+    }
+
+    /**
+     * Sets how many databases may be open at once (0, the default, means any number.) When another
+     * one is asked for, the least recently used ones that can be closed are.
+     */
+    public synchronized void setMaxOpenDatabases(int maxOpenDatabases) {
+        this.maxOpenDatabases = Math.max(0, maxOpenDatabases);
+    }
+
+    public synchronized long getIdleDatabaseTimeout() {
+        return idleDatabaseTimeout;
+    }
+
+    /**
+     * Sets how long (in milliseconds) a database can go without being asked for before it's closed
+     * (0, the default, means never.) Shorter timeouts are raised to MIN_IDLE_TIME.
+     */
+    public synchronized void setIdleDatabaseTimeout(long idleDatabaseTimeout) {
+        this.idleDatabaseTimeout = (idleDatabaseTimeout > 0) ? Math.max(MIN_IDLE_TIME, idleDatabaseTimeout) : 0;
+        if(idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        if(this.idleDatabaseTimeout > 0) {
+            long period = Math.max(MIN_IDLE_TIME, this.idleDatabaseTimeout / 2);
+            idleCheck = workExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    closeIdleDatabases();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes the databases that haven't been asked for within the idle timeout.
+     * @return  The number of databases closed.
+     */
+    public synchronized int closeIdleDatabases() {
+        if(idleDatabaseTimeout <= 0) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - Math.max(MIN_IDLE_TIME, idleDatabaseTimeout);
+        int closed = 0;
+        for (TDDatabase db : new ArrayList<TDDatabase>(databases.values())) {
+            Long lastUsed = lastUsedTimes.get(db.getName());
+            if(lastUsed != null && lastUsed > cutoff) {
+                break;  // the rest were used more recently
+            }
+            if(closeIdleDatabase(db)) {
+                ++closed;
+            }
+        }
+        return closed;
+    }
+
+    // Closes the least recently used databases until at most maxOpenDatabases are open, counting
+    // the one about to be used.
+    private void closeDatabasesOverLimit(String keepName) {
+        int open = 0;
+        for (TDDatabase db : databases.values()) {
+            if(db.isOpen() || db.getName().equals(keepName)) {
+                ++open;
+            }
+        }
+        long cutoff = System.currentTimeMillis() - MIN_IDLE_TIME;
+        for (TDDatabase db : new ArrayList<TDDatabase>(databases.values())) {
+            if(open <= maxOpenDatabases) {
+                break;
+            }
+            Long lastUsed = lastUsedTimes.get(db.getName());
+            if(lastUsed != null && lastUsed > cutoff) {
+                break;  // everything left may still be in use
+            }
+            if(closeIdleDatabase(db)) {
+                --open;
+            }
+        }
+    }
+
+    private boolean closeIdleDatabase(TDDatabase db) {
+        if(!db.isOpen() || isPinned(db)) {
+            return false;
+        }
+        Log.v(TDDatabase.TAG, "Closing idle database " + db.getName());
+        if(!db.close()) {
+            return false;
+        }
+        evictedDatabases.add(db.getName());
+        return true;
+    }
+
+    /**
+     * Whether a database has to stay open: it's in use (by a request, or background work like
+     * indexing), has observers (a pusher, a continuous _changes feed, or app code waiting for
+     * changes), a running replication, or a compaction in progress.
+     */
+    private static boolean isPinned(TDDatabase db) {
+        if(db.isInUse() || db.hasExternalObservers()) {
+            return true;
+        }
+        List<TDReplicator> replicators = db.getActiveReplicators();
+        if(replicators != null) {
+            for (TDReplicator replicator : replicators) {
+                if(replicator.isRunning()) {
+                    return true;
+                }
+            }
+        }
+        TDCompactor compactor = db.getActiveCompactor();
+        return compactor != null && !compactor.isFinished();
     }
 
     public void close() {
@@ -154,10 +317,18 @@ public class TDServer {
 
 			@Override
 			public void run() {
-		        for (TDDatabase database : databases.values()) {
-		            database.close();
-		        }
-		        databases.clear();
+			    synchronized(TDServer.this) {
+			        if(idleCheck != null) {
+			            idleCheck.cancel(false);
+			            idleCheck = null;
+			        }
+			        for (TDDatabase database : databases.values()) {
+			            database.close();
+			        }
+			        databases.clear();
+			        lastUsedTimes.clear();
+			        evictedDatabases.clear();
+			    }
 			}
 		});
 
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializableWithType;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.TypeSerializer;
+
+import android.util.Log;
+
+import com.couchbase.touchdb.support.TDBinaryJSON;
+
+/**
+ * A document body as stored in the database, plus the special properties (_id, _rev, _attachments...)
+ * that go with it, which serializes itself without being parsed into a Map first.
+ *
+ * The special properties are written first. A JSON text body is then spliced in as-is, and a binary
+ * one is streamed straight into the generator. getProperties() parses the body for callers that do
+ * need the object form.
+ */
+public class TDStoredDocument implements JsonSerializableWithType {
+
+    private final byte[] body;
+    private final Map<String,Object> extra;
+
+    /**
+     * @param body  The stored body, uncompressed; JSON text or TDBinaryJSON. May be null.
+     * @param extra  The special properties to add to it.
+     */
+    public TDStoredDocument(byte[] body, Map<String,Object> extra) {
+        this.body = body;
+        this.extra = extra;
+    }
+
+    @Override
+    public void serialize(JsonGenerator generator, SerializerProvider provider) throws IOException {
+        generator.writeStartObject();
+        serializeFields(generator, provider);
+        generator.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator generator, SerializerProvider provider, TypeSerializer typeSerializer) throws IOException {
+        // The type serializer writes the braces, along with the type information:
+        typeSerializer.writeTypePrefixForObject(this, generator);
+        serializeFields(generator, provider);
+        typeSerializer.writeTypeSuffixForObject(this, generator);
+    }
+
+    private void serializeFields(JsonGenerator generator, SerializerProvider provider) throws IOException {
+        for (Map.Entry<String,Object> entry : extra.entrySet()) {
+            provider.defaultSerializeField(entry.getKey(), entry.getValue(), generator);
+        }
+        if(TDBinaryJSON.isBinary(body)) {
+            TDBinaryJSON.writeFieldsTo(body, generator);
+        }
+        else if(body != null) {
+            // Splice in the JSON between the braces, without parsing it:
+            int start = indexOf(body, (byte)'{', 0) + 1;
+            int end = lastIndexOf(body, (byte)'}');
+            if(start <= 0 || end < start) {
+                throw new IOException("Stored document body isn't a JSON object");
+            }
+            String fields = new String(body, start, end - start, "UTF-8").trim();
+            if(fields.length() > 0) {
+                // (Other fields, including any type information, need a comma after them)
+                boolean first = (generator.getOutputContext().getEntryCount() == 0);
+                generator.writeRaw(first ? fields : "," + fields);
+            }
+        }
+    }
+
+    /**
+     * The parsed properties, including the special ones, or null if the body can't be parsed.
+     */
+    public Map<String,Object> getProperties() {
+        if(body == null) {
+            return new HashMap<String,Object>(extra);
+        }
+        try {
+            Map<String,Object> properties = TDDatabase.parseDocumentBody(body);
+            properties.putAll(extra);
+            return properties;
+        } catch (IOException e) {
+            Log.e(TDDatabase.TAG, "Error parsing stored document body", e);
+            return null;
+        }
+    }
+
+    private static int indexOf(byte[] data, byte b, int start) {
+        for(int i = start; i < data.length; i++) {
+            if(data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, byte b) {
+        for(int i = data.length - 1; i >= 0; i--) {
+            if(data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
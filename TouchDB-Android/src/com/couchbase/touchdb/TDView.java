@@ -18,7 +18,6 @@
 package com.couchbase.touchdb;
 
 import java.util.ArrayList;
-import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -43,9 +42,11 @@ public class TDView {
     private TDDatabase db;
     private String name;
     private int viewId;
-    private TDViewMapBlock mapBlock;
-    private TDViewReduceBlock reduceBlock;
+    // Set on request threads, and read by others and by the background indexer:
+    private volatile TDViewMapBlock mapBlock;
+    private volatile TDViewReduceBlock reduceBlock;
     private TDViewCollation collation;
+    private int indexWorkers = 1;
     private static TDViewCompiler compiler;
 
     public TDView(TDDatabase db, String name) {
@@ -79,11 +80,35 @@ public class TDView {
         this.collation = collation;
     }
 
+    public int getIndexWorkers() {
+        return indexWorkers;
+    }
+
+    /**
+     * How many threads may run the map function at once when a lot of documents need indexing.
+     * The default is 1. The map block has to be thread-safe to use more.
+     */
+    public void setIndexWorkers(int indexWorkers) {
+        this.indexWorkers = Math.max(1, indexWorkers);
+    }
+
     /**
      * Is the view's index currently out of date?
      */
     public boolean isStale() {
-        return (getLastSequenceIndexed() < db.getLastSequence());
+        return (getLastSequenceIndexed() < db.getLastSequence()
+                || getLastPurgeSequenceIndexed() < db.getPurgeSequence());
+    }
+
+    /**
+     * How many sequences the view's index is behind the database (0 if it's up to date.)
+     */
+    public long getLag() {
+        long lastSequence = getLastSequenceIndexed();
+        if(lastSequence < 0) {
+            return -1;
+        }
+        return Math.max(0, db.getLastSequence() - lastSequence);
     }
 
     public int getViewId() {
@@ -116,7 +141,7 @@ public class TDView {
         Cursor cursor = null;
         long result = -1;
         try {
-            cursor = db.getDatabase().rawQuery(sql, args);
+            cursor = db.getReadDatabase().rawQuery(sql, args);
             if (cursor.moveToFirst()) {
                 result = cursor.getLong(0);
             }
@@ -130,13 +155,36 @@ public class TDView {
         return result;
     }
 
+    /**
+     * The database's purge sequence as of the last time the index was updated.
+     */
+    public long getLastPurgeSequenceIndexed() {
+        String sql = "SELECT purge_seq FROM views WHERE name=?";
+        String[] args = { name };
+        Cursor cursor = null;
+        long result = -1;
+        try {
+            cursor = db.getReadDatabase().rawQuery(sql, args);
+            if (cursor.moveToFirst()) {
+                result = cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            Log.e(TDDatabase.TAG, "Error getting last purge sequence indexed");
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
     public boolean setMapReduceBlocks(TDViewMapBlock mapBlock,
             TDViewReduceBlock reduceBlock, String version) {
         assert (mapBlock != null);
         assert (version != null);
 
-        this.mapBlock = mapBlock;
         this.reduceBlock = reduceBlock;
+        this.mapBlock = mapBlock;
 
         if(!db.open()) {
             return false;
@@ -221,6 +269,11 @@ public class TDView {
         viewId = 0;
     }
 
+    void databaseOpened(TDDatabase db) {
+        this.db = db;
+        viewId = -1;
+    }
+
     /*** Indexing ***/
 
     public String toJSONString(Object object) {
@@ -253,91 +306,131 @@ public class TDView {
      * Updates the view's index (incrementally) if necessary.
      * @return 200 if updated, 304 if already up-to-date, else an error code
      */
-    @SuppressWarnings("unchecked")
     public TDStatus updateIndex() {
-        Log.v(TDDatabase.TAG, "Re-indexing view " + name + " ...");
-        assert (mapBlock != null);
+        List<TDView> views = new ArrayList<TDView>(1);
+        views.add(this);
+        return updateIndexes(views);
+    }
 
-        if (getViewId() < 0) {
-            return new TDStatus(TDStatus.NOT_FOUND);
+    /**
+     * Updates the indexes of several views of one database, in a single pass over the revisions
+     * added since the least up-to-date of them was indexed. Each revision is parsed once and the
+     * same properties are given to each view's map block, so map blocks mustn't modify them.
+     * @return 200 if any index was updated, 304 if all were already up-to-date, else an error code
+     */
+    static TDStatus updateIndexes(List<TDView> views) {
+        return updateIndexes(views, 0);
+    }
+
+    /**
+     * Like updateIndexes(views), but if maxSequences is positive, only indexes that many
+     * sequences past the least up-to-date view, to keep the transaction short. The indexes are
+     * then consistent as of that sequence, and a later call picks up from there.
+     */
+    static TDStatus updateIndexes(List<TDView> views, long maxSequences) {
+        // Indexing can take a while; the server mustn't close the database for being idle meanwhile.
+        TDDatabase db = views.get(0).db;
+        db.acquire();
+        try {
+            return indexViews(views, maxSequences);
+        } finally {
+            db.release();
+        }
+    }
+
+    private static TDStatus indexViews(List<TDView> views, long maxSequences) {
+        TDDatabase db = views.get(0).db;
+        for (TDView view : views) {
+            Log.v(TDDatabase.TAG, "Re-indexing view " + view.name + " ...");
+            assert (view.mapBlock != null);
+            assert (view.db == db);
+            if (view.getViewId() < 0) {
+                return new TDStatus(TDStatus.NOT_FOUND);
+            }
         }
 
         db.beginTransaction();
         TDStatus result = new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
         Cursor cursor = null;
+        TDViewIndexer indexer = null;
+        List<TDView> staleViews = new ArrayList<TDView>(views.size());
 
         try {
 
-            long lastSequence = getLastSequenceIndexed();
             long dbMaxSequence = db.getLastSequence();
-            if(lastSequence == dbMaxSequence) {
-                result.setCode(TDStatus.NOT_MODIFIED);
-                return result;
+            long dbPurgeSequence = db.getPurgeSequence();
+            long purgeReindexSequence = db.getPurgeReindexSequence();
+            long minLastSequence = dbMaxSequence;
+            List<TDView> candidates = new ArrayList<TDView>(views.size());
+            List<Long> candidateLastSequences = new ArrayList<Long>(views.size());
+            List<Boolean> candidatePurgesIndexed = new ArrayList<Boolean>(views.size());
+
+            for (TDView view : views) {
+                long lastSequence = view.getLastSequenceIndexed();
+                long lastPurgeSequence = view.getLastPurgeSequenceIndexed();
+                if(lastSequence == dbMaxSequence && lastPurgeSequence == dbPurgeSequence) {
+                    continue;
+                }
+                if (lastSequence < 0) {
+                    return result;
+                }
+
+                // Purged revisions' map rows are already gone, but if a purge made an older revision of
+                // a document win, that revision was never indexed, so start over:
+                if (lastSequence > 0 && lastPurgeSequence < purgeReindexSequence) {
+                    lastSequence = 0;
+                }
+                candidates.add(view);
+                candidateLastSequences.add(lastSequence);
+                candidatePurgesIndexed.add(lastPurgeSequence == dbPurgeSequence);
+                minLastSequence = Math.min(minLastSequence, lastSequence);
             }
 
-            // First remove obsolete emitted results from the 'maps' table:
-            long sequence = lastSequence;
-            if (lastSequence < 0) {
-                return result;
+            // How far this pass goes:
+            if (maxSequences > 0 && minLastSequence + maxSequences < dbMaxSequence) {
+                dbMaxSequence = minLastSequence + maxSequences;
             }
 
-            if (lastSequence == 0) {
-                // If the lastSequence has been reset to 0, make sure to remove
-                // any leftover rows:
-                String[] whereArgs = { Integer.toString(getViewId()) };
-                db.getDatabase().delete("maps", "view_id=?", whereArgs);
-            } else {
-                // Delete all obsolete map results (ones from since-replaced
-                // revisions):
-                String[] args = { Integer.toString(getViewId()),
-                        Long.toString(lastSequence),
-                        Long.toString(lastSequence) };
-                db.getDatabase().execSQL(
-                        "DELETE FROM maps WHERE view_id=? AND sequence IN ("
-                                + "SELECT parent FROM revs WHERE sequence>? "
-                                + "AND parent>0 AND parent<=?)", args);
-            }
-
-            int deleted = 0;
-            cursor = db.getDatabase().rawQuery("SELECT changes()", null);
-            cursor.moveToFirst();
-            deleted = cursor.getInt(0);
-            cursor.close();
-
-            // This is the emit() block, which gets called from within the
-            // user-defined map() block
-            // that's called down below.
-            AbstractTouchMapEmitBlock emitBlock = new AbstractTouchMapEmitBlock() {
-
-                @Override
-                public void emit(Object key, Object value) {
-
-                    try {
-                        String keyJson = TDServer.getObjectMapper().writeValueAsString(key);
-                        String valueJson = TDServer.getObjectMapper().writeValueAsString(value);
-                        Log.v(TDDatabase.TAG, "    emit(" + keyJson + ", "
-                                + valueJson + ")");
-
-                        ContentValues insertValues = new ContentValues();
-                        insertValues.put("view_id", getViewId());
-                        insertValues.put("sequence", sequence);
-                        insertValues.put("key", keyJson);
-                        insertValues.put("value", valueJson);
-                        db.getDatabase().insert("maps", null, insertValues);
-                    } catch (Exception e) {
-                        Log.e(TDDatabase.TAG, "Error emitting", e);
-                        // find a better way to propogate this back
-                    }
+            int workers = Integer.MAX_VALUE;
+            List<Long> lastSequences = new ArrayList<Long>(views.size());
+            List<Integer> deletedCounts = new ArrayList<Integer>(views.size());
+            for (int i = 0; i < candidates.size(); i++) {
+                TDView view = candidates.get(i);
+                long lastSequence = candidateLastSequences.get(i);
+                if (lastSequence > dbMaxSequence
+                        || (lastSequence == dbMaxSequence && candidatePurgesIndexed.get(i))) {
+                    continue;  // already past this pass's end; a later one will get to it
                 }
-            };
 
-            // Now scan every revision added since the last time the view was
+                // First remove obsolete emitted results from the 'maps' table:
+                deletedCounts.add(view.deleteObsoleteRows(lastSequence, dbMaxSequence));
+                staleViews.add(view);
+                lastSequences.add(lastSequence);
+                // Every map block has to be safe to call on that many threads:
+                workers = Math.min(workers, view.indexWorkers);
+            }
+
+            if (staleViews.isEmpty()) {
+                result.setCode(TDStatus.NOT_MODIFIED);
+                return result;
+            }
+
+            if (dbMaxSequence - minLastSequence < TDViewIndexer.MIN_PARALLEL_SEQUENCES) {
+                workers = 1;
+            }
+            indexer = new TDViewIndexer(db, workers);
+            for (int i = 0; i < staleViews.size(); i++) {
+                TDView view = staleViews.get(i);
+                indexer.addView(view.getViewId(), view.mapBlock, lastSequences.get(i));
+            }
+
+            // Now scan every revision added since the last time the least up-to-date view was
             // indexed:
-            String[] selectArgs = { Long.toString(lastSequence) };
+            String[] selectArgs = { Long.toString(minLastSequence), Long.toString(dbMaxSequence) };
 
             cursor = db.getDatabase().rawQuery(
                     "SELECT revs.doc_id, sequence, docid, revid, json FROM revs, docs "
-                            + "WHERE sequence>? AND current!=0 AND deleted=0 "
+                            + "WHERE sequence>? AND sequence<=? AND current!=0 AND deleted=0 "
                             + "AND revs.doc_id = docs.doc_id "
                             + "ORDER BY revs.doc_id, revid DESC", selectArgs);
 
@@ -353,8 +446,8 @@ public class TDView {
                     // of a conflict.
                     lastDocID = docID;
 
-                    // Reconstitute the document as a dictionary:
-                    sequence = cursor.getLong(1);
+                    // Reconstitute the document as a dictionary, and map it:
+                    long sequence = cursor.getLong(1);
                     String docId = cursor.getString(2);
                     if(docId.startsWith("_design/")) {  // design docs don't get indexed!
                         cursor.moveToNext();
@@ -362,37 +455,28 @@ public class TDView {
                     }
                     String revId = cursor.getString(3);
                     byte[] json = cursor.getBlob(4);
-                    Map<String, Object> properties = db
-                            .documentPropertiesFromJSON(json, docId, revId,
-                                    sequence, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
-
-                    if (properties != null) {
-                        // Call the user-defined map() to emit new key/value
-                        // pairs from this revision:
-                        Log.v(TDDatabase.TAG,
-                                "  call map for sequence="
-                                        + Long.toString(sequence));
-                        emitBlock.setSequence(sequence);
-                        mapBlock.map(properties, emitBlock);
-                    }
-
+                    indexer.add(sequence, docId, revId, json);
                 }
 
                 cursor.moveToNext();
             }
+            indexer.finish();
 
             // Finally, record the last revision sequence number that was
             // indexed:
-            ContentValues updateValues = new ContentValues();
-            updateValues.put("lastSequence", dbMaxSequence);
-            String[] whereArgs = { Integer.toString(getViewId()) };
-            db.getDatabase().update("views", updateValues, "view_id=?",
-                    whereArgs);
-
-            // FIXME actually count number added :)
-            Log.v(TDDatabase.TAG, "...Finished re-indexing view " + name
-                    + " up to sequence " + Long.toString(dbMaxSequence)
-                    + " (deleted " + deleted + " added " + "?" + ")");
+            for (int i = 0; i < staleViews.size(); i++) {
+                TDView view = staleViews.get(i);
+                ContentValues updateValues = new ContentValues();
+                updateValues.put("lastSequence", dbMaxSequence);
+                updateValues.put("purge_seq", dbPurgeSequence);
+                String[] whereArgs = { Integer.toString(view.getViewId()) };
+                db.getDatabase().update("views", updateValues, "view_id=?",
+                        whereArgs);
+
+                Log.v(TDDatabase.TAG, "...Finished re-indexing view " + view.name
+                        + " up to sequence " + Long.toString(dbMaxSequence)
+                        + " (deleted " + deletedCounts.get(i) + " added " + indexer.getRowsAdded(i) + ")");
+            }
             result.setCode(TDStatus.OK);
 
         } catch (SQLException e) {
@@ -401,8 +485,11 @@ public class TDView {
             if (cursor != null) {
                 cursor.close();
             }
+            if (indexer != null) {
+                indexer.close();
+            }
             if (!result.isSuccessful()) {
-                Log.w(TDDatabase.TAG, "Failed to rebuild view " + name + ": "
+                Log.w(TDDatabase.TAG, "Failed to rebuild views " + staleViews + ": "
                         + result.getCode());
             }
             if(db != null) {
@@ -413,6 +500,44 @@ public class TDView {
         return result;
     }
 
+    // Deletes the rows emitted by revisions that were replaced after lastSequence, up to
+    // toSequence (or all of them if lastSequence is 0), and returns how many there were.
+    private int deleteObsoleteRows(long lastSequence, long toSequence) {
+        if (lastSequence == 0) {
+            // If the lastSequence has been reset to 0, make sure to remove
+            // any leftover rows:
+            String[] whereArgs = { Integer.toString(getViewId()) };
+            db.getDatabase().delete("maps", "view_id=?", whereArgs);
+        } else {
+            // Delete all obsolete map results (ones from since-replaced
+            // revisions):
+            String[] args = { Integer.toString(getViewId()),
+                    Long.toString(lastSequence),
+                    Long.toString(toSequence),
+                    Long.toString(lastSequence) };
+            db.getDatabase().execSQL(
+                    "DELETE FROM maps WHERE view_id=? AND sequence IN ("
+                            + "SELECT parent FROM revs WHERE sequence>? AND sequence<=? "
+                            + "AND parent>0 AND parent<=?)", args);
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = db.getDatabase().rawQuery("SELECT changes()", null);
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
     public Cursor resultSetWithOptions(TDQueryOptions options, TDStatus status) {
         if (options == null) {
             options = new TDQueryOptions();
@@ -493,7 +618,7 @@ public class TDView {
 
         Log.v(TDDatabase.TAG, "Query " + name + ": " + sql);
 
-        Cursor cursor = db.getDatabase().rawQuery(sql,
+        Cursor cursor = db.getReadDatabase().rawQuery(sql,
                 argsList.toArray(new String[argsList.size()]));
         return cursor;
     }
@@ -580,6 +705,8 @@ public class TDView {
 
         Cursor cursor = null;
         List<Map<String, Object>> rows = new ArrayList<Map<String,Object>>();
+        // In WAL mode this runs on a read-only connection, against a snapshot of the index:
+        db.beginRead();
         try {
             cursor = resultSetWithOptions(options, status);
             int groupLevel = options.getGroupLevel();
@@ -626,9 +753,9 @@ public class TDView {
                 	// Regular query:
                 	Map<String,Object> row = new HashMap<String,Object>();
                     String docId = cursor.getString(2);
-                    Map<String,Object> docContents = null;
+                    Object docContents = null;
                     if(options.isIncludeDocs()) {
-                        docContents = db.documentPropertiesFromJSON(cursor.getBlob(4), docId, cursor.getString(3), cursor.getLong(5), options.getContentOptions());
+                        docContents = db.includedDocumentFromJSON(cursor.getBlob(4), docId, cursor.getString(3), cursor.getLong(5), options);
 
 
                     }
@@ -675,6 +802,7 @@ public class TDView {
             if (cursor != null) {
                 cursor.close();
             }
+            db.endRead();
         }
 
         return rows;
@@ -705,13 +833,3 @@ public class TDView {
     }
 
 }
-
-abstract class AbstractTouchMapEmitBlock implements TDViewMapEmitBlock {
-
-    protected long sequence = 0;
-
-    void setSequence(long sequence) {
-        this.sequence = sequence;
-    }
-
-}
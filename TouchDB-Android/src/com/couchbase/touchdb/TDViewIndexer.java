@@ -0,0 +1,405 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.touchdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Runs views' map functions over the revisions TDView.updateIndexes() reads, and adds the
+ * emitted rows to their indexes.
+ *
+ * Each revision is parsed once, and the same properties are given to the map function of every
+ * view that hasn't indexed it yet. With one worker everything happens on the calling thread.
+ * With more, the map calls, and the JSON parsing and serializing around them, run on a pool of
+ * threads (shared by all indexers, and as big as the most workers any of them has asked for)
+ * while the calling thread keeps reading revisions and writing rows. The rows are
+ * written in the order the revisions were read, so the indexes come out exactly the same either
+ * way. Reading and writing stay on the calling thread because it holds the database's
+ * transaction.
+ *
+ * Emitted rows are collected in a RowBuffer per view and inserted a batch at a time with one
+ * compiled statement.
+ */
+class TDViewIndexer {
+
+    /** Fewer new sequences than this aren't worth starting threads for. */
+    static final int MIN_PARALLEL_SEQUENCES = 100;
+
+    /** How many revisions may be queued up per worker before the writer waits for one. */
+    private static final int QUEUE_LENGTH_PER_WORKER = 4;
+
+    /** How many emitted rows are collected before they're inserted. */
+    static final int INSERT_BATCH_SIZE = 256;
+
+    private static final String INSERT_SQL = "INSERT INTO maps (view_id, sequence, key, value) VALUES (?, ?, ?, ?)";
+
+    /** A view being indexed. */
+    private static class Target {
+        final int viewId;
+        final TDViewMapBlock mapBlock;
+        final long lastSequence;
+        final RowBuffer rows = new RowBuffer(INSERT_BATCH_SIZE);
+        int rowsAdded;
+
+        Target(int viewId, TDViewMapBlock mapBlock, long lastSequence) {
+            this.viewId = viewId;
+            this.mapBlock = mapBlock;
+            this.lastSequence = lastSequence;
+        }
+    }
+
+    private static ThreadPoolExecutor sharedExecutor;
+
+    private final TDDatabase db;
+    private final int workers;
+    private final List<Target> targets = new ArrayList<Target>();
+    private ExecutorService executor;
+    private final LinkedList<Future<RowBuffer[]>> pending = new LinkedList<Future<RowBuffer[]>>();
+    private final boolean logEmits = Log.isLoggable(TDDatabase.TAG, Log.VERBOSE);
+
+    TDViewIndexer(TDDatabase db, int workers) {
+        this.db = db;
+        this.workers = Math.max(1, workers);
+        if(this.workers > 1) {
+            executor = getSharedExecutor(this.workers);
+        }
+    }
+
+    // Creates the shared pool, or grows it to the given number of threads.
+    private static synchronized ExecutorService getSharedExecutor(int threads) {
+        if(sharedExecutor == null) {
+            sharedExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "TDViewIndexer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        else if(sharedExecutor.getMaximumPoolSize() < threads) {
+            sharedExecutor.setMaximumPoolSize(threads);
+            sharedExecutor.setCorePoolSize(threads);
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Adds a view to index; it'll get the revisions with sequences after lastSequence.
+     * @return  The view's index, for getRowsAdded().
+     */
+    int addView(int viewId, TDViewMapBlock mapBlock, long lastSequence) {
+        targets.add(new Target(viewId, mapBlock, lastSequence));
+        return targets.size() - 1;
+    }
+
+    /**
+     * Maps a revision, or queues it to be mapped. Its rows are added to the indexes before those
+     * of any revision added after it.
+     */
+    void add(long sequence, String docId, String revId, byte[] json) {
+        boolean needed = false;
+        for (Target target : targets) {
+            needed |= (sequence > target.lastSequence);
+        }
+        if(!needed) {
+            return;
+        }
+
+        if(executor == null) {
+            mapSerially(sequence, docId, revId, json);
+            return;
+        }
+
+        // The special properties come from the database, so they have to be looked up here:
+        TDRevision rev = new TDRevision(docId, revId, false);
+        rev.setSequence(sequence);
+        Map<String,Object> extra = db.extraPropertiesForRevision(rev, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+        pending.add(executor.submit(new MapTask(sequence, json, extra)));
+        while(pending.size() >= workers * QUEUE_LENGTH_PER_WORKER) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Waits for the queued revisions to be mapped and adds their rows.
+     */
+    void finish() {
+        while(!pending.isEmpty()) {
+            writeNext();
+        }
+        for (Target target : targets) {
+            flush(target);
+        }
+    }
+
+    /** The number of rows added to a view's index. */
+    int getRowsAdded(int view) {
+        return targets.get(view).rowsAdded;
+    }
+
+    /**
+     * Cancels the revisions still queued to be mapped. Must be called when done, whether or not
+     * finish() was.
+     */
+    void close() {
+        if(executor != null) {
+            for (Future<RowBuffer[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            executor = null;
+        }
+    }
+
+    private void mapSerially(long sequence, String docId, String revId, byte[] json) {
+        Map<String, Object> properties = db.documentPropertiesFromJSON(json, docId, revId,
+                sequence, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+        if(properties == null) {
+            return;
+        }
+        for (final Target target : targets) {
+            if(sequence <= target.lastSequence) {
+                continue;
+            }
+            if(logEmits) {
+                Log.v(TDDatabase.TAG, "  call map for sequence=" + Long.toString(sequence));
+            }
+            target.mapBlock.map(properties, new RowEmitter(target.rows, sequence) {
+                @Override
+                void rowAdded() {
+                    if(target.rows.size() >= INSERT_BATCH_SIZE) {
+                        flush(target);
+                    }
+                }
+            });
+        }
+    }
+
+    private void writeNext() {
+        RowBuffer[] results = null;
+        try {
+            results = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while indexing");
+        } catch (ExecutionException e) {
+            // Fail the same way the map block would have on this thread:
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            Target target = targets.get(i);
+            if(results[i] != null) {
+                target.rows.addAll(results[i]);
+                if(target.rows.size() >= INSERT_BATCH_SIZE) {
+                    flush(target);
+                }
+            }
+        }
+    }
+
+    // Inserts a view's buffered rows.
+    private void flush(Target target) {
+        RowBuffer rows = target.rows;
+        if(rows.size() == 0) {
+            return;
+        }
+        SQLiteStatement statement = db.acquireStatement(INSERT_SQL);
+        try {
+            statement.bindLong(1, target.viewId);
+            for(int i = 0; i < rows.size(); i++) {
+                statement.bindLong(2, rows.sequences[i]);
+                statement.bindString(3, rows.keys[i]);
+                statement.bindString(4, rows.values[i]);
+                statement.executeInsert();
+            }
+        } finally {
+            db.releaseStatement(statement);
+        }
+        target.rowsAdded += rows.size();
+        rows.clear();
+    }
+
+    /**
+     * Emitted rows, as JSON, in parallel arrays.
+     */
+    static class RowBuffer {
+        private long[] sequences;
+        private String[] keys;
+        private String[] values;
+        private int size;
+
+        RowBuffer(int capacity) {
+            sequences = new long[capacity];
+            keys = new String[capacity];
+            values = new String[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(long sequence, String key, String value) {
+            ensureCapacity(size + 1);
+            sequences[size] = sequence;
+            keys[size] = key;
+            values[size] = value;
+            ++size;
+        }
+
+        void addAll(RowBuffer other) {
+            ensureCapacity(size + other.size);
+            System.arraycopy(other.sequences, 0, sequences, size, other.size);
+            System.arraycopy(other.keys, 0, keys, size, other.size);
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        void clear() {
+            // Drop the strings, but keep the arrays for the next batch
+            for(int i = 0; i < size; i++) {
+                keys[i] = null;
+                values[i] = null;
+            }
+            size = 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if(capacity <= sequences.length) {
+                return;
+            }
+            int newCapacity = Math.max(capacity, sequences.length * 2);
+            long[] newSequences = new long[newCapacity];
+            System.arraycopy(sequences, 0, newSequences, 0, size);
+            sequences = newSequences;
+            String[] newKeys = new String[newCapacity];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            keys = newKeys;
+            String[] newValues = new String[newCapacity];
+            System.arraycopy(values, 0, newValues, 0, size);
+            values = newValues;
+        }
+    }
+
+    /**
+     * The emit() block passed to the map function: serializes each key and value and adds them
+     * to a RowBuffer.
+     */
+    private class RowEmitter extends AbstractTouchMapEmitBlock {
+        private final RowBuffer buffer;
+
+        RowEmitter(RowBuffer buffer, long sequence) {
+            this.buffer = buffer;
+            setSequence(sequence);
+        }
+
+        @Override
+        public void emit(Object key, Object value) {
+            try {
+                String keyJson = toJSON(key);
+                String valueJson = toJSON(value);
+                if(logEmits) {
+                    Log.v(TDDatabase.TAG, "    emit(" + keyJson + ", " + valueJson + ")");
+                }
+                buffer.add(sequence, keyJson, valueJson);
+            } catch (Exception e) {
+                Log.e(TDDatabase.TAG, "Error emitting", e);
+                // find a better way to propogate this back
+                return;
+            }
+            rowAdded();
+        }
+
+        void rowAdded() {
+        }
+    }
+
+    // Serializes an emitted key or value, skipping the ObjectMapper for the simplest ones.
+    static String toJSON(Object object) throws IOException {
+        if(object == null) {
+            return "null";
+        }
+        if(object instanceof Boolean || object instanceof Integer || object instanceof Long) {
+            return object.toString();
+        }
+        return TDServer.getObjectMapper().writeValueAsString(object);
+    }
+
+    /** Parses and maps one revision on a worker thread; doesn't touch the database. */
+    private class MapTask implements Callable<RowBuffer[]> {
+        private final long sequence;
+        private final byte[] json;
+        private final Map<String,Object> extra;
+
+        MapTask(long sequence, byte[] json, Map<String,Object> extra) {
+            this.sequence = sequence;
+            this.json = json;
+            this.extra = extra;
+        }
+
+        // Returns the rows emitted for each view, or null for the ones that already have them.
+        @Override
+        public RowBuffer[] call() {
+            RowBuffer[] results = new RowBuffer[targets.size()];
+            Map<String,Object> properties = extra;
+            if(json != null) {
+                try {
+                    properties = TDDatabase.parseDocumentBody(json);
+                    properties.putAll(extra);
+                } catch (Exception e) {
+                    Log.e(TDDatabase.TAG, "Error parsing JSON of sequence " + Long.toString(sequence), e);
+                    return results;
+                }
+            }
+            for (int i = 0; i < results.length; i++) {
+                Target target = targets.get(i);
+                if(sequence <= target.lastSequence) {
+                    continue;
+                }
+                if(logEmits) {
+                    Log.v(TDDatabase.TAG, "  call map for sequence=" + Long.toString(sequence));
+                }
+                results[i] = new RowBuffer(4);
+                target.mapBlock.map(properties, new RowEmitter(results[i], sequence));
+            }
+            return results;
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.apache.http.client.HttpResponseException;
 
 import android.util.Log;
 
+import com.couchbase.touchdb.TDChangesIterator;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDFilterBlock;
 import com.couchbase.touchdb.TDRevision;
@@ -95,9 +96,17 @@ public class TDPusher extends TDReplicator implements Observer {
         if(lastSequence != null) {
             lastSequenceLong = Long.parseLong(lastSequence);
         }
-        TDRevisionList changes = db.changesSince(lastSequenceLong, null, filter);
-        if(changes.size() > 0) {
-            processInbox(changes);
+        // (Streamed through the inbox a batch at a time, rather than read into memory all at once.)
+        TDChangesIterator changes = db.changesIterator(lastSequenceLong, null, filter);
+        if(changes != null) {
+            try {
+                while(changes.hasNext()) {
+                    addToInbox(changes.next());
+                }
+            } finally {
+                changes.close();
+            }
+            batcher.flush();
         }
 
         // Now listen for future changes (in continuous mode):
@@ -132,6 +141,10 @@ public class TDPusher extends TDReplicator implements Observer {
             if(source != null && source.equals(remote.toExternalForm())) {
                 return;
             }
+            // Purges (e.g. of expired documents) aren't replicated:
+            if(Boolean.TRUE.equals(change.get("purged"))) {
+                return;
+            }
             TDRevision rev = (TDRevision)change.get("rev");
             if(rev != null && ((filter == null) || filter.filter(rev))) {
                 addToInbox(rev);
@@ -24,11 +24,13 @@ import android.util.Log;
 import com.couchbase.touchdb.TDAttachment;
 import com.couchbase.touchdb.TDBody;
 import com.couchbase.touchdb.TDChangesOptions;
+import com.couchbase.touchdb.TDCompactor;
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDDatabase.TDContentOptions;
 import com.couchbase.touchdb.TDFilterBlock;
 import com.couchbase.touchdb.TDMisc;
 import com.couchbase.touchdb.TDQueryOptions;
+import com.couchbase.touchdb.TDQueryOptions.TDStaleness;
 import com.couchbase.touchdb.TDRevision;
 import com.couchbase.touchdb.TDRevisionList;
 import com.couchbase.touchdb.TDServer;
@@ -46,6 +48,7 @@ public class TDRouter implements Observer {
 
     private TDServer server;
     private TDDatabase db;
+    private TDDatabase acquiredDb;
     private TDURLConnection connection;
     private Map<String,String> queries;
     private boolean changesIncludesDocs = false;
@@ -54,6 +57,7 @@ public class TDRouter implements Observer {
     private boolean waiting = false;
     private TDFilterBlock changesFilter;
     private boolean longpoll = false;
+    private List<TDView> viewsToUpdateAfter;  // for stale=update_after
 
     public static String getVersionString() {
         return TouchDBVersion.TouchDBVersionNumber;
@@ -175,6 +179,8 @@ public class TDRouter implements Observer {
         options.setGroupLevel(getIntQuery("group_level", options.getGroupLevel()));
         options.setDescending(getBooleanQuery("descending"));
         options.setIncludeDocs(getBooleanQuery("include_docs"));
+        // The rows only get serialized into the response, so included docs needn't be parsed:
+        options.setStreamDocs(true);
         options.setUpdateSeq(getBooleanQuery("update_seq"));
         if(getQuery("inclusive_end") != null) {
             options.setInclusiveEnd(getBooleanQuery("inclusive_end"));
@@ -183,6 +189,18 @@ public class TDRouter implements Observer {
             options.setReduce(getBooleanQuery("reduce"));
         }
         options.setGroup(getBooleanQuery("group"));
+        String stale = getQuery("stale");
+        if(stale != null) {
+            if("ok".equals(stale)) {
+                options.setStale(TDStaleness.TDStaleOK);
+            }
+            else if("update_after".equals(stale)) {
+                options.setStale(TDStaleness.TDStaleUpdateAfter);
+            }
+            else {
+                return false;
+            }
+        }
         options.setContentOptions(getContentOptions());
         options.setStartKey(getJSONQuery("startkey"));
         options.setEndKey(getJSONQuery("endkey"));
@@ -242,6 +260,19 @@ public class TDRouter implements Observer {
     }
 
     public void start() {
+        try {
+            route();
+        } finally {
+            // A continuous or longpoll _changes feed that's still waiting keeps the database open
+            // by observing it, so it doesn't need to stay acquired.
+            if(acquiredDb != null) {
+                acquiredDb.release();
+                acquiredDb = null;
+            }
+        }
+    }
+
+    private void route() {
         // Refer to: http://wiki.apache.org/couchdb/Complete_HTTP_API_Reference
 
         // We're going to map the request into a method call using reflection based on the method and path.
@@ -273,6 +304,11 @@ public class TDRouter implements Observer {
             } else {
                 message += "_Database";
                 db = server.getDatabaseNamed(dbName);
+                if(db != null) {
+                    // So the server doesn't close it for being idle in the middle of the request:
+                    db.acquire();
+                    acquiredDb = db;
+                }
                 if(db == null) {
                     connection.setResponseCode(TDStatus.BAD_REQUEST);
                     try {
@@ -438,6 +474,11 @@ public class TDRouter implements Observer {
             }
             sendResponse();
         }
+
+        if(viewsToUpdateAfter != null) {
+            db.updateIndexesInBackground(viewsToUpdateAfter, server.getWorkExecutor());
+            viewsToUpdateAfter = null;
+        }
     }
 
     public void stop() {
@@ -622,6 +663,15 @@ public class TDRouter implements Observer {
                     activities.add(activity);
                 }
             }
+            TDCompactor compactor = db.getActiveCompactor();
+            if(compactor != null && !compactor.isFinished()) {
+                Map<String,Object> activity = new HashMap<String,Object>();
+                activity.put("type", "Database Compaction");
+                activity.put("task", db.getName());
+                activity.put("status", compactor.getStatus());
+                activity.put("progress", compactor.getProgress());
+                activities.add(activity);
+            }
         }
         connection.setResponseBody(new TDBody(activities));
         return new TDStatus(TDStatus.OK);
@@ -635,8 +685,23 @@ public class TDRouter implements Observer {
         if(!status.isSuccessful()) {
             return status;
         }
-        int num_docs = db.getDocumentCount();
-        long update_seq = db.getLastSequence();
+        // With write-ahead logging a read snapshot makes the count and update_seq agree, without
+        // holding anyone up. Without it a snapshot holds the write transaction, which isn't worth
+        // it for two numbers that are kept in memory anyway.
+        boolean snapshot = db.isWriteAheadLoggingEnabled();
+        if(snapshot) {
+            db.beginReadSnapshot();
+        }
+        int num_docs;
+        long update_seq;
+        try {
+            num_docs = db.getDocumentCount();
+            update_seq = db.getLastSequence();
+        } finally {
+            if(snapshot) {
+                db.endReadSnapshot();
+            }
+        }
         Map<String, Object> result = new HashMap<String,Object>();
         result.put("db_name", db.getName());
         result.put("db_uuid", db.publicUUID());
@@ -733,29 +798,69 @@ public class TDRouter implements Observer {
         db.beginTransaction();
         List<Map<String,Object>> results = new ArrayList<Map<String,Object>>();
         try {
-            for (Map<String, Object> doc : docs) {
-                String docID = (String) doc.get("_id");
-                TDRevision rev = null;
-                TDStatus status = new TDStatus(TDStatus.BAD_REQUEST);
-                TDBody docBody = new TDBody(doc);
-                if (noNewEdits) {
-                    rev = new TDRevision(docBody);
+            // Insert all the documents at once, remembering each one's resulting revision and status:
+            int numDocs = docs.size();
+            TDRevision[] docRevs = new TDRevision[numDocs];
+            TDStatus[] docStatuses = new TDStatus[numDocs];
+            List<Integer> bulkIndexes = new ArrayList<Integer>();
+            List<TDRevision> bulkRevs = new ArrayList<TDRevision>();
+            if (noNewEdits) {
+                List<List<String>> bulkHistories = new ArrayList<List<String>>();
+                for(int i = 0; i < numDocs; i++) {
+                    Map<String, Object> doc = docs.get(i);
+                    String docID = (String) doc.get("_id");
+                    TDRevision rev = new TDRevision(new TDBody(doc));
+                    docRevs[i] = rev;
                     if(rev.getRevId() == null || rev.getDocId() == null || !rev.getDocId().equals(docID)) {
-                        status =  new TDStatus(TDStatus.BAD_REQUEST);
+                        docStatuses[i] = new TDStatus(TDStatus.BAD_REQUEST);
                     } else {
-                        List<String> history = TDDatabase.parseCouchDBRevisionHistory(doc);
-                        status = db.forceInsert(rev, history, null);
+                        bulkIndexes.add(i);
+                        bulkRevs.add(rev);
+                        bulkHistories.add(TDDatabase.parseCouchDBRevisionHistory(doc));
                     }
-                } else {
-                    TDStatus outStatus = new TDStatus();
-                    rev = update(db, docID, docBody, false, allOrNothing, outStatus);
-                    status.setCode(outStatus.getCode());
                 }
+                List<TDStatus> bulkStatuses = db.forceInsertRevisions(bulkRevs, bulkHistories, null);
+                for(int i = 0; i < bulkIndexes.size(); i++) {
+                    docStatuses[bulkIndexes.get(i)] = bulkStatuses.get(i);
+                }
+            } else {
+                List<String> bulkPrevRevIDs = new ArrayList<String>();
+                for(int i = 0; i < numDocs; i++) {
+                    Map<String, Object> doc = docs.get(i);
+                    String docID = (String) doc.get("_id");
+                    TDBody docBody = new TDBody(doc);
+                    TDStatus status = new TDStatus();
+                    if(docID != null && docID.startsWith("_local")) {
+                        docRevs[i] = update(db, docID, docBody, false, allOrNothing, status);
+                        docStatuses[i] = status;
+                        continue;
+                    }
+                    TDRevision rev = revisionForUpdate(docID, docBody, false, status);
+                    if(rev == null) {
+                        docStatuses[i] = status;
+                    } else {
+                        bulkIndexes.add(i);
+                        bulkRevs.add(rev);
+                        bulkPrevRevIDs.add(prevRevIDForUpdate(docBody, false));
+                    }
+                }
+                List<TDStatus> bulkStatuses = new ArrayList<TDStatus>();
+                List<TDRevision> bulkResults = db.putRevisions(bulkRevs, bulkPrevRevIDs, allOrNothing, bulkStatuses);
+                for(int i = 0; i < bulkIndexes.size(); i++) {
+                    docRevs[bulkIndexes.get(i)] = bulkResults.get(i);
+                    docStatuses[bulkIndexes.get(i)] = bulkStatuses.get(i);
+                }
+            }
+
+            for(int i = 0; i < numDocs; i++) {
+                String docID = (String) docs.get(i).get("_id");
+                TDRevision rev = docRevs[i];
+                TDStatus status = docStatuses[i];
                 Map<String, Object> result = null;
                 if(status.isSuccessful()) {
                     result = new HashMap<String, Object>();
                     result.put("ok", true);
-                    result.put("id", docID);
+                    result.put("id", (rev != null) ? rev.getDocId() : docID);
                     if (rev != null) {
                         result.put("rev", rev.getRevId());
                     }
@@ -837,20 +942,71 @@ public class TDRouter implements Observer {
     }
 
     public TDStatus do_POST_Document_compact(TDDatabase _db, String _docID, String _attachmentName) {
-    	TDStatus status = _db.compact();
-    	if (status.getCode() < 300) {
-    		TDStatus outStatus = new TDStatus();
-    		outStatus.setCode(202);	// CouchDB returns 202 'cause it's an async operation
-            return outStatus;
-    	} else {
-    		return status;
-    	}
+        // Compact in the background, a short step at a time, so requests aren't stalled meanwhile;
+        // its progress shows up in _active_tasks.
+        _db.compactInBackground(server.getWorkExecutor());
+        return new TDStatus(202);  // CouchDB returns 202 'cause it's an async operation
+    }
+
+    @SuppressWarnings("unchecked")
+    public TDStatus do_POST_Document_purge(TDDatabase _db, String _docID, String _attachmentName) {
+        // http://wiki.apache.org/couchdb/Purge_Documents
+        Map<String, Object> body = getBodyAsDictionary();
+        if(body == null) {
+            return new TDStatus(TDStatus.BAD_JSON);
+        }
+        Map<String, List<String>> docsToRevs = new HashMap<String, List<String>>();
+        for (String docID : body.keySet()) {
+            Object revIDs = body.get(docID);
+            if(!(revIDs instanceof List)) {
+                return new TDStatus(TDStatus.BAD_REQUEST);
+            }
+            for (Object revID : (List<Object>)revIDs) {
+                if(!(revID instanceof String)) {
+                    return new TDStatus(TDStatus.BAD_REQUEST);
+                }
+            }
+            docsToRevs.put(docID, (List<String>)revIDs);
+        }
+
+        Map<String, List<String>> purged = db.purgeRevisions(docsToRevs);
+        if(purged == null) {
+            return new TDStatus(TDStatus.DB_ERROR);
+        }
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("purge_seq", db.getPurgeSequence());
+        result.put("purged", purged);
+        connection.setResponseBody(new TDBody(result));
+        return new TDStatus(TDStatus.OK);
     }
 
     public TDStatus do_POST_Document_ensure_full_commit(TDDatabase _db, String _docID, String _attachmentName) {
         return new TDStatus(TDStatus.OK);
     }
 
+    public TDStatus do_GET_Document_revs_limit(TDDatabase _db, String _docID, String _attachmentName) {
+        connection.setResponseBody(new TDBody(Integer.toString(_db.getRevsLimit()).getBytes()));
+        return new TDStatus(TDStatus.OK);
+    }
+
+    public TDStatus do_PUT_Document_revs_limit(TDDatabase _db, String _docID, String _attachmentName) {
+        // The body is just a number:
+        Object limit = null;
+        try {
+            limit = TDServer.getObjectMapper().readValue(connection.getRequestInputStream(), Object.class);
+        } catch (IOException e) {
+            return new TDStatus(TDStatus.BAD_JSON);
+        }
+        if(!(limit instanceof Integer) || (Integer)limit < 1) {
+            return new TDStatus(TDStatus.BAD_REQUEST);
+        }
+        if(!_db.setRevsLimit((Integer)limit)) {
+            return new TDStatus(TDStatus.DB_ERROR);
+        }
+        connection.setResponseBody(new TDBody("{\"ok\":true}".getBytes()));
+        return new TDStatus(TDStatus.OK);
+    }
+
     /** CHANGES: **/
 
     public Map<String,Object> changesDictForRevision(TDRevision rev) {
@@ -949,6 +1105,11 @@ public class TDRouter implements Observer {
             //make sure we're listening to the right events
             Map<String,Object> changeNotification = (Map<String,Object>)changeObject;
 
+            // Purged documents have no new sequence, so there's no change to report:
+            if(Boolean.TRUE.equals(changeNotification.get("purged"))) {
+                return;
+            }
+
             TDRevision rev = (TDRevision)changeNotification.get("rev");
 
             if(changesFilter != null && !changesFilter.filter(rev)) {
@@ -1184,7 +1345,29 @@ public class TDRouter implements Observer {
      */
     public TDRevision update(TDDatabase _db, String docID, TDBody body, boolean deleting, boolean allowConflict, TDStatus outStatus) {
         boolean isLocalDoc = docID != null && docID.startsWith(("_local"));
-        String prevRevID = null;
+
+        TDRevision rev = revisionForUpdate(docID, body, deleting, outStatus);
+        if(rev == null) {
+            return null;
+        }
+        String prevRevID = prevRevIDForUpdate(body, deleting);
+
+        TDRevision result = null;
+        TDStatus tmpStatus = new TDStatus();
+        if(isLocalDoc) {
+            result = _db.putLocalRevision(rev, prevRevID, tmpStatus);
+        } else {
+            result = _db.putRevision(rev, prevRevID, allowConflict, tmpStatus);
+        }
+        outStatus.setCode(tmpStatus.getCode());
+        return result;
+    }
+
+    /**
+     * Creates the new revision to be stored by an update, or returns null with an error in outStatus.
+     */
+    private TDRevision revisionForUpdate(String docID, TDBody body, boolean deleting, TDStatus outStatus) {
+        boolean isLocalDoc = docID != null && docID.startsWith(("_local"));
 
         if(!deleting) {
             Boolean deletingBoolean = (Boolean)body.getPropertyForKey("deleted");
@@ -1204,6 +1387,19 @@ public class TDRouter implements Observer {
                     docID = TDDatabase.generateDocumentId();
                 }
             }
+        }
+
+        TDRevision rev = new TDRevision(docID, null, deleting);
+        rev.setBody(body);
+        return rev;
+    }
+
+    /**
+     * Returns the ID of the revision an update replaces, or null if it creates a new document.
+     */
+    private String prevRevIDForUpdate(TDBody body, boolean deleting) {
+        String prevRevID = null;
+        if(!deleting) {
             // PUT's revision ID comes from the JSON body.
             prevRevID = (String)body.getPropertyForKey("_rev");
         } else {
@@ -1215,19 +1411,7 @@ public class TDRouter implements Observer {
         if(prevRevID == null) {
             prevRevID = getRevIDFromIfMatchHeader();
         }
-
-        TDRevision rev = new TDRevision(docID, null, deleting);
-        rev.setBody(body);
-
-        TDRevision result = null;
-        TDStatus tmpStatus = new TDStatus();
-        if(isLocalDoc) {
-            result = _db.putLocalRevision(rev, prevRevID, tmpStatus);
-        } else {
-            result = _db.putRevision(rev, prevRevID, allowConflict, tmpStatus);
-        }
-        outStatus.setCode(tmpStatus.getCode());
-        return result;
+        return prevRevID;
     }
 
     public TDStatus update(TDDatabase _db, String docID, Map<String,Object> bodyDict, boolean deleting) {
@@ -1368,6 +1552,14 @@ public class TDRouter implements Observer {
             if(view == null) {
                 return new TDStatus(TDStatus.INTERNAL_SERVER_ERROR);
             }
+            // Compile the design doc's other views too, so they can all be indexed together:
+            for (Map.Entry<String,Object> entry : views.entrySet()) {
+                String otherViewName = String.format("%s/%s", designDoc, entry.getKey());
+                TDView otherView = db.getExistingViewNamed(otherViewName);
+                if((otherView == null || otherView.getMapBlock() == null) && entry.getValue() instanceof Map) {
+                    compileView(otherViewName, (Map<String,Object>)entry.getValue());
+                }
+            }
         }
 
         TDQueryOptions options = new TDQueryOptions();
@@ -1384,22 +1576,42 @@ public class TDRouter implements Observer {
             options.setKeys(keys);
         }
 
-        TDStatus status = view.updateIndex();
-        if(!status.isSuccessful()) {
-            return status;
+        // Bring all of the design doc's views up to date at once; it's one pass over the new revisions
+        List<TDView> designDocViews = db.getViewsOfDesignDoc(designDoc);
+        if(!designDocViews.contains(view)) {
+            designDocViews.add(view);
+        }
+        TDStatus status = new TDStatus(TDStatus.OK);
+        if(options.getStale() == TDStaleness.TDStaleNever) {
+            status = db.updateIndexes(designDocViews);
+            if(!status.isSuccessful()) {
+                return status;
+            }
+        }
+        else if(options.getStale() == TDStaleness.TDStaleUpdateAfter) {
+            viewsToUpdateAfter = designDocViews;
         }
 
-        long lastSequenceIndexed = view.getLastSequenceIndexed();
+        // The ETag and update_seq have to come from the same snapshot as the rows. (Without write-ahead
+        // logging the snapshot is a transaction on the main connection, so writers wait for the query.)
+        long lastSequenceIndexed;
+        List<Map<String,Object>> rows;
+        db.beginReadSnapshot();
+        try {
+            lastSequenceIndexed = view.getLastSequenceIndexed();
 
-        // Check for conditional GET and set response Etag header:
-        if(keys == null) {
-            long eTag = options.isIncludeDocs() ? db.getLastSequence() : lastSequenceIndexed;
-            if(cacheWithEtag(String.format("%d", eTag))) {
-                return new TDStatus(TDStatus.NOT_MODIFIED);
+            // Check for conditional GET and set response Etag header:
+            if(keys == null) {
+                long eTag = options.isIncludeDocs() ? db.getLastSequence() : lastSequenceIndexed;
+                if(cacheWithEtag(String.format("%d", eTag))) {
+                    return new TDStatus(TDStatus.NOT_MODIFIED);
+                }
             }
-        }
 
-        List<Map<String,Object>> rows = view.queryWithOptions(options, status);
+            rows = view.queryWithOptions(options, status);
+        } finally {
+            db.endReadSnapshot();
+        }
         if(rows == null) {
             return status;
         }
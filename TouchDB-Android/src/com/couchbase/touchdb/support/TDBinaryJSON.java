@@ -0,0 +1,392 @@
+package com.couchbase.touchdb.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+
+import com.couchbase.touchdb.TDServer;
+
+/**
+ * A compact binary encoding of JSON values, used to store document bodies.
+ *
+ * Encoded data starts with a marker byte that can't begin a JSON object, so it can be told apart
+ * from JSON text. Integers are stored as variable-length numbers, strings are length-prefixed, and
+ * each distinct object key is stored only once per body; later uses of it refer back to it. Decoding
+ * is a single pass with no tokenizing or number parsing.
+ */
+public class TDBinaryJSON {
+
+    public static final byte MARKER = 0x01;
+
+    private static final int NULL = 0x00;
+    private static final int FALSE = 0x01;
+    private static final int TRUE = 0x02;
+    private static final int INTEGER = 0x03;     // zigzag varint
+    private static final int DOUBLE = 0x04;      // 8 bytes, big-endian
+    private static final int STRING = 0x05;      // varint length + UTF-8
+    private static final int BIG_INTEGER = 0x06; // varint length + decimal digits
+    private static final int BIG_DECIMAL = 0x07; // varint length + decimal digits
+    private static final int ARRAY = 0x08;       // varint count + values
+    private static final int OBJECT = 0x09;      // varint count + (key, value) pairs
+
+    /** Returns true if the data is in this encoding rather than JSON text. */
+    public static boolean isBinary(byte[] data) {
+        return data != null && data.length > 0 && data[0] == MARKER;
+    }
+
+    /**
+     * Encodes a value made of Maps, Lists, Strings, Numbers, Booleans and nulls.
+     * @throws IllegalArgumentException if the value contains anything else
+     */
+    public static byte[] encode(Object value) {
+        Encoder encoder = new Encoder();
+        encoder.out.write(MARKER);
+        encoder.writeValue(value);
+        return encoder.out.toByteArray();
+    }
+
+    /** Decodes data produced by encode() back into Maps, Lists, Strings, Numbers, Booleans and nulls. */
+    public static Object decode(byte[] data) throws IOException {
+        if(!isBinary(data)) {
+            throw new IOException("Not binary JSON data");
+        }
+        Decoder decoder = new Decoder(data);
+        Object result = decoder.readValue();
+        if(decoder.pos != data.length) {
+            throw new IOException("Unexpected data after binary JSON value");
+        }
+        return result;
+    }
+
+    /** Writes binary-encoded data to a JSON generator, without building the intermediate objects. */
+    public static void writeTo(byte[] data, JsonGenerator generator) throws IOException {
+        if(!isBinary(data)) {
+            throw new IOException("Not binary JSON data");
+        }
+        new Decoder(data).copyValue(generator);
+    }
+
+    /**
+     * Writes the fields of a binary-encoded object to a JSON generator that's in the middle of
+     * writing an object, so they can be merged with other fields.
+     */
+    public static void writeFieldsTo(byte[] data, JsonGenerator generator) throws IOException {
+        if(!isBinary(data)) {
+            throw new IOException("Not binary JSON data");
+        }
+        new Decoder(data).copyFields(generator);
+    }
+
+    /** Converts stored data to JSON text; data that's already JSON is returned as-is. */
+    public static byte[] toJSON(byte[] data) throws IOException {
+        if(!isBinary(data)) {
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+        writeJSON(data, out);
+        return out.toByteArray();
+    }
+
+    /** Writes stored data to a stream as JSON text. */
+    public static void writeJSON(byte[] data, OutputStream out) throws IOException {
+        if(!isBinary(data)) {
+            out.write(data);
+            return;
+        }
+        JsonGenerator generator = TDServer.getObjectMapper().getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        writeTo(data, generator);
+        generator.flush();
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Encoder {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        final Map<String,Integer> keys = new HashMap<String,Integer>();
+
+        @SuppressWarnings("unchecked")
+        void writeValue(Object value) {
+            if(value == null) {
+                out.write(NULL);
+            }
+            else if(value instanceof String) {
+                out.write(STRING);
+                writeBytes(utf8((String)value));
+            }
+            else if(value instanceof Map) {
+                Map<Object,Object> map = (Map<Object,Object>)value;
+                out.write(OBJECT);
+                writeVarint(map.size());
+                for (Map.Entry<Object,Object> entry : map.entrySet()) {
+                    writeKey(String.valueOf(entry.getKey()));
+                    writeValue(entry.getValue());
+                }
+            }
+            else if(value instanceof List) {
+                List<Object> list = (List<Object>)value;
+                out.write(ARRAY);
+                writeVarint(list.size());
+                for (Object item : list) {
+                    writeValue(item);
+                }
+            }
+            else if(value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                long n = ((Number)value).longValue();
+                out.write(INTEGER);
+                writeVarint((n << 1) ^ (n >> 63));
+            }
+            else if(value instanceof Double || value instanceof Float) {
+                long bits = Double.doubleToLongBits(((Number)value).doubleValue());
+                out.write(DOUBLE);
+                for(int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int)(bits >>> shift));
+                }
+            }
+            else if(value instanceof Boolean) {
+                out.write(((Boolean)value).booleanValue() ? TRUE : FALSE);
+            }
+            else if(value instanceof BigInteger) {
+                out.write(BIG_INTEGER);
+                writeBytes(utf8(value.toString()));
+            }
+            else if(value instanceof BigDecimal) {
+                out.write(BIG_DECIMAL);
+                writeBytes(utf8(value.toString()));
+            }
+            else {
+                throw new IllegalArgumentException("Can't encode " + value.getClass().getName());
+            }
+        }
+
+        // A key's first use is written out as (length << 1); later ones as (index << 1 | 1).
+        void writeKey(String key) {
+            Integer index = keys.get(key);
+            if(index != null) {
+                writeVarint(((long)index << 1) | 1);
+            }
+            else {
+                keys.put(key, keys.size());
+                byte[] bytes = utf8(key);
+                writeVarint((long)bytes.length << 1);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void writeVarint(long n) {
+            while((n & ~0x7FL) != 0) {
+                out.write((int)((n & 0x7F) | 0x80));
+                n >>>= 7;
+            }
+            out.write((int)n);
+        }
+    }
+
+    private static class Decoder {
+        final byte[] data;
+        int pos = 1;  // skip the marker
+        final List<String> keys = new ArrayList<String>();
+
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        Object readValue() throws IOException {
+            int type = readByte();
+            switch(type) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case INTEGER: {
+                    // Same types Jackson would produce when parsing the JSON:
+                    long n = readInteger();
+                    if(n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE) {
+                        return Integer.valueOf((int)n);
+                    }
+                    return Long.valueOf(n);
+                }
+                case DOUBLE:
+                    return Double.valueOf(readDouble());
+                case STRING:
+                    return readString();
+                case BIG_INTEGER:
+                    return new BigInteger(readString());
+                case BIG_DECIMAL:
+                    return new BigDecimal(readString());
+                case ARRAY: {
+                    int count = readCount();
+                    List<Object> list = new ArrayList<Object>(count);
+                    for(int i = 0; i < count; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                case OBJECT: {
+                    int count = readCount();
+                    Map<String,Object> map = new LinkedHashMap<String,Object>(count * 4 / 3 + 1);
+                    for(int i = 0; i < count; i++) {
+                        String key = readKey();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                }
+                default:
+                    throw new IOException("Invalid binary JSON type " + type + " at offset " + (pos - 1));
+            }
+        }
+
+        void copyValue(JsonGenerator generator) throws IOException {
+            int type = readByte();
+            switch(type) {
+                case NULL:
+                    generator.writeNull();
+                    break;
+                case FALSE:
+                    generator.writeBoolean(false);
+                    break;
+                case TRUE:
+                    generator.writeBoolean(true);
+                    break;
+                case INTEGER:
+                    generator.writeNumber(readInteger());
+                    break;
+                case DOUBLE:
+                    generator.writeNumber(readDouble());
+                    break;
+                case STRING:
+                    generator.writeString(readString());
+                    break;
+                case BIG_INTEGER:
+                case BIG_DECIMAL:
+                    generator.writeNumber(readString());
+                    break;
+                case ARRAY: {
+                    int count = readCount();
+                    generator.writeStartArray();
+                    for(int i = 0; i < count; i++) {
+                        copyValue(generator);
+                    }
+                    generator.writeEndArray();
+                    break;
+                }
+                case OBJECT: {
+                    int count = readCount();
+                    generator.writeStartObject();
+                    for(int i = 0; i < count; i++) {
+                        generator.writeFieldName(readKey());
+                        copyValue(generator);
+                    }
+                    generator.writeEndObject();
+                    break;
+                }
+                default:
+                    throw new IOException("Invalid binary JSON type " + type + " at offset " + (pos - 1));
+            }
+        }
+
+        void copyFields(JsonGenerator generator) throws IOException {
+            if(readByte() != OBJECT) {
+                throw new IOException("Binary JSON data isn't an object");
+            }
+            int count = readCount();
+            for(int i = 0; i < count; i++) {
+                generator.writeFieldName(readKey());
+                copyValue(generator);
+            }
+        }
+
+        int readByte() throws IOException {
+            if(pos >= data.length) {
+                throw new IOException("Truncated binary JSON data");
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long)(b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Invalid varint in binary JSON data");
+        }
+
+        long readInteger() throws IOException {
+            long n = readVarint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        int readCount() throws IOException {
+            long count = readVarint();
+            if(count > data.length - pos) {
+                // Every item takes at least one byte
+                throw new IOException("Invalid count in binary JSON data");
+            }
+            return (int)count;
+        }
+
+        double readDouble() throws IOException {
+            long bits = 0;
+            for(int i = 0; i < 8; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        String readString() throws IOException {
+            return readUTF8(readCount());
+        }
+
+        String readKey() throws IOException {
+            long n = readVarint();
+            if((n & 1) != 0) {
+                long index = n >>> 1;
+                if(index >= keys.size()) {
+                    throw new IOException("Invalid key reference in binary JSON data");
+                }
+                return keys.get((int)index);
+            }
+            long length = n >>> 1;
+            if(length > data.length - pos) {
+                throw new IOException("Truncated binary JSON data");
+            }
+            String key = readUTF8((int)length);
+            keys.add(key);
+            return key;
+        }
+
+        String readUTF8(int length) throws IOException {
+            String result = new String(data, pos, length, "UTF-8");
+            pos += length;
+            return result;
+        }
+    }
+}
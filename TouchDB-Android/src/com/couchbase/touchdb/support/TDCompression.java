@@ -0,0 +1,90 @@
+package com.couchbase.touchdb.support;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of stored document bodies.
+ *
+ * Compressed data starts with a marker byte that neither JSON text nor TDBinaryJSON can begin with,
+ * followed by the uncompressed length (4 bytes, big-endian) and the zlib-format compressed data.
+ * Anything without the marker is returned as-is by decompress(), so compressed and uncompressed
+ * bodies can be mixed freely.
+ */
+public class TDCompression {
+
+    public static final byte MARKER = 0x02;
+
+    private static final int HEADER_LENGTH = 5;
+
+    public static boolean isCompressed(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == MARKER;
+    }
+
+    /**
+     * Compresses data, returning null if that wouldn't make it any smaller.
+     */
+    public static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            // Not worth storing compressed unless it saves something:
+            byte[] buffer = new byte[data.length];
+            int length = HEADER_LENGTH;
+            while(!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if(!deflater.finished()) {
+                return null;
+            }
+            buffer[0] = MARKER;
+            buffer[1] = (byte)(data.length >>> 24);
+            buffer[2] = (byte)(data.length >>> 16);
+            buffer[3] = (byte)(data.length >>> 8);
+            buffer[4] = (byte)data.length;
+            byte[] result = new byte[length];
+            System.arraycopy(buffer, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses data produced by compress(); any other data is returned unchanged.
+     */
+    public static byte[] decompress(byte[] data) throws IOException {
+        if(!isCompressed(data)) {
+            return data;
+        }
+        int length = ((data[1] & 0xFF) << 24) | ((data[2] & 0xFF) << 16)
+                   | ((data[3] & 0xFF) << 8) | (data[4] & 0xFF);
+        if(length < 0) {
+            throw new IOException("Invalid compressed data length");
+        }
+        byte[] result = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+            int offset = 0;
+            while(offset < length && !inflater.finished()) {
+                int n = inflater.inflate(result, offset, length - offset);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += n;
+            }
+            if(offset != length) {
+                throw new IOException("Truncated compressed data");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+package com.couchbase.touchdb.support;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache that evicts its least recently used entries once their total size exceeds a limit.
+ *
+ * By default every entry has a size of 1, so the limit is an entry count; subclasses can override
+ * sizeOf() to measure entries in some other unit, such as bytes.
+ */
+public class TDLRUCache<K, V> {
+
+    private final LinkedHashMap<K, V> map;
+    private int maxSize;
+    private int size;
+    private long hitCount;
+    private long missCount;
+
+    public TDLRUCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true);
+    }
+
+    /**
+     * The size of an entry, in whatever units maxSize is measured in.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    public synchronized V get(K key) {
+        V value = map.get(key);
+        if(value != null) {
+            ++hitCount;
+        }
+        else {
+            ++missCount;
+        }
+        return value;
+    }
+
+    /**
+     * Looks up a value without counting it as a hit or miss.
+     */
+    public synchronized V peek(K key) {
+        return map.get(key);
+    }
+
+    public synchronized V put(K key, V value) {
+        V previous = map.put(key, value);
+        size += sizeOf(key, value);
+        if(previous != null) {
+            size -= sizeOf(key, previous);
+        }
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    public synchronized V remove(K key) {
+        V previous = map.remove(key);
+        if(previous != null) {
+            size -= sizeOf(key, previous);
+        }
+        return previous;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        size = 0;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int count() {
+        return map.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * The fraction of lookups that found a value, or 0 if there haven't been any lookups yet.
+     */
+    public synchronized double getHitRate() {
+        long lookups = hitCount + missCount;
+        return (lookups > 0) ? (double)hitCount / lookups : 0.0;
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+        while(size > maxSize && iterator.hasNext()) {
+            Map.Entry<K, V> eldest = iterator.next();
+            size -= sizeOf(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+        }
+    }
+}